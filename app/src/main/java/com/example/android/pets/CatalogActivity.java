@@ -1,37 +1,187 @@
 package com.example.android.pets;
 
 import android.app.LoaderManager;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AlertDialog;
+import android.support.v4.os.TraceCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.SearchView;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.view.ViewStub;
+import android.view.ViewTreeObserver;
 import android.widget.Toast;
 
+import com.example.android.pets.data.PetContract.ChangeEntry;
+import com.example.android.pets.data.PetContract.DuplicateEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDeleter;
+import com.example.android.pets.data.PetImporter;
+import com.example.android.pets.data.PetSync;
+import com.example.android.pets.data.PetWriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Displays list of pets that were entered and stored in the app.
  */
 public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
 
-    private static final int PET_LOADER = 0;
+    private static final int SEARCH_LOADER = 0;
+    private static final int PET_LOADER = 1;
+
+    /** Most search results shown at once. */
+    private static final int SEARCH_LIMIT = 100;
+
+    /** Number of pets fetched from the provider per page. */
+    private static final int PAGE_SIZE = 50;
+
+    /** Most changed pets patched into the pages before it's quicker to reload them all. */
+    private static final int MAX_PATCHED_CHANGES = PAGE_SIZE;
+
+    /** Most groups of duplicate pets listed at once. */
+    private static final int MAX_DUPLICATE_GROUPS = 20;
+
+    /**
+     * Start fetching the next page once the user is this many rows away from the end of the
+     * loaded pages, or the page before them once this close to their start.
+     */
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 2;
+
+    /**
+     * Most pages kept loaded at once. Pages further from the rows on screen than this are let go
+     * of, along with their loaders and cursors, and loaded again if the user scrolls back.
+     */
+    private static final int MAX_LOADED_PAGES = 5;
+
+    /** Loader argument holding the _ID that a page starts after. */
+    private static final String ARG_AFTER_ID = "after_id";
+
+    /** Loader argument holding the text to search for. */
+    private static final String ARG_QUERY = "query";
+
+    /** Request code for picking the file to import pets from. */
+    private static final int PICK_IMPORT_FILE = 1;
+
+    /** Most row errors listed in the summary shown after an import. */
+    private static final int MAX_IMPORT_ERRORS_SHOWN = 10;
+
+    /**
+     * Columns read for every pet in the list. The list only shows the name, breed and photo, but
+     * the rest are passed on to the editor so it can open without waiting for a query. The photo
+     * column only says when the photo was set, the photo itself is loaded separately.
+     */
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.PET_NAME,
+            PetEntry.PET_BREED,
+            PetEntry.PET_GENDER,
+            PetEntry.PET_WEIGHT,
+            PetEntry.PET_PHOTO };
+
     PetCursorAdapter cursorAdapter;
 
+    public static final String LOG_TAG = CatalogActivity.class.getSimpleName();
+
+    /**
+     * Shown in place of the list when there are no pets. Null until it's first needed, since
+     * there usually are pets.
+     */
+    private View emptyView;
+
+    /** When the activity was created, for timing the first frame with pets in it. */
+    private long createdTime;
+
+    /** Whether or not a page of pets has been shown yet. */
+    private boolean firstPageShown = false;
+
+    /**
+     * The rows of every page up to the last one loaded, in order. Page n is loaded by the loader
+     * with ID PET_LOADER + n. Only the pages from {@link #firstPage} on are loaded, and an entry
+     * is null while that page is still loading. The pages before it have been let go of and are
+     * always null.
+     */
+    private final ArrayList<List<PetCursorAdapter.PetRow>> pages = new ArrayList<>();
+
+    /**
+     * The _ID that each page in {@link #pages} starts after. Kept for the pages that have been let
+     * go of too, so they can be loaded again when the user scrolls back to them.
+     */
+    private final ArrayList<Long> pageStarts = new ArrayList<>();
+
+    /**
+     * The first page that is loaded. It and the pages after it, at most
+     * {@link #MAX_LOADED_PAGES} of them, are the ones the list shows.
+     */
+    private int firstPage = 0;
+
+    /** Whether or not there may be more pets after the last page. */
+    private boolean morePets = false;
+
+    /**
+     * Watches the pets table. The page cursors don't watch for changes themselves, so that a
+     * change to one pet can be patched into the list without reloading every page.
+     */
+    private ContentObserver petObserver;
+
+    /** The text being searched for, or null when the list shows every pet. */
+    private String searchQuery;
+
+    /**
+     * Sequence number of the last change to the pets that the pages are known to include, or -1
+     * until the first change that isn't to a single pet.
+     */
+    private long changeSequence = -1;
+
+    /** Whether or not changes are being read in the background. */
+    private boolean readingChanges = false;
+
+    /** Whether or not more pets changed while changes were being read. */
+    private boolean changesPending = false;
+
+    /**
+     * The pets that changed since a sequence number, read from {@link ChangeEntry}.
+     */
+    private static class ChangedPets {
+        /** The sequence number these changes go up to. */
+        long sequence;
+
+        /** Whether or not the pages have to be reloaded instead of patched. */
+        boolean reload;
+
+        /** The latest version of every pet that changed, or null if it was deleted. */
+        final Map<Long, PetCursorAdapter.PetRow> pets = new LinkedHashMap<>();
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        TraceCompat.beginSection("CatalogActivity.onCreate");
+        createdTime = SystemClock.elapsedRealtime();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_catalog);
 
@@ -45,32 +195,99 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             }
         });
 
-        ListView petListView = (ListView) findViewById(R.id.list);
-        View emptyView = findViewById(R.id.empty_view);
-        petListView.setEmptyView(emptyView);
-
-        cursorAdapter = new PetCursorAdapter(this, null);
-        petListView.setAdapter(cursorAdapter);
-
+        RecyclerView petListView = (RecyclerView) findViewById(R.id.list);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        petListView.setLayoutManager(layoutManager);
 
         // Setup item onclick listener
-        petListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        cursorAdapter = new PetCursorAdapter(new PetCursorAdapter.OnPetClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+            public void onPetClick(PetCursorAdapter.PetRow pet) {
                 Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
 
-                Uri currentPetUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+                Uri currentPetUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, pet.id);
                 intent.setData(currentPetUri);
+                EditorActivity.putPet(intent, pet);
 
                 startActivity(intent);
             }
+        }, PetThumbnailLoader.getInstance(this),
+                getResources().getDimensionPixelSize(R.dimen.thumbnail_size));
+        petListView.setAdapter(cursorAdapter);
+
+        // Show the empty view whenever the list runs out of pets.
+        cursorAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
         });
+        updateEmptyView();
 
-        // Initialize the Cursor Loader
-        getLoaderManager().initLoader(PET_LOADER, null, this);
+        // Fetch the next page as the user gets close to the end of what has been loaded, or the
+        // page before as they get close to its start.
+        petListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (dy > 0) {
+                    int lastVisible = layoutManager.findLastVisibleItemPosition();
+                    if (lastVisible >= cursorAdapter.getItemCount() - PREFETCH_DISTANCE) {
+                        loadNextPage();
+                    }
+                }
+                else if (dy < 0) {
+                    int firstVisible = layoutManager.findFirstVisibleItemPosition();
+                    if (firstVisible != RecyclerView.NO_POSITION
+                            && firstVisible < PREFETCH_DISTANCE) {
+                        loadPreviousPage();
+                    }
+                }
+            }
+        });
+
+        petObserver = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                // Older releases don't say which URI changed.
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                onPetsChanged(uri);
+            }
+        };
+        getContentResolver().registerContentObserver(PetEntry.CONTENT_URI, true, petObserver);
 
+        // Initialize the Cursor Loader for the first page
+        startPage(0);
+        if (savedInstanceState != null) {
+            // Changes that the last instance patched in aren't in the cursor it left behind.
+            reloadPages();
+        }
+        TraceCompat.endSection();
+    }
 
+    @Override
+    protected void onDestroy() {
+        getContentResolver().unregisterContentObserver(petObserver);
+        super.onDestroy();
+    }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        PetThumbnailLoader.getInstance(this).trimMemory(level);
     }
 
     /**
@@ -83,6 +300,25 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+        menu.findItem(R.id.action_sync).setVisible(
+                !TextUtils.isEmpty(getString(R.string.sync_server_url)));
+
+        // Search the pets as the user types.
+        SearchView searchView = (SearchView) menu.findItem(R.id.action_search).getActionView();
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText);
+                return true;
+            }
+        });
         return true;
     }
 
@@ -118,11 +354,37 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
                 AlertDialog alertDialog = builder.create();
                 alertDialog.show();
 
+                return true;
+            // Respond to a click on the "Import pets" menu option
+            case R.id.action_import_pets:
+                Intent pickFile = new Intent(Intent.ACTION_GET_CONTENT);
+                pickFile.addCategory(Intent.CATEGORY_OPENABLE);
+                pickFile.setType("*/*");
+                startActivityForResult(pickFile, PICK_IMPORT_FILE);
+                return true;
+            // Respond to a click on the "Find duplicates" menu option
+            case R.id.action_find_duplicates:
+                findDuplicates();
+                return true;
+            // Respond to a click on the "Sync" menu option
+            case R.id.action_sync:
+                syncPets();
                 return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == PICK_IMPORT_FILE) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                importPets(data.getData());
+            }
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
     @Override
     protected void onStart(){
         super.onStart();
@@ -135,38 +397,691 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         values.put(PetEntry.PET_GENDER, PetEntry.GENDER_MALE);
         values.put(PetEntry.PET_WEIGHT, 7);
 
-        getContentResolver().insert(PetEntry.CONTENT_URI, values);
+        // The list picks the new pet up from the change notification.
+        PetWriter.getInstance(this).insert(PetEntry.CONTENT_URI, values, null);
+    }
+
+    /**
+     * Sync the pets with the shelter's server in the background. Pets that change show up in the
+     * list the same way as any other change.
+     */
+    private void syncPets(){
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setSubtitle(R.string.action_sync);
+        }
+        final PetSync sync = new PetSync(getContentResolver(), getString(R.string.sync_server_url),
+                PetSync.DEFAULT_BATCH_SIZE);
+        // Not on the default serial executor, which would hold up the pet updates behind it.
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                try {
+                    PetSync.Result result = sync.sync();
+                    return "Sent " + result.petsSent + " pets, received " + result.petsReceived
+                            + ".";
+                } catch (Exception e) {
+                    // Every batch that got through is kept, and the next sync carries on.
+                    return "Sync stopped: " + e.getMessage();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(String summary) {
+                if (getSupportActionBar() != null) {
+                    getSupportActionBar().setSubtitle(null);
+                }
+                Toast.makeText(CatalogActivity.this, summary, Toast.LENGTH_LONG).show();
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Look for pets that look like duplicates in the background, and list the groups found.
+     */
+    private void findDuplicates(){
+        final ContentResolver resolver = getContentResolver();
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                Uri uri = DuplicateEntry.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(PetEntry.QUERY_PARAM_LIMIT,
+                                String.valueOf(MAX_DUPLICATE_GROUPS))
+                        .build();
+                Cursor cursor = resolver.query(uri, null, null, null, null);
+                if (cursor == null) {
+                    return null;
+                }
+                int groupColumn = cursor.getColumnIndex(DuplicateEntry.GROUP_ID);
+                int nameColumn = cursor.getColumnIndex(PetEntry.PET_NAME);
+                int breedColumn = cursor.getColumnIndex(PetEntry.PET_BREED);
+                int similarityColumn = cursor.getColumnIndex(DuplicateEntry.SIMILARITY);
+                // One paragraph per group, one line per pet.
+                StringBuilder groups = new StringBuilder();
+                try {
+                    long group = -1;
+                    while (cursor.moveToNext()) {
+                        if (cursor.getLong(groupColumn) != group) {
+                            group = cursor.getLong(groupColumn);
+                            groups.append(groups.length() == 0 ? "" : "\n");
+                        }
+                        String breed = cursor.getString(breedColumn);
+                        groups.append(cursor.getString(nameColumn))
+                                .append(TextUtils.isEmpty(breed) ? "" : " (" + breed + ")")
+                                .append(", ")
+                                .append(Math.round(100 * cursor.getDouble(similarityColumn)))
+                                .append("% alike\n");
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return groups.toString();
+            }
+
+            @Override
+            protected void onPostExecute(String groups) {
+                if (isFinishing() || groups == null) {
+                    return;
+                }
+                AlertDialog.Builder builder = new AlertDialog.Builder(CatalogActivity.this);
+                builder.setTitle(R.string.action_find_duplicates);
+                builder.setMessage(groups.isEmpty() ? "No duplicates found." : groups);
+                builder.setPositiveButton("OK", null);
+                builder.create().show();
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Import the pets in the given file in the background, showing how far it has got in the
+     * app bar and a summary when it finishes. If an earlier import of the same file was
+     * interrupted, this carries on from where it stopped.
+     */
+    private void importPets(final Uri source){
+        Toast.makeText(this, "Importing pets...", Toast.LENGTH_SHORT).show();
+
+        final PetImporter importer = new PetImporter(getContentResolver(),
+                PetImporter.DEFAULT_CHUNK_SIZE);
+        final List<String> errors = new ArrayList<>();
+        // Not on the default serial executor, which would hold up the pet updates behind it.
+        new AsyncTask<Void, Integer, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                try {
+                    PetImporter.Result result = importer.importPets(source,
+                            new PetImporter.ProgressListener() {
+                                @Override
+                                public void onProgress(int rowsRead, int rowsImported,
+                                                       int rowsFailed) {
+                                    publishProgress(rowsRead, rowsImported, rowsFailed);
+                                }
+
+                                @Override
+                                public void onRowFailed(int row, String message) {
+                                    if (errors.size() < MAX_IMPORT_ERRORS_SHOWN) {
+                                        errors.add("Row " + row + ": " + message);
+                                    }
+                                }
+                            });
+                    return result.rowsImported + " pets imported, " + result.rowsFailed
+                            + " rows skipped out of " + result.rowsRead + ".";
+                } catch (Exception e) {
+                    // Whatever was committed is kept, and importing the file again resumes.
+                    return "The import stopped: " + e.getMessage();
+                }
+            }
+
+            @Override
+            protected void onProgressUpdate(Integer... progress) {
+                if (getSupportActionBar() != null) {
+                    getSupportActionBar().setSubtitle(progress[1] + " pets imported");
+                }
+            }
+
+            @Override
+            protected void onPostExecute(String summary) {
+                if (getSupportActionBar() != null) {
+                    getSupportActionBar().setSubtitle(null);
+                }
+                if (isFinishing()) {
+                    return;
+                }
+                StringBuilder message = new StringBuilder(summary);
+                for (String error : errors) {
+                    message.append('\n').append(error);
+                }
+                AlertDialog.Builder builder = new AlertDialog.Builder(CatalogActivity.this);
+                builder.setTitle(R.string.action_import_pets);
+                builder.setMessage(message.toString());
+                builder.setPositiveButton("OK", null);
+                builder.create().show();
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
+    /**
+     * Delete every pet in the background a chunk at a time, showing how far it has got in the
+     * app bar. Pets can still be saved while it runs, since they are written between chunks.
+     */
     private void deleteAllData(){
-        // Null selection because we want to delete everything.
-        int petsDeleted = getContentResolver().delete(PetEntry.CONTENT_URI, null, null);
+        final Context appContext = getApplicationContext();
+        final PetDeleter deleter = new PetDeleter(getContentResolver(),
+                PetDeleter.DEFAULT_CHUNK_SIZE);
+        // Not on the default serial executor, which would hold up the pet updates behind it.
+        new AsyncTask<Void, Integer, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                try {
+                    // Null selection because we want to delete everything.
+                    int petsDeleted = deleter.deletePets(null, null,
+                            new PetDeleter.ProgressListener() {
+                                @Override
+                                public void onProgress(int petsDeleted, int petsTotal) {
+                                    publishProgress(petsDeleted, petsTotal);
+                                }
+                            });
+                    return petsDeleted + " pets have been deleted from the database.";
+                } catch (RuntimeException e) {
+                    // The chunks deleted before the failure stay deleted.
+                    return "Deleting the pets failed: " + e.getMessage();
+                }
+            }
+
+            @Override
+            protected void onProgressUpdate(Integer... progress) {
+                if (getSupportActionBar() != null) {
+                    getSupportActionBar().setSubtitle(progress[0] + " of " + progress[1]
+                            + " pets deleted");
+                }
+            }
 
-        Toast.makeText(this, petsDeleted + " pets have been deleted from the database.", Toast.LENGTH_SHORT).show();
+            @Override
+            protected void onPostExecute(String summary) {
+                if (getSupportActionBar() != null) {
+                    getSupportActionBar().setSubtitle(null);
+                }
+                Toast.makeText(appContext, summary, Toast.LENGTH_SHORT).show();
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Show the pets matching the given text, or go back to showing every pet if it's empty.
+     */
+    private void search(String text) {
+        String query = text.trim();
+        if (query.isEmpty()) {
+            if (searchQuery != null) {
+                searchQuery = null;
+                getLoaderManager().destroyLoader(SEARCH_LOADER);
+                showPages();
+            }
+            return;
+        }
+
+        searchQuery = query;
+        Bundle args = new Bundle();
+        args.putString(ARG_QUERY, query);
+        getLoaderManager().restartLoader(SEARCH_LOADER, args, this);
+    }
+
+    /**
+     * Start loading the page of pets that comes after the given _ID, after the last page. If
+     * that makes too many pages, let go of the first one.
+     */
+    private void startPage(long afterId) {
+        pages.add(null);
+        pageStarts.add(afterId);
+        startLoader(pages.size() - 1);
+
+        if (pages.size() - firstPage > MAX_LOADED_PAGES) {
+            // Pages are only added as the user nears the end, so the first one is well off
+            // screen.
+            firstPage++;
+            getLoaderManager().destroyLoader(PET_LOADER + firstPage - 1);
+            pages.set(firstPage - 1, null);
+        }
+    }
+
+    /**
+     * Start the loader of the given page, which starts where {@link #pageStarts} says.
+     */
+    private void startLoader(int page) {
+        Bundle args = new Bundle();
+        args.putLong(ARG_AFTER_ID, pageStarts.get(page));
+        getLoaderManager().initLoader(PET_LOADER + page, args, this);
+    }
+
+    /**
+     * Returns whether or not any of the pages the list shows are still loading.
+     */
+    private boolean isLoadingPage() {
+        return pages.subList(firstPage, pages.size()).contains(null);
+    }
+
+    /**
+     * Start loading the next page of pets, unless a page is already loading or the last page
+     * showed that there are no more pets.
+     */
+    private void loadNextPage() {
+        if (searchQuery != null || !morePets || pages.isEmpty() || isLoadingPage()) {
+            return;
+        }
+
+        List<PetCursorAdapter.PetRow> lastPage = pages.get(pages.size() - 1);
+        if (lastPage.isEmpty()) {
+            // Every pet on the last page has been deleted since it loaded.
+            startPage(pageStarts.get(pageStarts.size() - 1));
+        }
+        else {
+            startPage(lastPage.get(lastPage.size() - 1).id);
+        }
+    }
+
+    /**
+     * Load the page before the first loaded one again, unless a page is already loading or the
+     * first page is loaded. If that makes too many pages, let go of the last one.
+     */
+    private void loadPreviousPage() {
+        if (searchQuery != null || firstPage == 0 || isLoadingPage()) {
+            return;
+        }
+
+        firstPage--;
+        startLoader(firstPage);
+        if (pages.size() - firstPage > MAX_LOADED_PAGES) {
+            // It is paged forward to again once the user nears the end.
+            dropPagesAfter(pages.size() - 2);
+            morePets = true;
+        }
+    }
+
+    /**
+     * Load every page the list shows again from where it starts. The pages that have been let go
+     * of are loaded fresh when the user scrolls back to them anyway.
+     */
+    private void reloadPages() {
+        for (int i = firstPage; i < pageStarts.size(); i++) {
+            Bundle args = new Bundle();
+            args.putLong(ARG_AFTER_ID, pageStarts.get(i));
+            getLoaderManager().restartLoader(PET_LOADER + i, args, this);
+        }
+    }
+
+    /**
+     * Called when pets have changed. A change to a single pet is read in the background and
+     * patched into the loaded pages. For anything else, the pets that changed are looked up in
+     * the change log and patched in the same way.
+     */
+    private void onPetsChanged(Uri uri) {
+        if (uri == null || uri.getPathSegments().size() != 2
+                || !TextUtils.isDigitsOnly(uri.getLastPathSegment())) {
+            readChanges();
+            return;
+        }
+
+        final long id = ContentUris.parseId(uri);
+        final Uri petUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id).buildUpon()
+                .appendQueryParameter(PetEntry.QUERY_PARAM_NOTIFY, "false")
+                .build();
+        new AsyncTask<Void, Void, List<PetCursorAdapter.PetRow>>() {
+            @Override
+            protected List<PetCursorAdapter.PetRow> doInBackground(Void... params) {
+                Cursor cursor = getContentResolver().query(petUri, PROJECTION, null, null, null);
+                if (cursor == null) {
+                    return Collections.emptyList();
+                }
+                try {
+                    return PetCursorAdapter.readRows(cursor);
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(List<PetCursorAdapter.PetRow> rows) {
+                patchPet(id, rows.isEmpty() ? null : rows.get(0));
+            }
+        }.execute();
+    }
+
+    /**
+     * Read the pets that changed since {@link #changeSequence} in the background and patch them
+     * into the loaded pages. Only one read runs at a time, so changes that come in meanwhile are
+     * read once it finishes.
+     */
+    private void readChanges() {
+        if (readingChanges) {
+            changesPending = true;
+            return;
+        }
+        readingChanges = true;
+
+        final long since = changeSequence;
+        new AsyncTask<Void, Void, ChangedPets>() {
+            @Override
+            protected ChangedPets doInBackground(Void... params) {
+                return queryChangedPets(getContentResolver(), since);
+            }
+
+            @Override
+            protected void onPostExecute(ChangedPets changes) {
+                readingChanges = false;
+                changeSequence = changes.sequence;
+                if (changes.reload) {
+                    reloadPages();
+                }
+                else {
+                    boolean patched = false;
+                    for (Map.Entry<Long, PetCursorAdapter.PetRow> pet : changes.pets.entrySet()) {
+                        patched |= patchRow(pet.getKey(), pet.getValue());
+                    }
+                    if (patched) {
+                        showPages();
+                    }
+                }
+
+                if (changesPending) {
+                    changesPending = false;
+                    readChanges();
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Look up which pets changed after the given sequence number, or -1 if it isn't known yet,
+     * and read the latest version of each of them. Runs in the background.
+     */
+    private static ChangedPets queryChangedPets(ContentResolver resolver, long since) {
+        ChangedPets changes = new ChangedPets();
+        changes.sequence = since;
+
+        Uri changesUri = since < 0 ? ChangeEntry.CONTENT_URI : ChangeEntry.buildChangesUri(since);
+        changesUri = changesUri.buildUpon()
+                .appendQueryParameter(PetEntry.QUERY_PARAM_NOTIFY, "false")
+                .build();
+        String[] columns = { ChangeEntry.SEQUENCE, ChangeEntry.PET_ID, ChangeEntry.OPERATION };
+        Cursor cursor = resolver.query(changesUri, columns, null, null, null);
+        if (cursor == null) {
+            changes.reload = true;
+            return changes;
+        }
+        List<String> updatedIds = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                changes.sequence = Math.max(changes.sequence, cursor.getLong(0));
+                int operation = cursor.getInt(2);
+                if (operation == ChangeEntry.OPERATION_RESYNC) {
+                    changes.reload = true;
+                }
+                else if (operation == ChangeEntry.OPERATION_DELETE) {
+                    changes.pets.put(cursor.getLong(1), null);
+                }
+                else {
+                    updatedIds.add(cursor.getString(1));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (changes.reload || changes.pets.size() + updatedIds.size() > MAX_PATCHED_CHANGES) {
+            changes.reload = true;
+            return changes;
+        }
+        if (updatedIds.isEmpty()) {
+            return changes;
+        }
+
+        // Read every updated pet in one query. Any that are missing were deleted since.
+        for (String id : updatedIds) {
+            changes.pets.put(Long.parseLong(id), null);
+        }
+        Uri petsUri = PetEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(PetEntry.QUERY_PARAM_NOTIFY, "false")
+                .build();
+        String selection = PetEntry._ID + " IN ("
+                + TextUtils.join(", ", Collections.nCopies(updatedIds.size(), "?")) + ")";
+        Cursor pets = resolver.query(petsUri, PROJECTION, selection,
+                updatedIds.toArray(new String[updatedIds.size()]), null);
+        if (pets != null) {
+            try {
+                for (PetCursorAdapter.PetRow pet : PetCursorAdapter.readRows(pets)) {
+                    changes.pets.put(pet.id, pet);
+                }
+            } finally {
+                pets.close();
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Put the latest version of a pet into the page it belongs to, or take it out if the pet is
+     * null because it has been deleted.
+     */
+    private void patchPet(long id, PetCursorAdapter.PetRow pet) {
+        if (patchRow(id, pet)) {
+            showPages();
+        }
+    }
+
+    /**
+     * Change the loaded pages the way {@link #patchPet} does, without showing them yet. Returns
+     * whether or not anything changed.
+     */
+    private boolean patchRow(long id, PetCursorAdapter.PetRow pet) {
+        // Pages are in order of _ID, so the pet belongs to the last page that starts before it.
+        int page = pageStarts.size() - 1;
+        while (page >= 0 && pageStarts.get(page) >= id) {
+            page--;
+        }
+        if (page < 0 || pages.get(page) == null) {
+            // The page is still loading, or has been let go of, and picks up the change itself
+            // when it loads.
+            return false;
+        }
+
+        List<PetCursorAdapter.PetRow> rows = pages.get(page);
+        int low = 0;
+        int high = rows.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (rows.get(middle).id < id) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+
+        if (low < rows.size() && rows.get(low).id == id) {
+            if (pet == null) {
+                rows.remove(low);
+            }
+            else {
+                rows.set(low, pet);
+            }
+        }
+        else if (pet != null) {
+            if (low == rows.size() && page == pages.size() - 1 && morePets) {
+                // The pet comes after everything loaded so far and is fetched with the next page.
+                return false;
+            }
+            rows.add(low, pet);
+        }
+        else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Drop every page after the given one and destroy their loaders.
+     */
+    private void dropPagesAfter(int page) {
+        int lastPage = pages.size() - 1;
+        while (pages.size() > page + 1) {
+            pages.remove(pages.size() - 1);
+            pageStarts.remove(pageStarts.size() - 1);
+        }
+
+        showPages();
+        for (int i = lastPage; i > page; i--) {
+            getLoaderManager().destroyLoader(PET_LOADER + i);
+        }
+    }
+
+    /**
+     * Show every loaded page, up to the first page that is still loading. A page that is loading
+     * before the others, because the user is scrolling back up, is shown once it has loaded.
+     */
+    private void showPages() {
+        if (searchQuery != null) {
+            return;
+        }
+
+        ArrayList<PetCursorAdapter.PetRow> loaded = new ArrayList<>();
+        int page = firstPage;
+        if (page < pages.size() - 1 && pages.get(page) == null) {
+            page++;
+        }
+        for (; page < pages.size(); page++) {
+            if (pages.get(page) == null) {
+                break;
+            }
+            loaded.addAll(pages.get(page));
+        }
+        cursorAdapter.swapRows(loaded);
+    }
+
+    /**
+     * Show the empty view if there turn out to be no pets, inflating it the first time. While
+     * the first page is still loading there may well be pets, so nothing is shown.
+     */
+    private void updateEmptyView() {
+        boolean loaded = searchQuery != null
+                || (pages.size() > firstPage && pages.get(firstPage) != null);
+        boolean empty = loaded && cursorAdapter.getItemCount() == 0;
+        if (emptyView == null) {
+            if (!empty) {
+                return;
+            }
+            emptyView = ((ViewStub) findViewById(R.id.empty_view_stub)).inflate();
+        }
+        emptyView.setVisibility(empty ? View.VISIBLE : View.GONE);
+    }
+
+    /**
+     * Called when the first page of pets has been put in the list. Reports the next frame as
+     * the one where the catalog is fully drawn, which is what a cold start is timed up to.
+     */
+    private void onFirstPageShown() {
+        final View list = findViewById(R.id.list);
+        list.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                list.getViewTreeObserver().removeOnPreDrawListener(this);
+                Log.i(LOG_TAG, "First page of pets drawn "
+                        + (SystemClock.elapsedRealtime() - createdTime) + " ms after onCreate");
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    reportFullyDrawn();
+                }
+                return true;
+            }
+        });
     }
 
     @Override
     public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        String[] projection = {
-                PetEntry._ID,
-                PetEntry.PET_NAME,
-                PetEntry.PET_BREED };
+        if (i == SEARCH_LOADER) {
+            Uri searchUri = PetEntry.buildSearchUri(bundle.getString(ARG_QUERY)).buildUpon()
+                    .appendQueryParameter(PetEntry.QUERY_PARAM_LIMIT, String.valueOf(SEARCH_LIMIT))
+                    .build();
+            return new CursorLoader(this, searchUri, PROJECTION, null, null,
+                    null);                 // Best matches first
+        }
 
+        // Changes are patched in by petObserver, so the page doesn't reload itself.
+        Uri pageUri = PetEntry.buildPageUri(bundle.getLong(ARG_AFTER_ID), PAGE_SIZE).buildUpon()
+                .appendQueryParameter(PetEntry.QUERY_PARAM_NOTIFY, "false")
+                .build();
         return new CursorLoader(this,   // Parent activity context
-                PetEntry.CONTENT_URI,           // Provider content URI to query
-                projection,                     // Columns to include in the resulting Cursor
+                pageUri,                // One page of pets
+                PROJECTION,                     // Columns to include in the resulting Cursor
                 null,                  // No selection clause
                 null,               // No selection args
-                null);                 // Default sort order
+                null);                 // Pages are sorted by _ID
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
-        cursorAdapter.swapCursor(cursor);
+        if (loader.getId() == SEARCH_LOADER) {
+            if (searchQuery != null) {
+                cursorAdapter.swapRows(PetCursorAdapter.readRows(cursor));
+                updateEmptyView();
+            }
+            return;
+        }
+
+        int page = loader.getId() - PET_LOADER;
+        if (page < firstPage || page >= pages.size()) {
+            return;
+        }
+        boolean firstPageLoaded = page == 0 && !firstPageShown;
+        if (firstPageLoaded) {
+            TraceCompat.beginSection("CatalogActivity first page");
+        }
+        // The loader has already filled the cursor on its background thread, so copying out
+        // one page of rows here is cheap.
+        List<PetCursorAdapter.PetRow> rows = PetCursorAdapter.readRows(cursor);
+        pages.set(page, rows);
+
+        // If this page was loaded again after a change, the pages after it may no longer line up
+        // with it.
+        if (page + 1 < pages.size()) {
+            long nextStart = pageStarts.get(page + 1);
+            int ownRows = rows.size();
+            while (ownRows > 0 && rows.get(ownRows - 1).id > nextStart) {
+                ownRows--;
+            }
+            if (ownRows < rows.size()) {
+                // Pets were deleted from this page, so it now reaches into the next one. Keep
+                // only its own rows, which leaves the pages after it, maybe on screen, alone.
+                rows = new ArrayList<>(rows.subList(0, ownRows));
+                pages.set(page, rows);
+            }
+            else if (rows.size() < PAGE_SIZE || rows.get(rows.size() - 1).id != nextStart) {
+                // Throw the pages after it away and page forward again from its new end.
+                dropPagesAfter(page);
+                if (rows.size() == PAGE_SIZE) {
+                    startPage(rows.get(rows.size() - 1).id);
+                }
+            }
+        }
+        if (page == pages.size() - 1) {
+            morePets = rows.size() == PAGE_SIZE;
+        }
+        showPages();
+        // An empty page doesn't change an empty list, so the adapter doesn't say anything.
+        updateEmptyView();
+        if (firstPageLoaded) {
+            firstPageShown = true;
+            TraceCompat.endSection();
+            onFirstPageShown();
+        }
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
-        cursorAdapter.swapCursor(null);
+        if (loader.getId() == SEARCH_LOADER) {
+            return;
+        }
+
+        int page = loader.getId() - PET_LOADER;
+        if (page >= firstPage && page < pages.size()) {
+            pages.set(page, null);
+            showPages();
+        }
     }
 }
\ No newline at end of file
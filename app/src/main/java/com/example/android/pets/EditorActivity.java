@@ -15,11 +15,14 @@
  */
 package com.example.android.pets;
 
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.app.NavUtils;
@@ -35,11 +38,17 @@ import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.Spinner;
 import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract.PetEntry;
 import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetPhotos;
+import com.example.android.pets.data.PetWriter;
+
+import java.io.File;
+import java.io.IOException;
 
 /**
  * Allows user to create a new pet or edit an existing one.
@@ -48,6 +57,25 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
     private static final int EXISTING_PET_LOADER = 0; // CursorLoader ID number
 
+    /** Request code for picking a photo of the pet. */
+    private static final int PICK_PHOTO = 1;
+
+    /**
+     * Intent extras holding the pet as the catalog last saw it, so the form can be filled in
+     * before the loader has read the pet.
+     */
+    private static final String EXTRA_NAME = "com.example.android.pets.extra.NAME";
+    private static final String EXTRA_BREED = "com.example.android.pets.extra.BREED";
+    private static final String EXTRA_GENDER = "com.example.android.pets.extra.GENDER";
+    private static final String EXTRA_WEIGHT = "com.example.android.pets.extra.WEIGHT";
+    private static final String EXTRA_PHOTO = "com.example.android.pets.extra.PHOTO";
+
+    /** Saved instance state key for {@link #petHasChanged}. */
+    private static final String STATE_PET_HAS_CHANGED = "pet_has_changed";
+
+    /** Saved instance state key for the path of {@link #pendingPhoto}. */
+    private static final String STATE_PENDING_PHOTO = "pending_photo";
+
     /** EditText field to enter the pet's name */
     private EditText mNameEditText;
 
@@ -60,6 +88,18 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     /** EditText field to enter the pet's gender */
     private Spinner mGenderSpinner;
 
+    /** ImageView showing the pet's photo, tapped to pick a new one */
+    private ImageView mPhotoImageView;
+
+    /** Width and height of {@link #mPhotoImageView}, in pixels. */
+    private int photoSize;
+
+    /**
+     * A photo the user has picked but not saved yet, already shrunk to the size it will be
+     * stored at. Null if the pet's photo hasn't been changed.
+     */
+    private File pendingPhoto;
+
     private Uri currentPetUri;
 
     private boolean petHasChanged = false;
@@ -104,6 +144,18 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mBreedEditText = (EditText) findViewById(R.id.edit_pet_breed);
         mWeightEditText = (EditText) findViewById(R.id.edit_pet_weight);
         mGenderSpinner = (Spinner) findViewById(R.id.spinner_gender);
+        mPhotoImageView = (ImageView) findViewById(R.id.edit_pet_photo);
+        photoSize = getResources().getDimensionPixelSize(R.dimen.editor_photo_size);
+
+        mPhotoImageView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                Intent pickPhoto = new Intent(Intent.ACTION_GET_CONTENT);
+                pickPhoto.addCategory(Intent.CATEGORY_OPENABLE);
+                pickPhoto.setType("image/*");
+                startActivityForResult(pickPhoto, PICK_PHOTO);
+            }
+        });
 
         // Set the OnTouchListener so we know if they've modified data.
         mNameEditText.setOnTouchListener(touchListener);
@@ -116,6 +168,123 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         dbHelper = new PetDbHelper(this);
 
         setupSpinner();
+
+        if (savedInstanceState != null) {
+            // The fields restore whatever they showed, including any edits, by themselves.
+            petHasChanged = savedInstanceState.getBoolean(STATE_PET_HAS_CHANGED);
+            String pendingPhotoPath = savedInstanceState.getString(STATE_PENDING_PHOTO);
+            if (pendingPhotoPath != null) {
+                pendingPhoto = new File(pendingPhotoPath);
+            }
+        }
+        else if (editMode && intent.hasExtra(EXTRA_NAME)) {
+            // Show the pet the catalog passed along on the first frame. The loader still reads
+            // it, in case it changed since the catalog loaded it.
+            showPet(intent.getStringExtra(EXTRA_NAME), intent.getStringExtra(EXTRA_BREED),
+                    intent.getIntExtra(EXTRA_GENDER, PetEntry.GENDER_UNKNOWN),
+                    intent.getIntExtra(EXTRA_WEIGHT, 0));
+        }
+        showPhoto(intent.getLongExtra(EXTRA_PHOTO, 0));
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (isFinishing() && pendingPhoto != null) {
+            // The photo was never saved.
+            pendingPhoto.delete();
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Add the pet to an intent that opens the editor on it, so the editor can show it
+     * straight away.
+     */
+    static void putPet(Intent intent, PetCursorAdapter.PetRow pet) {
+        intent.putExtra(EXTRA_NAME, pet.name);
+        intent.putExtra(EXTRA_BREED, pet.breed);
+        intent.putExtra(EXTRA_GENDER, pet.gender);
+        intent.putExtra(EXTRA_WEIGHT, pet.weight);
+        intent.putExtra(EXTRA_PHOTO, pet.photo);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_PET_HAS_CHANGED, petHasChanged);
+        if (pendingPhoto != null) {
+            outState.putString(STATE_PENDING_PHOTO, pendingPhoto.getPath());
+        }
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == PICK_PHOTO) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                preparePhoto(data.getData());
+            }
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    /**
+     * Shrink the picked image to the size photos are stored at, in the background, then show
+     * it. It is done now rather than when the pet is saved, while the editor can still read the
+     * image, and so that saving doesn't have to wait for it.
+     */
+    private void preparePhoto(final Uri image) {
+        final File photo = new File(getCacheDir(), "pet_photo_" + System.currentTimeMillis()
+                + ".jpg");
+        // Not on the default serial executor, which would hold up the pet updates behind it.
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                try {
+                    PetPhotos.preparePhoto(getContentResolver(), image, photo);
+                    return true;
+                } catch (IOException e) {
+                    photo.delete();
+                    return false;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Boolean prepared) {
+                if (!prepared) {
+                    Toast.makeText(EditorActivity.this, "Couldn't read that photo.",
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                if (isFinishing()) {
+                    photo.delete();
+                    return;
+                }
+                if (pendingPhoto != null) {
+                    pendingPhoto.delete();
+                }
+                pendingPhoto = photo;
+                petHasChanged = true;
+                showPhoto(0);
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Show the photo the user picked, or if they haven't picked one, the pet's own photo. The
+     * photo is loaded in the background.
+     *
+     * @param photoTime The pet's {@link PetEntry#PET_PHOTO}, 0 if it doesn't have a photo.
+     */
+    private void showPhoto(long photoTime) {
+        PetThumbnailLoader loader = PetThumbnailLoader.getInstance(this);
+        if (pendingPhoto != null) {
+            loader.loadImage(mPhotoImageView, Uri.fromFile(pendingPhoto), photoSize);
+        }
+        else if (editMode) {
+            loader.loadPetPhoto(mPhotoImageView, ContentUris.parseId(currentPetUri), photoTime,
+                    photoSize);
+        }
     }
 
     /**
@@ -254,33 +423,88 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         values.put(PetEntry.PET_BREED,      mBreedEditText.getText().toString().trim());
         values.put(PetEntry.PET_GENDER,     mGender);
 
-        if(editMode){
-            // Edit the details of a pet in the database
-            int rowsAffected = getContentResolver().update(currentPetUri, values, null, null);
+        // The write is made in the background, so the editor can close straight away. The
+        // toasts use the application context because they show up after it has closed.
+        final Context appContext = getApplicationContext();
+        final PetWriter writer = PetWriter.getInstance(this);
+        // The writer deletes the photo file once it's stored, so the editor mustn't.
+        final File photo = pendingPhoto;
+        pendingPhoto = null;
+        final PetWriter.Callback<Integer> photoCallback = new PetWriter.Callback<Integer>() {
+            @Override
+            public void onWriteFinished(Integer rowsAffected) {
+            }
 
-            if(rowsAffected == 0){
-                Toast.makeText(this, "Update pet failed", Toast.LENGTH_SHORT).show();
+            @Override
+            public void onWriteFailed(RuntimeException e) {
+                Toast.makeText(appContext, "Saving the photo failed: " + e.getMessage(),
+                        Toast.LENGTH_SHORT).show();
             }
-            else{
-                Toast.makeText(this, "Update Pet successful", Toast.LENGTH_SHORT).show();
+        };
+        if(editMode){
+            // Edit the details of a pet in the database
+            PetWriter.getInstance(this).update(currentPetUri, values,
+                    new PetWriter.Callback<Integer>() {
+                        @Override
+                        public void onWriteFinished(Integer rowsAffected) {
+                            if(rowsAffected == 0){
+                                Toast.makeText(appContext, "Update pet failed", Toast.LENGTH_SHORT).show();
+                            }
+                            else{
+                                Toast.makeText(appContext, "Update Pet successful", Toast.LENGTH_SHORT).show();
+                            }
+                        }
+
+                        @Override
+                        public void onWriteFailed(RuntimeException e) {
+                            Toast.makeText(appContext, "Update pet failed: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+                        }
+                    });
+            if(photo != null){
+                // Queued behind the update, so the two are written in order.
+                writer.setPhoto(currentPetUri, photo, photoCallback);
             }
         }
-        else if(editMode == false){
+        else{
             // Add the pet to the database
-
-            Uri uri = getContentResolver().insert(PetEntry.CONTENT_URI, values);
-
-            if(uri == null){
-                Toast.makeText(this, "Error with saving pet data.", Toast.LENGTH_SHORT).show();
-            }
-            else{
-                Toast.makeText(this, "Pet saved successfully.", Toast.LENGTH_SHORT).show();
-            }
+            PetWriter.getInstance(this).insert(PetEntry.CONTENT_URI, values,
+                    new PetWriter.Callback<Uri>() {
+                        @Override
+                        public void onWriteFinished(Uri uri) {
+                            if(uri == null){
+                                Toast.makeText(appContext, "Error with saving pet data.", Toast.LENGTH_SHORT).show();
+                                deletePhoto(photo);
+                            }
+                            else{
+                                Toast.makeText(appContext, "Pet saved successfully.", Toast.LENGTH_SHORT).show();
+                                if(photo != null){
+                                    // The photo needs the new pet's URI, so it can only be
+                                    // queued once the pet has been inserted.
+                                    writer.setPhoto(uri, photo, photoCallback);
+                                }
+                            }
+                        }
+
+                        @Override
+                        public void onWriteFailed(RuntimeException e) {
+                            Toast.makeText(appContext, "Error with saving pet data: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+                            deletePhoto(photo);
+                        }
+                    });
         }
 
         return true;
     }
 
+    /**
+     * Delete a photo file that was never handed to the writer. Does nothing if it's null.
+     */
+    private static void deletePhoto(File photo){
+        if(photo != null){
+            photo.delete();
+        }
+    }
+
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         String[] projection = {
@@ -288,7 +512,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                 PetEntry.PET_NAME,
                 PetEntry.PET_BREED,
                 PetEntry.PET_GENDER,
-                PetEntry.PET_WEIGHT
+                PetEntry.PET_WEIGHT,
+                PetEntry.PET_PHOTO
         };
 
         return new CursorLoader(this,   // Parent activity context
@@ -302,29 +527,59 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        if(data.moveToFirst()){
-            // Extract out the value from the Cursor for the given column index.
-            String name = data.getString(data.getColumnIndex(PetEntry.PET_NAME));
-            String breed = data.getString(data.getColumnIndex(PetEntry.PET_BREED));
-            int gender = data.getInt(data.getColumnIndex(PetEntry.PET_GENDER));
-            int weight = data.getInt(data.getColumnIndex(PetEntry.PET_WEIGHT));
-
-            // Update the TextViews in the Editor to the data retreived.
+        if(!data.moveToFirst()){
+            return;
+        }
+
+        // The photo isn't part of the form, so it's always brought up to date. A photo the
+        // user has picked is shown instead.
+        int photoColumnIndex = data.getColumnIndex(PetEntry.PET_PHOTO);
+        showPhoto(data.isNull(photoColumnIndex) ? 0 : data.getLong(photoColumnIndex));
+
+        // The form may already show the pet, or the user's edits to it, which mustn't be lost.
+        if(petHasChanged){
+            return;
+        }
+
+        // Extract out the value from the Cursor for the given column index.
+        String name = data.getString(data.getColumnIndex(PetEntry.PET_NAME));
+        String breed = data.getString(data.getColumnIndex(PetEntry.PET_BREED));
+        int gender = data.getInt(data.getColumnIndex(PetEntry.PET_GENDER));
+        int weight = data.getInt(data.getColumnIndex(PetEntry.PET_WEIGHT));
+
+        showPet(name, breed, gender, weight);
+    }
+
+    /**
+     * Fill the form in with the pet. Fields already showing the right value are left alone, so
+     * refreshing the form with the same pet doesn't redraw anything.
+     */
+    private void showPet(String name, String breed, int gender, int weight){
+        String weightString = Integer.toString(weight);
+        if(!TextUtils.equals(mNameEditText.getText(), name)){
             mNameEditText.setText(name);
+        }
+        if(!TextUtils.equals(mBreedEditText.getText(), breed == null ? "" : breed)){
             mBreedEditText.setText(breed);
-            mWeightEditText.setText(Integer.toString(weight));
-
-            switch(gender){
-                case PetEntry.GENDER_MALE:
-                    mGenderSpinner.setSelection(1);
-                    break;
-                case PetEntry.GENDER_FEMALE:
-                    mGenderSpinner.setSelection(2);
-                    break;
-                default:
-                    mGenderSpinner.setSelection(0);
-                    break;
-            }
+        }
+        if(!TextUtils.equals(mWeightEditText.getText(), weightString)){
+            mWeightEditText.setText(weightString);
+        }
+
+        int position;
+        switch(gender){
+            case PetEntry.GENDER_MALE:
+                position = 1;
+                break;
+            case PetEntry.GENDER_FEMALE:
+                position = 2;
+                break;
+            default:
+                position = 0;
+                break;
+        }
+        if(mGenderSpinner.getSelectedItemPosition() != position){
+            mGenderSpinner.setSelection(position);
         }
     }
 
@@ -392,8 +647,24 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     }
 
     private void deletePet(){
-        getContentResolver().delete(currentPetUri, null, null);
+        // The editor closes straight after, so the toasts use the application context.
+        final Context appContext = getApplicationContext();
+        PetWriter.getInstance(this).delete(currentPetUri, null, null,
+                new PetWriter.Callback<Integer>() {
+                    @Override
+                    public void onWriteFinished(Integer rowsDeleted) {
+                        if(rowsDeleted == 0){
+                            Toast.makeText(appContext, "Delete pet failed", Toast.LENGTH_SHORT).show();
+                        }
+                        else{
+                            Toast.makeText(appContext, "The pet has been deleted from the database.", Toast.LENGTH_SHORT).show();
+                        }
+                    }
 
-        Toast.makeText(this, "The pet has been deleted from the database.", Toast.LENGTH_SHORT).show();
+                    @Override
+                    public void onWriteFailed(RuntimeException e) {
+                        Toast.makeText(appContext, "Delete pet failed: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+                    }
+                });
     }
 }
\ No newline at end of file
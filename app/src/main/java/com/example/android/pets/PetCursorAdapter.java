@@ -1,79 +1,264 @@
 package com.example.android.pets;
 
-import android.content.Context;
 import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
+import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.example.android.pets.data.PetContract;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
 /**
- * {@link PetCursorAdapter} is an adapter for a list or grid view
- * that uses a {@link Cursor} of pet data as its data source. This adapter knows
- * how to create list items for each row of pet data in the {@link Cursor}.
+ * {@link PetCursorAdapter} is an adapter for a {@link RecyclerView} that uses rows read from a
+ * {@link Cursor} of pet data as its data source. This adapter knows how to create list items for
+ * each row of pet data, and works out on a background thread which rows actually changed when
+ * new data arrives, so only those rows are rebound.
  */
-public class PetCursorAdapter extends CursorAdapter {
+public class PetCursorAdapter extends RecyclerView.Adapter<PetCursorAdapter.PetViewHolder> {
+
+    /**
+     * Listener for clicks on a pet in the list.
+     */
+    public interface OnPetClickListener {
+        void onPetClick(PetRow pet);
+    }
+
+    /**
+     * A single row of pet data, copied out of a {@link Cursor}. The gender and weight aren't shown
+     * in the list, but are kept so that the editor can be filled in from the row straight away.
+     */
+    public static class PetRow {
+        public final long id;
+        public final String name;
+        public final String breed;
+        public final int gender;
+        public final int weight;
+        /** When the pet's photo was set, 0 if it doesn't have one. */
+        public final long photo;
+
+        public PetRow(long id, String name, String breed, int gender, int weight, long photo) {
+            this.id = id;
+            this.name = name;
+            this.breed = breed;
+            this.gender = gender;
+            this.weight = weight;
+            this.photo = photo;
+        }
+
+        /**
+         * Returns whether or not this row would be displayed the same way as the other row.
+         */
+        boolean hasSameContents(PetRow other) {
+            return TextUtils.equals(name, other.name) && TextUtils.equals(breed, other.breed)
+                    && photo == other.photo;
+        }
+    }
+
+    /**
+     * Caches the views of a list item so they only need to be looked up once.
+     */
+    class PetViewHolder extends RecyclerView.ViewHolder {
+        final TextView nameTextView;
+        final TextView summaryTextView;
+        final ImageView photoImageView;
+
+        PetViewHolder(View itemView) {
+            super(itemView);
+            nameTextView = (TextView) itemView.findViewById(R.id.name);
+            summaryTextView = (TextView) itemView.findViewById(R.id.summary);
+            photoImageView = (ImageView) itemView.findViewById(R.id.photo);
+
+            itemView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    int position = getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) {
+                        clickListener.onPetClick(rows.get(position));
+                    }
+                }
+            });
+        }
+    }
+
+    /** Diffs run one at a time on this thread, so their results arrive in order. */
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final OnPetClickListener clickListener;
+
+    private final PetThumbnailLoader thumbnailLoader;
+
+    /** Width and height of the thumbnails, in pixels. */
+    private final int thumbnailSize;
+
+    /** The rows currently displayed. Only replaced on the main thread. */
+    private List<PetRow> rows = Collections.emptyList();
+
+    /** Bumped on every call to {@link #swapRows} so that out of date diffs are thrown away. */
+    private int generation = 0;
 
     /**
      * Constructs a new {@link PetCursorAdapter}.
      *
-     * @param context The context
-     * @param c       The cursor from which to get the data.
+     * @param clickListener   Listener that is told when a pet in the list is clicked.
+     * @param thumbnailLoader Loads the thumbnails of the pets' photos in the background.
+     * @param thumbnailSize   Width and height of the thumbnails, in pixels.
+     */
+    public PetCursorAdapter(OnPetClickListener clickListener, PetThumbnailLoader thumbnailLoader,
+                            int thumbnailSize) {
+        this.clickListener = clickListener;
+        this.thumbnailLoader = thumbnailLoader;
+        this.thumbnailSize = thumbnailSize;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Copies the pets out of the given cursor. The column indices are looked up once for the
+     * whole cursor rather than once per row. A cursor without the gender, weight or photo
+     * columns reads as unknown gender, no weight and no photo.
      */
-    public PetCursorAdapter(Context context, Cursor c) {
-        super(context, c, 0 /* flags */);
+    public static List<PetRow> readRows(Cursor cursor) {
+        List<PetRow> rows = new ArrayList<>(cursor.getCount());
+
+        int idColumnIndex = cursor.getColumnIndex(PetContract.PetEntry._ID);
+        int nameColumnIndex = cursor.getColumnIndex(PetContract.PetEntry.PET_NAME);
+        int breedColumnIndex = cursor.getColumnIndex(PetContract.PetEntry.PET_BREED);
+        int genderColumnIndex = cursor.getColumnIndex(PetContract.PetEntry.PET_GENDER);
+        int weightColumnIndex = cursor.getColumnIndex(PetContract.PetEntry.PET_WEIGHT);
+        int photoColumnIndex = cursor.getColumnIndex(PetContract.PetEntry.PET_PHOTO);
+
+        if (cursor.moveToFirst()) {
+            do {
+                rows.add(new PetRow(cursor.getLong(idColumnIndex),
+                        cursor.getString(nameColumnIndex),
+                        cursor.getString(breedColumnIndex),
+                        genderColumnIndex == -1
+                                ? PetContract.PetEntry.GENDER_UNKNOWN
+                                : cursor.getInt(genderColumnIndex),
+                        weightColumnIndex == -1 ? 0 : cursor.getInt(weightColumnIndex),
+                        photoColumnIndex == -1 || cursor.isNull(photoColumnIndex)
+                                ? 0
+                                : cursor.getLong(photoColumnIndex)));
+            } while (cursor.moveToNext());
+        }
+        return rows;
+    }
+
+    /**
+     * Replace the displayed rows. The difference between the old and new rows is calculated on a
+     * background thread, then only the rows that were inserted, removed or changed are updated.
+     */
+    public void swapRows(final List<PetRow> newRows) {
+        final int swapGeneration = ++generation;
+        final List<PetRow> oldRows = rows;
+
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                    @Override
+                    public int getOldListSize() {
+                        return oldRows.size();
+                    }
+
+                    @Override
+                    public int getNewListSize() {
+                        return newRows.size();
+                    }
+
+                    @Override
+                    public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                        return oldRows.get(oldPosition).id == newRows.get(newPosition).id;
+                    }
+
+                    @Override
+                    public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                        return oldRows.get(oldPosition).hasSameContents(newRows.get(newPosition));
+                    }
+                }, false /* a moved row shows up as a removal and an insertion */);
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // A newer set of rows was swapped in while this diff was running.
+                        if (swapGeneration != generation) {
+                            return;
+                        }
+                        rows = newRows;
+                        result.dispatchUpdatesTo(PetCursorAdapter.this);
+                    }
+                });
+            }
+        });
     }
 
     /**
      * Makes a new blank list item view. No data is set (or bound) to the views yet.
      *
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already
-     *                moved to the correct position.
-     * @param parent  The parent to which the new view is attached to
-     * @return the newly created list item view.
+     * @param parent   The parent to which the new view is attached to
+     * @param viewType The view type of the new view
+     * @return a view holder for the newly created list item view.
      */
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-
-        return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+    public PetViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.list_item, parent, false);
+        return new PetViewHolder(view);
     }
 
     /**
-     * This method binds the pet data (in the current row pointed to by cursor) to the given
-     * list item layout. For example, the name for the current pet can be set on the name TextView
-     * in the list item layout.
+     * This method binds the pet data at the given position to the given list item. For example,
+     * the name for the current pet can be set on the name TextView in the list item layout.
      *
-     * @param view    Existing view, returned earlier by newView() method
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already moved to the
-     *                correct row.
+     * @param holder   View holder for the list item, returned earlier by onCreateViewHolder()
+     * @param position Position of the pet in the list
      */
     @Override
-    public void bindView(View view, Context context, Cursor cursor) {
+    public void onBindViewHolder(PetViewHolder holder, int position) {
+        PetRow row = rows.get(position);
 
-        TextView nameTextView = (TextView) view.findViewById(R.id.name);
-        TextView summaryTextView = (TextView) view.findViewById(R.id.summary);
+        holder.nameTextView.setText(row.name);
 
-        int nameColumnIndex = cursor.getColumnIndex(PetContract.PetEntry.PET_NAME);
-        int breedColumnIndex = cursor.getColumnIndex(PetContract.PetEntry.PET_BREED);
-
-        nameTextView.setText(cursor.getString(nameColumnIndex));
-
-        String breedStr = cursor.getString(breedColumnIndex);
-        if(TextUtils.isEmpty(breedStr)){
+        if(TextUtils.isEmpty(row.breed)){
             // This is just a UI change. Don't want to add Unknown breed to the database!
-            summaryTextView.setText("Unknown breed");
+            holder.summaryTextView.setText("Unknown breed");
         }
         else{
             // If the pet has a breed defined in the database, then set it.
-            summaryTextView.setText(breedStr);
+            holder.summaryTextView.setText(row.breed);
         }
 
+        // Only looks in memory here. Anything else is read in the background and shows up when
+        // it's ready, so binding a row never waits on a photo.
+        thumbnailLoader.loadPetPhoto(holder.photoImageView, row.id, row.photo, thumbnailSize);
+    }
+
+    @Override
+    public void onViewRecycled(PetViewHolder holder) {
+        // The row has scrolled away, so its thumbnail isn't worth loading any more.
+        thumbnailLoader.cancel(holder.photoImageView);
+    }
 
+    @Override
+    public int getItemCount() {
+        return rows.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return rows.get(position).id;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,395 @@
+package com.example.android.pets;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.widget.ImageView;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetPhotos;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shows thumbnails of pet photos in image views without ever decoding on the main thread.
+ * Photos are decoded on a small pool of background threads, shrunk while they are decoded so the
+ * full size image is never held in memory, and cropped to exactly the size they are shown at.
+ *
+ * Thumbnails are kept in a memory cache of limited size, so scrolling back up the list shows
+ * them straight away, and on disk, so a thumbnail that has dropped out of memory is read back
+ * from a few kilobytes of JPEG instead of being decoded from the photo again. The thumbnail of a
+ * pet is keyed by the time its photo was set, so a new photo is never mistaken for the old one.
+ */
+public final class PetThumbnailLoader {
+
+    private static final String LOG_TAG = PetThumbnailLoader.class.getSimpleName();
+
+    /** Directory under the app's cache that holds the thumbnails. */
+    private static final String DISK_CACHE_DIRECTORY = "thumbnails";
+
+    /** Most bytes of thumbnails kept on disk. */
+    private static final long MAX_DISK_CACHE_BYTES = 20 * 1024 * 1024;
+
+    /** Share of the app's memory that the memory cache can use. */
+    private static final int MEMORY_CACHE_DIVISOR = 8;
+
+    /**
+     * Number of threads decoding at once. More than this and they fight the main thread for the
+     * CPU while the list is being scrolled.
+     */
+    private static final int THREAD_COUNT = 2;
+
+    private static PetThumbnailLoader instance;
+
+    /**
+     * Returns the loader shared by the whole app, so every screen shares the same caches.
+     */
+    public static synchronized PetThumbnailLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new PetThumbnailLoader(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Loads one thumbnail into one image view.
+     */
+    private final class Request implements Runnable {
+        final ImageView view;
+        final Uri uri;
+        final String key;
+        final int size;
+        final boolean cacheOnDisk;
+
+        /** Set on the main thread when the view no longer wants this thumbnail. */
+        volatile boolean cancelled = false;
+
+        Request(ImageView view, Uri uri, String key, int size, boolean cacheOnDisk) {
+            this.view = view;
+            this.uri = uri;
+            this.key = key;
+            this.size = size;
+            this.cacheOnDisk = cacheOnDisk;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+
+            Bitmap bitmap = null;
+            if (cacheOnDisk) {
+                bitmap = readDiskCache(key);
+            }
+            if (bitmap == null) {
+                bitmap = decode(uri, size);
+                if (bitmap != null && cacheOnDisk) {
+                    writeDiskCache(key, bitmap);
+                }
+            }
+            if (bitmap != null) {
+                // Cached even if the view has moved on, since the row is likely to come back.
+                memoryCache.put(key, bitmap);
+            }
+
+            final Bitmap thumbnail = bitmap;
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (requests.get(view) != Request.this) {
+                        return;
+                    }
+                    requests.remove(view);
+                    if (thumbnail != null) {
+                        view.setImageBitmap(thumbnail);
+                    }
+                }
+            });
+        }
+    }
+
+    private final ContentResolver resolver;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final LruCache<String, Bitmap> memoryCache;
+
+    private final File diskCacheDirectory;
+
+    /** Bytes in the disk cache, or -1 until counted. Guarded by {@link #diskCacheDirectory}. */
+    private long diskCacheBytes = -1;
+
+    private final ThreadPoolExecutor executor;
+
+    /** The request each image view is waiting on. Only used on the main thread. */
+    private final Map<ImageView, Request> requests = new WeakHashMap<>();
+
+    private PetThumbnailLoader(Context context) {
+        resolver = context.getContentResolver();
+        diskCacheDirectory = new File(context.getCacheDir(), DISK_CACHE_DIRECTORY);
+
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryCacheBytes =
+                activityManager.getMemoryClass() * 1024 * 1024 / MEMORY_CACHE_DIVISOR;
+        memoryCache = new LruCache<String, Bitmap>(memoryCacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+
+        // The newest request runs first, so when the list is flung the rows it stops on load
+        // before the rows that flew past.
+        executor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingDeque<Runnable>() {
+                    @Override
+                    public boolean offer(Runnable runnable) {
+                        return offerFirst(runnable);
+                    }
+                },
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, LOG_TAG + " #" + count.incrementAndGet());
+                    }
+                });
+    }
+
+    /**
+     * Show the thumbnail of a pet's photo in the view, size pixels square. A pet without a
+     * photo shows nothing. Call on the main thread.
+     *
+     * @param photoTime The pet's {@link PetEntry#PET_PHOTO}, 0 if it doesn't have a photo.
+     */
+    public void loadPetPhoto(ImageView view, long petId, long photoTime, int size) {
+        if (photoTime == 0) {
+            cancel(view);
+            view.setImageDrawable(null);
+            return;
+        }
+        load(view, PetEntry.buildPhotoUri(petId), petId + "-" + photoTime + "-" + size, size,
+                true);
+    }
+
+    /**
+     * Show a thumbnail of any image in the view, size pixels square, such as a photo the user
+     * has just picked. These aren't kept on disk. Call on the main thread.
+     */
+    public void loadImage(ImageView view, Uri uri, int size) {
+        load(view, uri, uri + "-" + size, size, false);
+    }
+
+    private void load(ImageView view, Uri uri, String key, int size, boolean cacheOnDisk) {
+        Request pending = requests.get(view);
+        if (pending != null && pending.key.equals(key)) {
+            // Already on its way.
+            return;
+        }
+        cancel(view);
+
+        Bitmap bitmap = memoryCache.get(key);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+            return;
+        }
+
+        // Don't leave the photo of whichever pet the view showed before while this one loads.
+        view.setImageDrawable(null);
+        Request request = new Request(view, uri, key, size, cacheOnDisk);
+        requests.put(view, request);
+        executor.execute(request);
+    }
+
+    /**
+     * Stop loading a thumbnail into the view, for example because its row has been recycled.
+     * Call on the main thread.
+     */
+    public void cancel(ImageView view) {
+        Request request = requests.remove(view);
+        if (request != null) {
+            request.cancelled = true;
+            executor.remove(request);
+        }
+    }
+
+    /**
+     * Give memory back when the system is running low. Call from
+     * {@link ComponentCallbacks2#onTrimMemory}.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            memoryCache.evictAll();
+        }
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            memoryCache.trimToSize(memoryCache.maxSize() / 2);
+        }
+    }
+
+    /**
+     * Decode the image at the URI and crop the middle of it to size pixels square. Returns null
+     * if there is no image there.
+     */
+    private Bitmap decode(Uri uri, int size) {
+        ParcelFileDescriptor file;
+        try {
+            file = resolver.openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException e) {
+            // The photo was removed after the row showing it was read.
+            return null;
+        }
+        if (file == null) {
+            return null;
+        }
+
+        try {
+            // Thumbnails are opaque, so two bytes a pixel look the same and take half the memory.
+            Bitmap bitmap = PetPhotos.decodeSampled(file.getFileDescriptor(), size, size,
+                    Bitmap.Config.RGB_565);
+            if (bitmap == null) {
+                return null;
+            }
+            return ThumbnailUtils.extractThumbnail(bitmap, size, size,
+                    ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+        } finally {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Couldn't close " + uri, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the thumbnail with the given key from the disk cache, or null if it isn't there.
+     */
+    private Bitmap readDiskCache(String key) {
+        File file = new File(diskCacheDirectory, key + ".jpg");
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        if (bitmap != null) {
+            // Trimming deletes the thumbnails that were used longest ago first.
+            file.setLastModified(System.currentTimeMillis());
+        }
+        return bitmap;
+    }
+
+    /**
+     * Save a thumbnail in the disk cache, then trim the cache if it has grown too big.
+     */
+    private void writeDiskCache(String key, Bitmap bitmap) {
+        synchronized (diskCacheDirectory) {
+            if (diskCacheBytes == -1) {
+                diskCacheDirectory.mkdirs();
+                diskCacheBytes = 0;
+                File[] files = diskCacheDirectory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        diskCacheBytes += file.length();
+                    }
+                }
+            }
+        }
+
+        // Written under another name and renamed, so a half written thumbnail is never read.
+        File file = new File(diskCacheDirectory, key + ".jpg");
+        File partial = new File(diskCacheDirectory, key + "." + Thread.currentThread().getId()
+                + ".partial");
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(partial));
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, PetPhotos.JPEG_QUALITY, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Couldn't cache thumbnail " + key, e);
+            partial.delete();
+            return;
+        }
+        if (!partial.renameTo(file)) {
+            partial.delete();
+            return;
+        }
+
+        synchronized (diskCacheDirectory) {
+            diskCacheBytes += file.length();
+            if (diskCacheBytes > MAX_DISK_CACHE_BYTES) {
+                trimDiskCache();
+            }
+        }
+    }
+
+    /**
+     * Delete the thumbnails used longest ago until the disk cache is down to three quarters of
+     * its limit, so it isn't trimmed again on the very next write. Thumbnails of photos that
+     * have been replaced are never used again, so they go first. Call with diskCacheDirectory
+     * locked.
+     */
+    private void trimDiskCache() {
+        File[] files = diskCacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        // Read every time once, since thumbnails are touched by other threads while sorting.
+        final Map<File, Long> lastUsed = new HashMap<>();
+        for (File file : files) {
+            lastUsed.put(file, file.lastModified());
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = lastUsed.get(a) - lastUsed.get(b);
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+
+        for (File file : files) {
+            if (diskCacheBytes <= MAX_DISK_CACHE_BYTES / 4 * 3) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                diskCacheBytes -= length;
+            }
+        }
+    }
+}
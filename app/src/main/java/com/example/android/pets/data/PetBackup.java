@@ -0,0 +1,298 @@
+package com.example.android.pets.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.example.android.pets.data.PetContract.Backup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Backs up the pets database into a single compressed file, and restores it from one.
+ *
+ * A backup copies the database files while a connection of its own holds a read transaction
+ * open. With write-ahead logging that keeps the copy at one point in time without holding up
+ * anyone writing pets, whose commits just go on being appended to the log. The copy is then
+ * folded into a single file, checked and compressed, behind a short header saying which
+ * versions of the backup format and database schema it holds.
+ *
+ * A restore decompresses and checks the backup next to the database first. Only then is the
+ * database closed and the backup renamed over it, which swaps the file in one step, so the
+ * database is never left half restored.
+ */
+final class PetBackup {
+
+    /** First four bytes of every backup, "PETB". */
+    private static final int MAGIC = 0x50455442;
+
+    /** Version of the backup file layout. Bumped whenever the header changes. */
+    static final int FORMAT_VERSION = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Longest a restore waits for calls that were already using the database to finish. */
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    private final PetDbHelper dbHelper;
+
+    PetBackup(PetDbHelper dbHelper) {
+        this.dbHelper = dbHelper;
+    }
+
+    /**
+     * Write a backup of the database into the given file, replacing it if it exists. Returns the
+     * {@link Backup} keys describing the backup.
+     */
+    Bundle backup(File destination) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        File database = new File(dbHelper.getWritableDatabase().getPath());
+        File copy = new File(destination.getPath() + ".db");
+        File partial = new File(destination.getPath() + ".partial");
+        try {
+            // The less there is in the log, the less is copied twice.
+            dbHelper.checkpoint();
+
+            long snapshotStart = SystemClock.elapsedRealtime();
+            copySnapshot(database, copy);
+            long snapshotMillis = SystemClock.elapsedRealtime() - snapshotStart;
+
+            int version = compact(copy);
+            long created = System.currentTimeMillis();
+            writeBackup(copy, partial, version, created);
+            if (!partial.renameTo(destination)) {
+                throw new IOException("Couldn't move the backup to " + destination);
+            }
+
+            Bundle result = new Bundle();
+            result.putLong(Backup.KEY_CREATED_TIME, created);
+            result.putLong(Backup.KEY_DATABASE_BYTES, copy.length());
+            result.putLong(Backup.KEY_BACKUP_BYTES, destination.length());
+            result.putLong(Backup.KEY_PAUSE_MILLIS, snapshotMillis);
+            result.putLong(Backup.KEY_TOTAL_MILLIS, SystemClock.elapsedRealtime() - start);
+            return result;
+        } finally {
+            deleteDatabaseFiles(copy);
+            partial.delete();
+        }
+    }
+
+    /**
+     * Replace the database with the one in the given backup. The database is closed for the
+     * swap, so any call still using it when the swap starts must finish within
+     * {@link #CLOSE_TIMEOUT_MS}. Returns the {@link Backup} keys describing the restore.
+     */
+    Bundle restore(File source) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        File database = new File(dbHelper.getWritableDatabase().getPath());
+        File restored = new File(database.getPath() + ".restore");
+        try {
+            DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(source), BUFFER_SIZE));
+            int version;
+            long created;
+            try {
+                if (input.readInt() != MAGIC) {
+                    throw new IOException(source + " is not a pets backup");
+                }
+                int format = input.readInt();
+                if (format != FORMAT_VERSION) {
+                    throw new IOException("Unknown backup format " + format);
+                }
+                version = input.readInt();
+                if (version > PetDbHelper.DATABASE_VERSION) {
+                    throw new IOException("The backup is from database version " + version
+                            + ", newer than this app's " + PetDbHelper.DATABASE_VERSION);
+                }
+                created = input.readLong();
+                long length = input.readLong();
+
+                // The gzip trailer holds a CRC of everything in it, which GZIPInputStream
+                // checks when it reaches the end.
+                OutputStream output = new FileOutputStream(restored);
+                long copied;
+                try {
+                    copied = copy(new GZIPInputStream(input, BUFFER_SIZE), output);
+                    ((FileOutputStream) output).getFD().sync();
+                } finally {
+                    output.close();
+                }
+                if (copied != length) {
+                    throw new IOException("The backup holds " + copied + " bytes instead of "
+                            + length);
+                }
+            } finally {
+                input.close();
+            }
+
+            if (compact(restored) != version) {
+                throw new IOException("The backup's database doesn't match its header");
+            }
+
+            long swapStart = SystemClock.elapsedRealtime();
+            // The helper only opens the database while holding its own lock, so nothing can
+            // open it again in the middle of the swap.
+            synchronized (dbHelper) {
+                SQLiteDatabase current = dbHelper.getWritableDatabase();
+                dbHelper.close();
+                waitUntilClosed(current);
+
+                // Closing the last connection checkpoints the log and deletes it. Anything left
+                // over would be replayed into the restored database, so make sure it's gone.
+                deleteJournals(database);
+                if (!restored.renameTo(database)) {
+                    throw new IOException("Couldn't move the restored database to " + database);
+                }
+            }
+
+            Bundle result = new Bundle();
+            result.putLong(Backup.KEY_CREATED_TIME, created);
+            result.putLong(Backup.KEY_DATABASE_BYTES, database.length());
+            result.putLong(Backup.KEY_BACKUP_BYTES, source.length());
+            result.putLong(Backup.KEY_PAUSE_MILLIS, SystemClock.elapsedRealtime() - swapStart);
+            result.putLong(Backup.KEY_TOTAL_MILLIS, SystemClock.elapsedRealtime() - start);
+            return result;
+        } finally {
+            deleteDatabaseFiles(restored);
+        }
+    }
+
+    /**
+     * Copy the database and its log as they are at one point in time. While the read
+     * transaction is open, checkpoints can only write pages from before its snapshot into the
+     * database and the log can't be started over, so the copied log holds the latest version of
+     * any page that changed in the database during the copy. Commits made during the copy may
+     * end up in the copied log too, which only means the backup ends at a slightly later commit.
+     */
+    private static void copySnapshot(File database, File copy) throws IOException {
+        // Read only, so opening it doesn't try to take the database out of write-ahead logging.
+        SQLiteDatabase snapshot = SQLiteDatabase.openDatabase(database.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            // SQLiteDatabase only begins transactions that take the write lock, which would hold
+            // up every writer for the whole copy. A savepoint outside a transaction begins a
+            // deferred one instead, which takes a read lock on the first read.
+            snapshot.execSQL("SAVEPOINT backup");
+            try {
+                DatabaseUtils.longForQuery(snapshot, "SELECT COUNT(*) FROM sqlite_master", null);
+                copyFile(database, copy);
+                File log = new File(database.getPath() + "-wal");
+                if (log.exists()) {
+                    copyFile(log, new File(copy.getPath() + "-wal"));
+                }
+            } finally {
+                snapshot.execSQL("RELEASE backup");
+            }
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Fold any log into the database file itself and check that the database is sound. Returns
+     * its schema version.
+     */
+    private static int compact(File file) throws IOException {
+        SQLiteDatabase database = SQLiteDatabase.openDatabase(file.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        try {
+            // Leaving write-ahead logging checkpoints the whole log and deletes it.
+            DatabaseUtils.stringForQuery(database, "PRAGMA journal_mode = DELETE", null);
+            String check = DatabaseUtils.stringForQuery(database, "PRAGMA quick_check", null);
+            if (!"ok".equals(check)) {
+                throw new IOException("The database is corrupt: " + check);
+            }
+            return database.getVersion();
+        } finally {
+            database.close();
+        }
+    }
+
+    private static void writeBackup(File database, File destination, int version, long created)
+            throws IOException {
+        FileOutputStream file = new FileOutputStream(destination);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(version);
+            output.writeLong(created);
+            output.writeLong(database.length());
+
+            GZIPOutputStream gzip = new GZIPOutputStream(output, BUFFER_SIZE);
+            InputStream input = new FileInputStream(database);
+            try {
+                copy(input, gzip);
+            } finally {
+                input.close();
+            }
+            gzip.finish();
+            output.flush();
+            file.getFD().sync();
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Wait for calls that were using the database when it was closed to finish, which is when
+     * it really closes.
+     */
+    private static void waitUntilClosed(SQLiteDatabase database) throws IOException {
+        long deadline = SystemClock.elapsedRealtime() + CLOSE_TIMEOUT_MS;
+        while (database.isOpen()) {
+            if (SystemClock.elapsedRealtime() > deadline) {
+                throw new IOException("The database is still in use");
+            }
+            SystemClock.sleep(10);
+        }
+    }
+
+    private static void copyFile(File source, File destination) throws IOException {
+        InputStream input = new FileInputStream(source);
+        try {
+            OutputStream output = new FileOutputStream(destination);
+            try {
+                copy(input, output);
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private static long copy(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long copied = 0;
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+            copied += read;
+        }
+        return copied;
+    }
+
+    private static void deleteJournals(File database) {
+        new File(database.getPath() + "-wal").delete();
+        new File(database.getPath() + "-shm").delete();
+        new File(database.getPath() + "-journal").delete();
+    }
+
+    private static void deleteDatabaseFiles(File database) {
+        database.delete();
+        deleteJournals(database);
+    }
+}
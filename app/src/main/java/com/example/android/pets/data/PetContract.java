@@ -9,6 +9,14 @@ public final class PetContract {
     public static final String CONTENT_AUTHORITY = "com.example.android.pets";
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
     public static final String PATH_PETS = "pets";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_STATS = "stats";
+    public static final String PATH_EXPORT = "export";
+    public static final String PATH_IMPORTS = "imports";
+    public static final String PATH_PHOTO = "photo";
+    public static final String PATH_CHANGES = "changes";
+    public static final String PATH_SYNC = "sync";
+    public static final String PATH_DUPLICATES = "duplicates";
 
     public static abstract class PetEntry implements BaseColumns {
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
@@ -26,6 +34,65 @@ public final class PetContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS;
 
+        /**
+         * Query parameter for {@link #CONTENT_URI} that limits how many pets are returned. On a
+         * delete it limits how many pets are deleted, those with the lowest {@link #_ID} first,
+         * and the space they took up is given back. Deleting a large number of pets a chunk at a
+         * time like this lets other writes in between the chunks, see {@link PetDeleter}.
+         */
+        public static final String QUERY_PARAM_LIMIT = "limit";
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} used to page through the pets table. Only pets
+         * with an {@link #_ID} greater than this value are returned, sorted by {@link #_ID}, so
+         * the last {@link #_ID} of one page is the token for the next page.
+         */
+        public static final String QUERY_PARAM_AFTER_ID = "after_id";
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} used with {@link #QUERY_PARAM_AFTER_ID} to page
+         * through pets sorted by {@link #SORT_NAME} or {@link #SORT_WEIGHT}. It holds the name or
+         * weight of the last pet of the previous page, whose {@link #_ID} goes in
+         * {@link #QUERY_PARAM_AFTER_ID}.
+         */
+        public static final String QUERY_PARAM_AFTER_KEY = "after_key";
+
+        /** Query parameter for {@link #CONTENT_URI} that only returns pets of this gender. */
+        public static final String QUERY_PARAM_GENDER = "gender";
+
+        /** Query parameter for {@link #CONTENT_URI} that only returns pets of exactly this breed. */
+        public static final String QUERY_PARAM_BREED = "breed";
+
+        /** Query parameter for {@link #CONTENT_URI} that only returns pets at least this heavy. */
+        public static final String QUERY_PARAM_MIN_WEIGHT = "min_weight";
+
+        /** Query parameter for {@link #CONTENT_URI} that only returns pets at most this heavy. */
+        public static final String QUERY_PARAM_MAX_WEIGHT = "max_weight";
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} that only returns pets whose name starts with
+         * this text. Upper and lower case letters are different.
+         */
+        public static final String QUERY_PARAM_NAME_PREFIX = "name_prefix";
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} that sorts the pets by one of the SORT values,
+         * with ties in order of {@link #_ID}. A query with this parameter can't have a sort order
+         * of its own.
+         */
+        public static final String QUERY_PARAM_SORT = "sort";
+
+        public static final String SORT_ID = "id";
+        public static final String SORT_NAME = "name";
+        public static final String SORT_WEIGHT = "weight";
+
+        /**
+         * Query parameter for any query. When it is "false" the returned cursor doesn't watch for
+         * changes, for callers that observe {@link #CONTENT_URI} themselves. A change to a single
+         * pet is notified on that pet's URI, and a change to several pets on {@link #CONTENT_URI}.
+         */
+        public static final String QUERY_PARAM_NOTIFY = "notify";
+
 
         public final static String TABLE_NAME = "pets";
 
@@ -35,6 +102,19 @@ public final class PetContract {
         public final static String PET_GENDER = "gender";
         public final static String PET_WEIGHT = "weight";
 
+        /**
+         * Wall clock time, in milliseconds, that the pet's photo was last set, or null if it
+         * doesn't have one. The photo itself is a file read through {@link #buildPhotoUri}, never
+         * a column, so reading pets never copies images. The time changes whenever the photo does,
+         * so it can be used to tell copies of the photo apart.
+         */
+        public final static String PET_PHOTO = "photo";
+
+        /**
+         * The MIME type of a pet's photo.
+         */
+        public static final String PHOTO_TYPE = "image/jpeg";
+
 
         public final static int GENDER_UNKNOWN = 0;
         public final static int GENDER_MALE = 1;
@@ -51,8 +131,453 @@ public final class PetContract {
             return false;
         }
 
+        /**
+         * Returns the content URI for a page of at most pageSize pets that come after the pet
+         * with the given {@link #_ID}. Use 0 for the first page.
+         */
+        public static Uri buildPageUri(long afterId, int pageSize) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_AFTER_ID, String.valueOf(afterId))
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, String.valueOf(pageSize))
+                    .build();
+        }
+
+        /**
+         * Returns the content URI of the photo of the pet with the given {@link #_ID}. Open it
+         * with {@link ContentResolver#openFileDescriptor} to read the photo, or with mode "w" to
+         * write a new one, then update the {@link #PET_PHOTO} of the pet's URI to say that it
+         * changed. The new photo only replaces the old one then, so readers never see a photo
+         * that is still being written. Deleting the URI removes the photo. Pets that are deleted
+         * lose their photo too.
+         */
+        public static Uri buildPhotoUri(long id) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(id))
+                    .appendPath(PATH_PHOTO)
+                    .build();
+        }
+
+        /**
+         * Returns the content URI that searches the names and breeds of all pets for the given
+         * text. Every word in the text has to match the start of a word in the name or breed,
+         * and the best matches come first. {@link #QUERY_PARAM_LIMIT} can be added to the URI.
+         */
+        public static Uri buildSearchUri(String query) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_SEARCH)
+                    .appendPath(query)
+                    .build();
+        }
+
+
+
+    }
+
+    /**
+     * Counts and weights of the pets, summarized by gender and breed. The summary is kept up to
+     * date as pets are written, so reading it doesn't go through every pet. Read only.
+     */
+    public static abstract class StatsEntry {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_STATS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI}.
+         */
+        public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_PETS + "." + PATH_STATS;
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} that chooses what the rows are grouped by. One
+         * of the GROUP_BY values, {@link #GROUP_BY_GENDER_AND_BREED} if it's missing.
+         */
+        public static final String QUERY_PARAM_GROUP_BY = "group_by";
+
+        /** A row for every gender and breed pair. */
+        public static final String GROUP_BY_GENDER_AND_BREED = "gender_breed";
+        /** A row for every gender. */
+        public static final String GROUP_BY_GENDER = "gender";
+        /** A row for every breed. */
+        public static final String GROUP_BY_BREED = "breed";
+        /** A single row covering every pet. */
+        public static final String GROUP_BY_NONE = "none";
+
+        /** The gender of the group, or null when the rows aren't grouped by gender. */
+        public final static String GENDER = PetEntry.PET_GENDER;
+        /**
+         * The breed of the group, or null when the rows aren't grouped by breed. Pets without a
+         * breed are grouped under an empty breed.
+         */
+        public final static String BREED = PetEntry.PET_BREED;
+        public final static String PET_COUNT = "pet_count";
+        public final static String WEIGHT_MIN = "weight_min";
+        public final static String WEIGHT_AVG = "weight_avg";
+        public final static String WEIGHT_MAX = "weight_max";
+    }
+
+    /**
+     * Every pet as a file, for backing up or moving the shelter somewhere else. Open it with
+     * {@link ContentResolver#openInputStream}. The rows are written as they are read, in order of
+     * {@link PetEntry#_ID}, so reading can start straight away however many pets there are.
+     * Pets written while the export is being read may or may not be in it.
+     */
+    public static abstract class ExportEntry {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_EXPORT);
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} that chooses the file format. One of the
+         * FORMAT values, {@link #FORMAT_CSV} if it's missing.
+         */
+        public static final String QUERY_PARAM_FORMAT = "format";
+
+        /** Comma separated values with a header row. */
+        public static final String FORMAT_CSV = "csv";
+        /** One JSON object per line. */
+        public static final String FORMAT_NDJSON = "ndjson";
+
+        public static final String CSV_TYPE = "text/csv";
+        public static final String NDJSON_TYPE = "application/x-ndjson";
+
+        /**
+         * Returns the URI that exports every pet in the given format.
+         */
+        public static Uri buildExportUri(String format) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_FORMAT, format)
+                    .build();
+        }
+    }
+
+    /**
+     * How far {@link PetImporter} got through each file it hasn't finished importing. A row is
+     * written in the same transaction as each chunk of pets, so an import that was interrupted
+     * can carry on from the last chunk that was committed. The row is deleted once the whole
+     * file has been imported.
+     */
+    public static abstract class ImportEntry {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_IMPORTS);
+
+        /**
+         * The MIME type of the progress of a single import.
+         */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_PETS + "." + PATH_IMPORTS;
+
+        public final static String TABLE_NAME = "pet_imports";
+
+        /** The URI of the file being imported. */
+        public final static String SOURCE = "source";
+        /** Rows of the file that have been read and committed, whether they were valid or not. */
+        public final static String ROWS_READ = "rows_read";
+        /** Rows that were imported as pets. */
+        public final static String ROWS_IMPORTED = "rows_imported";
+        /** Rows that couldn't be imported. */
+        public final static String ROWS_FAILED = "rows_failed";
+
+        /**
+         * Returns the content URI for the progress of importing the given file. Insert on it to
+         * save the progress, query it to read it back and delete it once the import is done.
+         */
+        public static Uri buildImportUri(String source) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(source)
+                    .build();
+        }
+    }
+
+    /**
+     * A log of every pet inserted, updated or deleted, numbered in the order the changes were
+     * committed. It is written in the same transaction as the change itself, so it never misses
+     * one. Read only.
+     *
+     * A client that keeps its own copy of the pets starts by querying {@link #CONTENT_URI}
+     * without {@link #QUERY_PARAM_SINCE}, which returns a single {@link #OPERATION_RESYNC} row,
+     * then loads every pet. From then on it queries {@link #buildChangesUri} with the highest
+     * {@link #SEQUENCE} it has seen, and only reads the pets that changed. The log is trimmed
+     * to the most recent changes, so a client that has fallen too far behind is told to resync
+     * again.
+     */
+    public static abstract class ChangeEntry {
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_CHANGES);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI}.
+         */
+        public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_PETS + "." + PATH_CHANGES;
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} holding the highest {@link #SEQUENCE} the
+         * client has already seen. Only changes after it are returned.
+         */
+        public static final String QUERY_PARAM_SINCE = "since";
+
+        public final static String TABLE_NAME = "pet_changes";
+
+        /**
+         * Number of the change, higher for every change committed after it. Numbers are never
+         * reused, but aren't always one apart.
+         */
+        public final static String SEQUENCE = "seq";
+
+        /** The {@link PetEntry#_ID} of the pet that changed. Null for a resync. */
+        public final static String PET_ID = "pet_id";
+
+        /** What happened to the pet, one of the OPERATION values. */
+        public final static String OPERATION = "operation";
+
+        /**
+         * The changes since {@link #QUERY_PARAM_SINCE} are no longer all in the log, so the client
+         * has to load every pet again. The {@link #SEQUENCE} is the one to ask for changes since
+         * afterwards. When this is returned it's the only row.
+         */
+        public final static int OPERATION_RESYNC = 0;
+        public final static int OPERATION_INSERT = 1;
+        public final static int OPERATION_UPDATE = 2;
+        public final static int OPERATION_DELETE = 3;
+
+        /** Most changes kept in the log. Older changes are trimmed from time to time. */
+        public final static int MAX_CHANGES = 10000;
+
+        /** How long, in milliseconds, changes are kept in the log. */
+        public final static long RETENTION_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+        /**
+         * Returns the content URI for the changes made after the given {@link #SEQUENCE}. Each
+         * pet that changed is returned once, with the number and operation of its last change,
+         * in order of {@link #SEQUENCE}. Clients should read an insert and an update the same
+         * way, since a pet inserted and then updated only shows up as updated.
+         */
+        public static Uri buildChangesUri(long since) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_SINCE, String.valueOf(since))
+                    .build();
+        }
+    }
+
+    /**
+     * Groups of pets that look like duplicates of each other, such as the same pet imported
+     * twice with its name spelled slightly differently. Read only.
+     *
+     * Pets are compared by the three-letter pieces (trigrams) of the words in their name and
+     * breed, which are kept in an index. Only pets whose names share pieces in the index are
+     * compared, rather than every pet with every other. A piece found in too many names, such as
+     * the start of a very common name, isn't used to find pets to compare.
+     *
+     * Each row is a pet in a group, with the groups most alike first. Query parameters:
+     * {@link #QUERY_PARAM_MIN_SIMILARITY} and {@link PetEntry#QUERY_PARAM_LIMIT}, which limits the
+     * number of groups. Every row has all the columns, and it can't be filtered or sorted.
+     */
+    public static abstract class DuplicateEntry {
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_DUPLICATES);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI}.
+         */
+        public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_PETS + "." + PATH_DUPLICATES;
+
+        /**
+         * Query parameter for the lowest similarity, from 0 to 1, that two pets need to be put in
+         * the same group. {@link #DEFAULT_MIN_SIMILARITY} if not given.
+         */
+        public static final String QUERY_PARAM_MIN_SIMILARITY = "min_similarity";
+
+        public static final double DEFAULT_MIN_SIMILARITY = 0.6;
+
+        /** Numbers the groups from 1, the group most alike first. */
+        public final static String GROUP_ID = "group_id";
+
+        /** The {@link PetEntry#_ID} of the pet. Its name and breed are in the row too. */
+        public final static String PET_ID = "pet_id";
+
+        /**
+         * How alike the pet is to the pet in its group it is most like, from 0 to 1. The share
+         * of their name trigrams the two have in common, counted twice, averaged with the same
+         * for their breeds when both have one.
+         */
+        public final static String SIMILARITY = "similarity";
+    }
+
+    /**
+     * The sync state of every pet, for {@link PetSync}. Each pet has a {@link #SYNC_ID} that is
+     * the same on every device, the time each of its columns last changed, and how many local
+     * changes haven't been sent to the server yet. Deleted pets are kept as tombstones, so the
+     * delete can be sent too. Read only, through {@link #CONTENT_URI}. It is written by the
+     * provider as pets change, and by the methods below.
+     *
+     * Conflicts are settled column by column: the value changed last wins, and a delete beats
+     * any change. The times come from the clocks of the devices that made the changes.
+     */
+    public static abstract class SyncEntry {
+
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_SYNC);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI}.
+         */
+        public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_PETS + "." + PATH_SYNC;
+
+        public final static String TABLE_NAME = "pet_sync";
+
+        /** Identifies the pet on every device. Text, unique. */
+        public final static String SYNC_ID = "sync_id";
+
+        /** The local {@link PetEntry#_ID} of the pet, or null for a pet deleted elsewhere. */
+        public final static String PET_ID = "pet_id";
+
+        /** Number of local changes to the pet not sent to the server yet. 0 once sent. */
+        public final static String DIRTY = "dirty";
+
+        /** When the pet was deleted, in milliseconds, or null while it exists. */
+        public final static String DELETED_TIME = "deleted_time";
+
+        /** When each column of the pet last changed, in milliseconds. */
+        public final static String NAME_TIME = "name_time";
+        public final static String BREED_TIME = "breed_time";
+        public final static String GENDER_TIME = "gender_time";
+        public final static String WEIGHT_TIME = "weight_time";
+
+        /**
+         * Applies a batch of changes from the server in one transaction, then sets the watermark
+         * of the server. The arg is the server. The extras hold {@link #KEY_CHANGES} and
+         * {@link #KEY_WATERMARK}, and the result holds {@link #KEY_COUNT}, the number of pets
+         * that changed.
+         */
+        public static final String METHOD_APPLY = "sync_apply";
+
+        /**
+         * Marks pets as sent to the server. The extras hold {@link #KEY_SYNC_IDS} and
+         * {@link #KEY_DIRTY}. A pet changed again since it was read stays dirty. The result holds
+         * {@link #KEY_COUNT}, the number of pets marked.
+         */
+        public static final String METHOD_MARK_SENT = "sync_mark_sent";
+
+        /**
+         * Returns the watermark of the server given as the arg in {@link #KEY_WATERMARK}, or 0 if
+         * nothing has been received from it yet.
+         */
+        public static final String METHOD_GET_WATERMARK = "sync_get_watermark";
+
+        /**
+         * A list of {@link android.content.ContentValues}, one per pet, keyed by the columns
+         * above and the pet columns of {@link PetEntry}.
+         */
+        public static final String KEY_CHANGES = "changes";
+
+        /** The server's position in its own list of changes, as a long. */
+        public static final String KEY_WATERMARK = "watermark";
+
+        /** Array of {@link #SYNC_ID}s. */
+        public static final String KEY_SYNC_IDS = "sync_ids";
+
+        /** Array of {@link #DIRTY} counts, read along with the pets in {@link #KEY_SYNC_IDS}. */
+        public static final String KEY_DIRTY = "dirty";
+
+        /** Number of pets a method changed, as an int. */
+        public static final String KEY_COUNT = "count";
+    }
+
+    /**
+     * Methods for {@link ContentResolver#call} on {@link #BASE_CONTENT_URI} that collect how the
+     * provider has been performing, and the keys of the {@link android.os.Bundle} they return.
+     */
+    public static final class Metrics {
+
+        /** Returns the metrics collected since they were last reset. */
+        public static final String METHOD_GET = "get_metrics";
+
+        /** Returns the metrics collected since they were last reset, then resets them. */
+        public static final String METHOD_RESET = "reset_metrics";
+
+        /** Wall clock time, in milliseconds, that the metrics were last reset. */
+        public static final String KEY_RESET_TIME = "reset_time";
+
+        /**
+         * A Bundle holding one Bundle per operation and URI that has been called, keyed like
+         * "query pets/#". Each of those holds the keys below.
+         */
+        public static final String KEY_OPERATIONS = "operations";
+
+        /** Number of calls. */
+        public static final String KEY_COUNT = "count";
+
+        /** Number of calls that threw an exception. */
+        public static final String KEY_ERRORS = "errors";
+
+        /** Rows returned by queries, or rows inserted, updated or deleted. */
+        public static final String KEY_ROWS = "rows";
+
+        /** Total time taken by the calls, in microseconds. */
+        public static final String KEY_TOTAL_MICROS = "total_us";
 
+        /** Time taken by the slowest call, in microseconds. */
+        public static final String KEY_MAX_MICROS = "max_us";
+
+        /**
+         * Latency histogram as a long array. Bucket i counts the calls that took from 2^i up to
+         * 2^(i+1) microseconds, except bucket 0 also counts calls under a microsecond.
+         */
+        public static final String KEY_LATENCY_HISTOGRAM = "latency_histogram";
+
+        /** Queries answered from the provider's cache since it started. */
+        public static final String KEY_QUERY_CACHE_HITS = "query_cache_hits";
+
+        /** Queries that had to go to the database since the provider started. */
+        public static final String KEY_QUERY_CACHE_MISSES = "query_cache_misses";
+
+        /** Change notifications asked for since the provider started. */
+        public static final String KEY_NOTIFICATIONS_REQUESTED = "notifications_requested";
+
+        /** Change notifications actually sent since the provider started. */
+        public static final String KEY_NOTIFICATIONS_DISPATCHED = "notifications_dispatched";
+
+        /**
+         * Change notifications that were merged into another one or rolled back, along with any
+         * still waiting to be sent, since the provider started.
+         */
+        public static final String KEY_NOTIFICATIONS_SUPPRESSED = "notifications_suppressed";
+    }
+
+    /**
+     * Methods for {@link ContentResolver#call} on {@link #BASE_CONTENT_URI} that back up the
+     * pets database into a file and restore it from one. The arg of both is the absolute path of
+     * the backup file, and both return a {@link android.os.Bundle} with the keys below. They take
+     * a while on a large database, so call them from a background thread.
+     */
+    public static final class Backup {
+
+        /** Writes a compressed backup of the database into the file, replacing it. */
+        public static final String METHOD_BACKUP = "backup";
+
+        /**
+         * Replaces the database with the one in the backup file. Writes queued in
+         * {@link PetWriter} wait for it and then go to the restored database, while an export
+         * that is still being read fails.
+         */
+        public static final String METHOD_RESTORE = "restore";
+
+        /** Wall clock time, in milliseconds, that the backup was taken. */
+        public static final String KEY_CREATED_TIME = "created_time";
+
+        /** Size of the database in the backup, in bytes, before compression. */
+        public static final String KEY_DATABASE_BYTES = "database_bytes";
+
+        /** Size of the backup file, in bytes. */
+        public static final String KEY_BACKUP_BYTES = "backup_bytes";
+
+        /**
+         * For a backup, how long the snapshot was held open, during which the log can't be
+         * checkpointed. For a restore, how long the database was closed for the swap, during
+         * which calls to the provider wait.
+         */
+        public static final String KEY_PAUSE_MILLIS = "pause_ms";
 
+        /** Time taken by the whole backup or restore, in milliseconds. */
+        public static final String KEY_TOTAL_MILLIS = "total_ms";
     }
 
 }
@@ -1,21 +1,568 @@
 package com.example.android.pets.data;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.os.TraceCompat;
+import android.util.Log;
+
+import java.util.Arrays;
+
+import com.example.android.pets.data.PetContract.ChangeEntry;
+import com.example.android.pets.data.PetContract.ImportEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
+import com.example.android.pets.data.PetContract.SyncEntry;
 
 public class PetDbHelper extends SQLiteOpenHelper {
 
-    public static final int DATABASE_VERSION = 1;
+    public static final String LOG_TAG = PetDbHelper.class.getSimpleName();
+
+    public static final int DATABASE_VERSION = 10;
     public static final String DATABASE_NAME = "shelter.db";
 
+    /** Full-text index over the name and breed of every pet. The docid of a row is the pet's _ID. */
+    static final String SEARCH_TABLE_NAME = "pets_fts";
+
+    /**
+     * Summary of the pets table with a row for every gender and breed, kept up to date by
+     * triggers. Pets without a breed are counted under an empty breed.
+     */
+    static final String STATS_TABLE_NAME = "pet_stats";
+
+    /** Column of {@link #STATS_TABLE_NAME} holding the total weight of the group. */
+    static final String STATS_WEIGHT_SUM = "weight_sum";
+
+    /** Column of {@link ChangeEntry#TABLE_NAME} holding when the change was made. */
+    static final String CHANGES_TIME = "time";
+
+    /** Watermark of every server the pets have been synced with. */
+    static final String SYNC_STATE_TABLE_NAME = "pet_sync_state";
+
+    /** Column of {@link #SYNC_STATE_TABLE_NAME} holding the server's URL. */
+    static final String SYNC_STATE_SERVER = "server";
+
+    /**
+     * SQL for the current time in milliseconds. strftime('%s') only counts whole seconds, which
+     * would make changes a few moments apart look simultaneous to last-writer-wins.
+     */
+    static final String NOW_MILLIS = "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+
+    /** SQL for a new random {@link SyncEntry#SYNC_ID}: 128 bits as 32 hex digits. */
+    static final String NEW_SYNC_ID = "lower(hex(randomblob(16)))";
+
+    /** Least time between trimming the change log, unless it has grown well past its limit. */
+    static final long COMPACT_INTERVAL_MS = 60 * 60 * 1000;
+
+    /**
+     * Backfills a migration step left to run after the upgrade, while they last. Its rows hold the
+     * version of the step, the _ID the backfill has got up to, and the last _ID it has to reach.
+     * The table is dropped once every backfill has finished.
+     */
+    static final String BACKFILL_TABLE_NAME = "pet_backfills";
+
+    /** Column of {@link #BACKFILL_TABLE_NAME} holding the version of the migration step. */
+    static final String BACKFILL_VERSION = "version";
+
+    /** Column of {@link #BACKFILL_TABLE_NAME} holding the last _ID backfilled. */
+    static final String BACKFILL_LAST_ID = "last_id";
+
+    /** Column of {@link #BACKFILL_TABLE_NAME} holding the last _ID there is to backfill. */
+    static final String BACKFILL_MAX_ID = "max_id";
+
+    /** Number of pets a backfill handles per transaction. */
+    static final int MIGRATION_CHUNK_SIZE = 5000;
+
+    /** How long after the database is opened that leftover backfills start. */
+    static final long BACKFILL_DELAY_MS = 1000;
+
+    /**
+     * The default for how hard SQLite works to make each commit durable. With write-ahead
+     * logging, NORMAL can lose the last few commits on a power failure but never corrupts the
+     * database, and it saves an fsync on every commit.
+     */
+    public static final String DEFAULT_SYNCHRONOUS_MODE = "NORMAL";
+
+    /** How long the database has to go without writes before the log is checkpointed. */
+    static final long CHECKPOINT_DELAY_MS = 1000;
+
+    /** Value of PRAGMA auto_vacuum when freed pages are only given back when asked for. */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final String synchronousMode;
+
+    /** Whether or not the database uses write-ahead logging. Only turned off by benchmarks. */
+    private final boolean writeAheadLogging;
+
+    /** Set by {@link #onCreate} so that {@link #onOpen} knows the database is brand new. */
+    private boolean created = false;
+
+    /**
+     * Runs checkpoints and backfills off the threads that write. Created on the first write, or
+     * when the database is opened with backfills left.
+     */
+    private Handler checkpointHandler;
+
+    /** Held while running backfills, so two threads never work through the same chunks. */
+    private final Object backfillLock = new Object();
+
+    /** When the change log was last trimmed. Only used on the checkpoint thread. */
+    private long lastCompactTime = -COMPACT_INTERVAL_MS;
+
+    /** Index of the trigrams in the pets' names and breeds, kept up from the change log. */
+    private final PetTrigramIndex trigramIndex = new PetTrigramIndex(this);
+
+    private final Runnable checkpointRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Index the changes before they can be trimmed from the log.
+            trigramIndex.update();
+            if (SystemClock.elapsedRealtime() - lastCompactTime >= COMPACT_INTERVAL_MS
+                    || countChanges() > 2 * ChangeEntry.MAX_CHANGES) {
+                compactChanges();
+                lastCompactTime = SystemClock.elapsedRealtime();
+            }
+            checkpoint();
+        }
+    };
+
+    private final Runnable backfillRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // A chunk per message, so checkpoints get a turn in between and stopping the thread
+            // stops the backfill at the end of a chunk.
+            if (runBackfillChunk()) {
+                synchronized (PetDbHelper.this) {
+                    if (checkpointHandler != null) {
+                        checkpointHandler.post(this);
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * A single step that upgrades the database schema from {@link #version} - 1 to
+     * {@link #version}.
+     *
+     * SQLiteOpenHelper runs the whole upgrade in one transaction, which keeps every writer waiting
+     * until it ends. So a step only changes the schema, and any statement that has to go over the
+     * pets already stored is left in {@link #backfill}, to be run after the database is open, a
+     * chunk of pets per transaction. The new schema has to keep later changes to pets up to date
+     * by itself, such as with triggers, since the backfill only goes over the pets stored before
+     * the upgrade.
+     */
+    abstract static class Migration {
+        final int version;
+        final String description;
+
+        /**
+         * Statement run over every pet stored before the step, or null if there is nothing to
+         * run. It takes the start (exclusive) and end (inclusive) of a chunk of _IDs as its two
+         * arguments.
+         */
+        final String backfill;
+
+        Migration(int version, String description) {
+            this(version, description, null);
+        }
+
+        Migration(int version, String description, String backfill) {
+            this.version = version;
+            this.description = description;
+            this.backfill = backfill;
+        }
+
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    /**
+     * Every change to the schema since version 1, in order. To change the schema, add a step to
+     * the end and bump {@link #DATABASE_VERSION} to match. Never edit a step that has shipped.
+     */
+    static final Migration[] MIGRATIONS = {
+            new Migration(2, "Add full-text search",
+                    // Index the pets that were stored before search existed. Until it has, a
+                    // search only finds the pets the backfill has got to.
+                    "INSERT INTO " + SEARCH_TABLE_NAME + "(docid, " + PetEntry.PET_NAME + ", "
+                            + PetEntry.PET_BREED + ") SELECT " + PetEntry._ID + ", "
+                            + PetEntry.PET_NAME + ", " + PetEntry.PET_BREED + " FROM "
+                            + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " > ? AND "
+                            + PetEntry._ID + " <= ?") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createSearchTable(db);
+                }
+            },
+            new Migration(3, "Index name, breed and gender") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createIndex(db, PetEntry.PET_NAME);
+                    createIndex(db, PetEntry.PET_BREED);
+                    createIndex(db, PetEntry.PET_GENDER);
+                }
+            },
+            new Migration(4, "Summarize pets by gender and breed") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createStatsTable(db);
+                    // Summarize the pets that were stored before the summary existed. This has to
+                    // see every pet at once, so it can't be split into chunks.
+                    String breed = "COALESCE(" + PetEntry.PET_BREED + ", '')";
+                    db.execSQL("INSERT INTO " + STATS_TABLE_NAME + " SELECT "
+                            + PetEntry.PET_GENDER + ", " + breed + ", COUNT(*), SUM("
+                            + PetEntry.PET_WEIGHT + "), MIN(" + PetEntry.PET_WEIGHT + "), MAX("
+                            + PetEntry.PET_WEIGHT + ") FROM " + PetEntry.TABLE_NAME
+                            + " GROUP BY " + PetEntry.PET_GENDER + ", " + breed);
+                }
+            },
+            new Migration(5, "Track the progress of imports") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + ImportEntry.TABLE_NAME + "("
+                            + ImportEntry.SOURCE + " TEXT PRIMARY KEY, "
+                            + ImportEntry.ROWS_READ + " INTEGER NOT NULL, "
+                            + ImportEntry.ROWS_IMPORTED + " INTEGER NOT NULL, "
+                            + ImportEntry.ROWS_FAILED + " INTEGER NOT NULL);");
+                }
+            },
+            new Migration(6, "Index weight") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // For filtering and sorting by weight.
+                    createIndex(db, PetEntry.PET_WEIGHT);
+                }
+            },
+            new Migration(7, "Add photos") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Adding a column that defaults to null doesn't rewrite any rows.
+                    db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                            + PetEntry.PET_PHOTO + " INTEGER;");
+                }
+            },
+            new Migration(8, "Log changes to pets") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // The pets already stored aren't logged. Clients start out by loading every
+                    // pet anyway.
+                    createChangesTable(db);
+                }
+            },
+            new Migration(9, "Track the sync state of pets",
+                    // Every pet stored so far is new to the server. One the backfill hasn't got
+                    // to yet is left out of syncs until it has.
+                    "INSERT INTO " + SyncEntry.TABLE_NAME + "(" + SyncEntry.SYNC_ID + ", "
+                            + SyncEntry.PET_ID + ", " + SyncEntry.DIRTY + ", "
+                            + SyncEntry.NAME_TIME + ", " + SyncEntry.BREED_TIME + ", "
+                            + SyncEntry.GENDER_TIME + ", " + SyncEntry.WEIGHT_TIME + ") SELECT "
+                            + NEW_SYNC_ID + ", " + PetEntry._ID + ", 1, " + NOW_MILLIS + ", "
+                            + NOW_MILLIS + ", " + NOW_MILLIS + ", " + NOW_MILLIS + " FROM "
+                            + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " > ? AND "
+                            + PetEntry._ID + " <= ?") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createSyncTables(db);
+                }
+            },
+            new Migration(10, "Index the trigrams of names and breeds") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Built after the next write, or by the first look for duplicates.
+                    PetTrigramIndex.createTables(db);
+                }
+            },
+    };
+
+    static {
+        // Catch a migration that was added without bumping the version, or out of order.
+        for (int i = 0; i < MIGRATIONS.length; i++) {
+            if (MIGRATIONS[i].version != i + 2) {
+                throw new IllegalStateException("Migration " + i + " upgrades to version "
+                        + MIGRATIONS[i].version + " instead of " + (i + 2));
+            }
+        }
+        if (MIGRATIONS.length + 1 != DATABASE_VERSION) {
+            throw new IllegalStateException("Database version " + DATABASE_VERSION
+                    + " doesn't match the last migration");
+        }
+    }
+
     public PetDbHelper(Context context){
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DEFAULT_SYNCHRONOUS_MODE);
+    }
+
+    /**
+     * @param synchronousMode The SQLite synchronous mode commits are made with: OFF, NORMAL,
+     *                        FULL or EXTRA.
+     */
+    public PetDbHelper(Context context, String synchronousMode){
+        this(context, DATABASE_NAME, synchronousMode);
+    }
+
+    /**
+     * @param name            Name of the database file. Anything other than {@link #DATABASE_NAME}
+     *                        is a scratch database, like the ones benchmarks and tests use.
+     * @param synchronousMode The SQLite synchronous mode commits are made with: OFF, NORMAL,
+     *                        FULL or EXTRA.
+     */
+    public PetDbHelper(Context context, String name, String synchronousMode){
+        this(context, name, synchronousMode, true);
+    }
+
+    /**
+     * @param writeAheadLogging Whether to use write-ahead logging or the rollback journal. Only
+     *                          the benchmark uses the rollback journal, to compare the two.
+     */
+    PetDbHelper(Context context, String name, String synchronousMode, boolean writeAheadLogging){
+        super(context, name, null, DATABASE_VERSION);
+        if (!Arrays.asList("OFF", "NORMAL", "FULL", "EXTRA").contains(synchronousMode)) {
+            throw new IllegalArgumentException("Unknown synchronous mode " + synchronousMode);
+        }
+        this.synchronousMode = synchronousMode;
+        this.writeAheadLogging = writeAheadLogging;
+
+        // Write-ahead logging lets readers, like the catalog's loader, keep reading from their own
+        // connections while a write is in progress instead of waiting for it to finish.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(writeAheadLogging);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db){
+        super.onOpen(db);
+        if (writeAheadLogging && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN
+                && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
+
+        // Only the primary connection writes, and this runs on the primary connection.
+        db.execSQL("PRAGMA synchronous = " + synchronousMode);
+
+        if (created) {
+            // Android creates a table of its own before onCreate, so incremental vacuum can't be
+            // turned on without a VACUUM even for a new database. An empty one takes no time.
+            created = false;
+            enableIncrementalVacuum(db);
+        }
+        else if (!db.isReadOnly() && hasBackfills(db)) {
+            scheduleBackfills();
+        }
+    }
+
+    /**
+     * Open the database on a background thread, so that the first query finds it open instead
+     * of opening it, and maybe creating or upgrading it, on whatever thread asked first. That is
+     * usually the catalog's loader, while the first frame waits. The helper only opens the
+     * database once, so a query that comes in meanwhile waits for this rather than repeating it.
+     */
+    public void prewarm(){
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                TraceCompat.beginSection("PetDbHelper.prewarm");
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    getWritableDatabase();
+                    // Opens a reading connection too, and reads the schema into it, which
+                    // would otherwise be left for the first query.
+                    DatabaseUtils.longForQuery(getReadableDatabase(),
+                            "SELECT COUNT(*) FROM sqlite_master", null);
+                    Log.i(LOG_TAG, "Opened the database in "
+                            + (SystemClock.elapsedRealtime() - start) + " ms");
+                } catch (RuntimeException e) {
+                    // The first query opens it again and reports the error to its caller.
+                    Log.e(LOG_TAG, "Couldn't open the database in the background", e);
+                } finally {
+                    TraceCompat.endSection();
+                }
+            }
+        }, LOG_TAG + "Prewarm");
+        thread.start();
+    }
+
+    /**
+     * Give the pages left empty by deleted pets back to the file system, so the database file
+     * shrinks instead of staying at the biggest it has ever been. Meant to be called after each
+     * chunk of a mass delete, which keeps every step short.
+     *
+     * A database made before incremental vacuum was turned on has to be rebuilt once to turn it
+     * on, which takes as long as copying the whole database. That is left until the last chunk
+     * of a mass delete, when there is the least left to copy.
+     *
+     * @param lastChunk Whether or not the mass delete has finished.
+     */
+    void reclaimFreePages(boolean lastChunk){
+        SQLiteDatabase db = getWritableDatabase();
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                == AUTO_VACUUM_INCREMENTAL) {
+            // Each page freed is stepped over as a row, so every row has to be read.
+            Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum", null);
+            try {
+                cursor.getCount();
+            } finally {
+                cursor.close();
+            }
+        }
+        else if (lastChunk && !db.inTransaction()) {
+            enableIncrementalVacuum(db);
+        }
+    }
+
+    /**
+     * Rebuild the database with auto_vacuum set to INCREMENTAL, which only takes effect through
+     * a VACUUM. Can't be called inside a transaction.
+     */
+    private static void enableIncrementalVacuum(SQLiteDatabase db){
+        long start = SystemClock.elapsedRealtime();
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        db.execSQL("VACUUM");
+        Log.i(LOG_TAG, "Turned on incremental vacuum in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    /**
+     * Checkpoint the write-ahead log on a background thread once writes stop for a moment. This
+     * copies committed pages back into the database while nobody is waiting, so the writer that
+     * fills the log rarely has to run SQLite's automatic checkpoint itself.
+     */
+    public synchronized void scheduleCheckpoint(){
+        Handler handler = getCheckpointHandler();
+        handler.removeCallbacks(checkpointRunnable);
+        handler.postDelayed(checkpointRunnable, CHECKPOINT_DELAY_MS);
+    }
+
+    /**
+     * Run the backfills left by an upgrade on the checkpoint thread, a moment from now so the
+     * first queries after opening the database don't wait behind them.
+     */
+    private synchronized void scheduleBackfills(){
+        Handler handler = getCheckpointHandler();
+        handler.removeCallbacks(backfillRunnable);
+        handler.postDelayed(backfillRunnable, BACKFILL_DELAY_MS);
+    }
+
+    private synchronized Handler getCheckpointHandler(){
+        if (checkpointHandler == null) {
+            HandlerThread thread = new HandlerThread(LOG_TAG + "Checkpoint",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            checkpointHandler = new Handler(thread.getLooper());
+        }
+        return checkpointHandler;
+    }
+
+    /**
+     * Stop the checkpoint thread and wait up to the given time for a checkpoint in progress to
+     * finish, so it lets go of the database. The next write starts a new thread. Returns whether
+     * or not the thread stopped in time.
+     */
+    boolean stopCheckpoints(long timeoutMs) throws InterruptedException {
+        Looper looper;
+        synchronized (this) {
+            if (checkpointHandler == null) {
+                return true;
+            }
+            looper = checkpointHandler.getLooper();
+            checkpointHandler = null;
+        }
+        // Not waited for with the lock held, which a checkpoint needs to get the database.
+        looper.quit();
+        Thread thread = looper.getThread();
+        thread.join(timeoutMs);
+        return !thread.isAlive();
+    }
+
+    /**
+     * Stop the checkpoint thread along with closing the database.
+     */
+    @Override
+    public synchronized void close(){
+        if (checkpointHandler != null) {
+            checkpointHandler.getLooper().quit();
+            checkpointHandler = null;
+        }
+        super.close();
+    }
+
+    /**
+     * Returns the index used to find duplicate pets.
+     */
+    PetTrigramIndex getTrigramIndex(){
+        return trigramIndex;
+    }
+
+    /**
+     * Returns roughly how many changes are in the change log, without counting them one by one.
+     */
+    long countChanges(){
+        return DatabaseUtils.longForQuery(getWritableDatabase(), "SELECT IFNULL(MAX("
+                + ChangeEntry.SEQUENCE + ") - MIN(" + ChangeEntry.SEQUENCE + ") + 1, 0) FROM "
+                + ChangeEntry.TABLE_NAME, null);
+    }
+
+    /**
+     * Trim the change log down to the last {@link ChangeEntry#MAX_CHANGES} changes made within
+     * {@link ChangeEntry#RETENTION_MILLIS}. Only the oldest changes are ever removed, so the log
+     * always holds every change after its first one, which is how the provider tells whether
+     * it can still answer a client.
+     *
+     * @return the number of changes removed.
+     */
+    int compactChanges(){
+        SQLiteDatabase db = getWritableDatabase();
+        long start = SystemClock.elapsedRealtime();
+        long maxSequence = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                + ChangeEntry.SEQUENCE + "), 0) FROM " + ChangeEntry.TABLE_NAME, null);
+        // The clock can be set back, so look for the last expired change rather than assuming
+        // the changes are in order of time.
+        long lastExpired = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                + ChangeEntry.SEQUENCE + "), 0) FROM " + ChangeEntry.TABLE_NAME + " WHERE "
+                + CHANGES_TIME + " < ?", new String[] {
+                String.valueOf(System.currentTimeMillis() - ChangeEntry.RETENTION_MILLIS) });
+        long cutoff = Math.max(maxSequence - ChangeEntry.MAX_CHANGES, lastExpired);
+        if (cutoff <= 0) {
+            return 0;
+        }
+
+        int count = db.delete(ChangeEntry.TABLE_NAME, ChangeEntry.SEQUENCE + " <= ?",
+                new String[] { String.valueOf(cutoff) });
+        Log.d(LOG_TAG, "Trimmed " + count + " changes from the log in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+        return count;
+    }
+
+    /**
+     * Copy as much of the write-ahead log into the database as possible without waiting for
+     * readers or blocking writers.
+     */
+    void checkpoint(){
+        long start = SystemClock.elapsedRealtime();
+        Cursor cursor = getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        try {
+            if (cursor.moveToFirst()) {
+                Log.d(LOG_TAG, "Checkpointed " + cursor.getInt(2) + " of " + cursor.getInt(1)
+                        + " log frames in " + (SystemClock.elapsedRealtime() - start) + " ms");
+            }
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db){
+        // Create the version 1 schema, then build it up to the current version with the same
+        // steps an existing database goes through.
         String SQL_CREATE_PETS_TABLE = "CREATE TABLE "  + PetEntry.TABLE_NAME + "("
                                                         + PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
                                                         + PetEntry.PET_NAME + " TEXT NOT NULL, "
@@ -23,12 +570,341 @@ public class PetDbHelper extends SQLiteOpenHelper {
                                                         + PetEntry.PET_GENDER + " INTEGER NOT NULL, "
                                                         + PetEntry.PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);";
         db.execSQL(SQL_CREATE_PETS_TABLE);
+        migrate(db, 1, DATABASE_VERSION);
+        created = true;
     }
 
     @Override
-    public void onUpgrade(SQLiteDatabase db, int i, int i1){
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion){
+        migrate(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Run every migration step between the two versions in order, logging how long each took.
+     * Their backfills are only recorded, to be run once the database is open.
+     */
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion){
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version <= oldVersion || migration.version > newVersion) {
+                continue;
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            migration.migrate(db);
+            if (migration.backfill != null) {
+                addBackfill(db, migration);
+            }
+            Log.i(LOG_TAG, "Upgraded to version " + migration.version + " ("
+                    + migration.description + ") in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+    }
+
+    /**
+     * Leave the step's backfill to run over every pet stored so far. Pets stored after this are
+     * up to date already, so the backfill stops at the last _ID there is now. Nothing is left if
+     * there are no pets, as in a new database.
+     */
+    private static void addBackfill(SQLiteDatabase db, Migration migration){
+        long maxId = DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(MAX(" + PetEntry._ID + "), 0) FROM " + PetEntry.TABLE_NAME, null);
+        if (maxId == 0) {
+            return;
+        }
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + BACKFILL_TABLE_NAME + "("
+                + BACKFILL_VERSION + " INTEGER PRIMARY KEY, "
+                + BACKFILL_LAST_ID + " INTEGER NOT NULL, "
+                + BACKFILL_MAX_ID + " INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO " + BACKFILL_TABLE_NAME + " VALUES (?, 0, ?)",
+                new Object[] { migration.version, maxId });
+    }
+
+    /**
+     * Returns whether or not an upgrade left backfills that haven't finished.
+     */
+    static boolean hasBackfills(SQLiteDatabase db){
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master WHERE type = "
+                + "'table' AND name = ?", new String[] { BACKFILL_TABLE_NAME }) > 0;
+    }
+
+    /**
+     * Run every backfill left by an upgrade to the end, on this thread.
+     */
+    void runBackfills(){
+        while (runBackfillChunk()) {
+            // Each call commits a chunk.
+        }
+    }
+
+    /**
+     * Run the next chunk of {@link #MIGRATION_CHUNK_SIZE} pets of the backfills left by an
+     * upgrade in a transaction of its own, so that writers never wait for more than one chunk.
+     * The chunk saves how far its backfill got along with its changes, so a backfill that is
+     * stopped part way, say by the app being killed, carries on from there the next time the
+     * database is opened.
+     *
+     * @return whether or not there may be more chunks to run.
+     */
+    boolean runBackfillChunk(){
+        synchronized (backfillLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                boolean more = backfillChunk(db);
+                db.setTransactionSuccessful();
+                return more;
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Run the next chunk of the first backfill left, and save how far it got. Once none are left,
+     * drop the table that kept track of them.
+     *
+     * @return whether or not there may be more chunks to run.
+     */
+    private static boolean backfillChunk(SQLiteDatabase db){
+        if (!hasBackfills(db)) {
+            return false;
+        }
 
+        int version;
+        long lastId;
+        long maxId;
+        Cursor cursor = db.query(BACKFILL_TABLE_NAME, new String[] {
+                BACKFILL_VERSION, BACKFILL_LAST_ID, BACKFILL_MAX_ID }, null, null, null, null,
+                BACKFILL_VERSION, "1");
+        try {
+            if (!cursor.moveToFirst()) {
+                db.execSQL("DROP TABLE " + BACKFILL_TABLE_NAME);
+                return false;
+            }
+            version = cursor.getInt(0);
+            lastId = cursor.getLong(1);
+            maxId = cursor.getLong(2);
+        } finally {
+            cursor.close();
+        }
+
+        String[] whereArgs = { String.valueOf(version) };
+        if (lastId >= maxId) {
+            db.delete(BACKFILL_TABLE_NAME, BACKFILL_VERSION + " = ?", whereArgs);
+            Log.i(LOG_TAG, "Finished the backfill of version " + version);
+            return true;
+        }
+        long end = Math.min(lastId + MIGRATION_CHUNK_SIZE, maxId);
+        db.execSQL(MIGRATIONS[version - 2].backfill, new Object[] { lastId, end });
+        ContentValues values = new ContentValues();
+        values.put(BACKFILL_LAST_ID, end);
+        db.update(BACKFILL_TABLE_NAME, values, BACKFILL_VERSION + " = ?", whereArgs);
+        Log.d(LOG_TAG, "Backfilled version " + version + " up to pet " + end + " of " + maxId);
+        return true;
+    }
+
+    /**
+     * Create an index on a single column of the pets table.
+     */
+    private static void createIndex(SQLiteDatabase db, String column){
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + PetEntry.TABLE_NAME + "_" + column
+                + "_index ON " + PetEntry.TABLE_NAME + "(" + column + ");");
+    }
+
+    /**
+     * Create the summary table along with the triggers that keep it in step with the pets table.
+     */
+    private static void createStatsTable(SQLiteDatabase db){
+        db.execSQL("CREATE TABLE " + STATS_TABLE_NAME + "("
+                + StatsEntry.GENDER + " INTEGER NOT NULL, "
+                + StatsEntry.BREED + " TEXT NOT NULL, "
+                + StatsEntry.PET_COUNT + " INTEGER NOT NULL, "
+                + STATS_WEIGHT_SUM + " INTEGER NOT NULL, "
+                + StatsEntry.WEIGHT_MIN + " INTEGER, "
+                + StatsEntry.WEIGHT_MAX + " INTEGER, "
+                + "PRIMARY KEY (" + StatsEntry.GENDER + ", " + StatsEntry.BREED + "));");
+
+        db.execSQL("CREATE TRIGGER " + STATS_TABLE_NAME + "_insert AFTER INSERT ON "
+                + PetEntry.TABLE_NAME + " BEGIN " + addToStats("new") + " END;");
+
+        db.execSQL("CREATE TRIGGER " + STATS_TABLE_NAME + "_update AFTER UPDATE OF "
+                + PetEntry.PET_GENDER + ", " + PetEntry.PET_BREED + ", " + PetEntry.PET_WEIGHT
+                + " ON " + PetEntry.TABLE_NAME + " BEGIN " + removeFromStats("old")
+                + addToStats("new") + " END;");
+
+        db.execSQL("CREATE TRIGGER " + STATS_TABLE_NAME + "_delete AFTER DELETE ON "
+                + PetEntry.TABLE_NAME + " BEGIN " + removeFromStats("old") + " END;");
+    }
+
+    /**
+     * Returns the trigger statements that count the pet in the given row ("new" or "old") in its
+     * group of the summary.
+     */
+    private static String addToStats(String row){
+        String gender = row + "." + PetEntry.PET_GENDER;
+        String breed = "COALESCE(" + row + "." + PetEntry.PET_BREED + ", '')";
+        String weight = row + "." + PetEntry.PET_WEIGHT;
+        return "INSERT OR IGNORE INTO " + STATS_TABLE_NAME + " VALUES (" + gender + ", " + breed
+                + ", 0, 0, " + weight + ", " + weight + "); "
+                + "UPDATE " + STATS_TABLE_NAME + " SET "
+                + StatsEntry.PET_COUNT + " = " + StatsEntry.PET_COUNT + " + 1, "
+                + STATS_WEIGHT_SUM + " = " + STATS_WEIGHT_SUM + " + " + weight + ", "
+                + StatsEntry.WEIGHT_MIN + " = MIN(" + StatsEntry.WEIGHT_MIN + ", " + weight + "), "
+                + StatsEntry.WEIGHT_MAX + " = MAX(" + StatsEntry.WEIGHT_MAX + ", " + weight + ")"
+                + " WHERE " + StatsEntry.GENDER + " = " + gender + " AND " + StatsEntry.BREED
+                + " = " + breed + "; ";
+    }
+
+    /**
+     * Returns the trigger statements that take the pet in the given row ("new" or "old") out of
+     * its group of the summary. The minimum or maximum weight only has to be looked up again
+     * when the pet held it, and then only among the pets of the same gender and breed.
+     */
+    private static String removeFromStats(String row){
+        String gender = row + "." + PetEntry.PET_GENDER;
+        String breed = "COALESCE(" + row + "." + PetEntry.PET_BREED + ", '')";
+        String weight = row + "." + PetEntry.PET_WEIGHT;
+        String group = " FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry.PET_GENDER + " = "
+                + gender + " AND COALESCE(" + PetEntry.PET_BREED + ", '') = " + breed;
+        return "UPDATE " + STATS_TABLE_NAME + " SET "
+                + StatsEntry.PET_COUNT + " = " + StatsEntry.PET_COUNT + " - 1, "
+                + STATS_WEIGHT_SUM + " = " + STATS_WEIGHT_SUM + " - " + weight + ", "
+                + StatsEntry.WEIGHT_MIN + " = CASE WHEN " + weight + " > " + StatsEntry.WEIGHT_MIN
+                + " THEN " + StatsEntry.WEIGHT_MIN + " ELSE (SELECT MIN(" + PetEntry.PET_WEIGHT
+                + ")" + group + ") END, "
+                + StatsEntry.WEIGHT_MAX + " = CASE WHEN " + weight + " < " + StatsEntry.WEIGHT_MAX
+                + " THEN " + StatsEntry.WEIGHT_MAX + " ELSE (SELECT MAX(" + PetEntry.PET_WEIGHT
+                + ")" + group + ") END"
+                + " WHERE " + StatsEntry.GENDER + " = " + gender + " AND " + StatsEntry.BREED
+                + " = " + breed + "; "
+                + "DELETE FROM " + STATS_TABLE_NAME + " WHERE " + StatsEntry.GENDER + " = "
+                + gender + " AND " + StatsEntry.BREED + " = " + breed + " AND "
+                + StatsEntry.PET_COUNT + " = 0; ";
+    }
+
+    /**
+     * Create the change log along with the triggers that fill it, so every way of writing a pet
+     * logs the change in the same transaction. AUTOINCREMENT keeps the numbers of trimmed
+     * changes from being handed out again.
+     */
+    private static void createChangesTable(SQLiteDatabase db){
+        db.execSQL("CREATE TABLE " + ChangeEntry.TABLE_NAME + "("
+                + ChangeEntry.SEQUENCE + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + ChangeEntry.PET_ID + " INTEGER NOT NULL, "
+                + ChangeEntry.OPERATION + " INTEGER NOT NULL, "
+                + CHANGES_TIME + " INTEGER NOT NULL);");
+
+        db.execSQL("CREATE TRIGGER " + ChangeEntry.TABLE_NAME + "_insert AFTER INSERT ON "
+                + PetEntry.TABLE_NAME + " BEGIN "
+                + logChange("new", ChangeEntry.OPERATION_INSERT) + " END;");
+
+        db.execSQL("CREATE TRIGGER " + ChangeEntry.TABLE_NAME + "_update AFTER UPDATE ON "
+                + PetEntry.TABLE_NAME + " BEGIN "
+                + logChange("new", ChangeEntry.OPERATION_UPDATE) + " END;");
+
+        db.execSQL("CREATE TRIGGER " + ChangeEntry.TABLE_NAME + "_delete AFTER DELETE ON "
+                + PetEntry.TABLE_NAME + " BEGIN "
+                + logChange("old", ChangeEntry.OPERATION_DELETE) + " END;");
+    }
+
+    /**
+     * Returns the trigger statement that logs the operation on the pet in the given row ("new"
+     * or "old").
+     */
+    private static String logChange(String row, int operation){
+        return "INSERT INTO " + ChangeEntry.TABLE_NAME + "(" + ChangeEntry.PET_ID + ", "
+                + ChangeEntry.OPERATION + ", " + CHANGES_TIME + ") VALUES (" + row + "."
+                + PetEntry._ID + ", " + operation + ", " + NOW_MILLIS + "); ";
     }
 
+    /**
+     * Create the sync tables along with the triggers that keep them in step with the pets table.
+     * Every local write marks the pet dirty and stamps the columns it changed. Changes from the
+     * server go through the same triggers, so the provider puts back the server's times
+     * afterwards.
+     */
+    private static void createSyncTables(SQLiteDatabase db){
+        db.execSQL("CREATE TABLE " + SyncEntry.TABLE_NAME + "("
+                + SyncEntry.SYNC_ID + " TEXT PRIMARY KEY, "
+                + SyncEntry.PET_ID + " INTEGER UNIQUE, "
+                + SyncEntry.DIRTY + " INTEGER NOT NULL, "
+                + SyncEntry.DELETED_TIME + " INTEGER, "
+                + SyncEntry.NAME_TIME + " INTEGER NOT NULL, "
+                + SyncEntry.BREED_TIME + " INTEGER NOT NULL, "
+                + SyncEntry.GENDER_TIME + " INTEGER NOT NULL, "
+                + SyncEntry.WEIGHT_TIME + " INTEGER NOT NULL);");
+        // Only the few dirty pets are read when sending.
+        db.execSQL("CREATE INDEX " + SyncEntry.TABLE_NAME + "_dirty_index ON "
+                + SyncEntry.TABLE_NAME + "(" + SyncEntry.DIRTY + ");");
 
+        db.execSQL("CREATE TABLE " + SYNC_STATE_TABLE_NAME + "("
+                + SYNC_STATE_SERVER + " TEXT PRIMARY KEY, "
+                + SyncEntry.KEY_WATERMARK + " INTEGER NOT NULL);");
+
+        db.execSQL("CREATE TRIGGER " + SyncEntry.TABLE_NAME + "_insert AFTER INSERT ON "
+                + PetEntry.TABLE_NAME + " BEGIN "
+                + "INSERT INTO " + SyncEntry.TABLE_NAME + "(" + SyncEntry.SYNC_ID + ", "
+                + SyncEntry.PET_ID + ", " + SyncEntry.DIRTY + ", " + SyncEntry.NAME_TIME + ", "
+                + SyncEntry.BREED_TIME + ", " + SyncEntry.GENDER_TIME + ", "
+                + SyncEntry.WEIGHT_TIME + ") VALUES (" + NEW_SYNC_ID + ", new." + PetEntry._ID
+                + ", 1, " + NOW_MILLIS + ", " + NOW_MILLIS + ", " + NOW_MILLIS + ", "
+                + NOW_MILLIS + "); END;");
+
+        String changed = "old." + PetEntry.PET_NAME + " IS NOT new." + PetEntry.PET_NAME
+                + " OR old." + PetEntry.PET_BREED + " IS NOT new." + PetEntry.PET_BREED
+                + " OR old." + PetEntry.PET_GENDER + " IS NOT new." + PetEntry.PET_GENDER
+                + " OR old." + PetEntry.PET_WEIGHT + " IS NOT new." + PetEntry.PET_WEIGHT;
+        db.execSQL("CREATE TRIGGER " + SyncEntry.TABLE_NAME + "_update AFTER UPDATE OF "
+                + PetEntry.PET_NAME + ", " + PetEntry.PET_BREED + ", " + PetEntry.PET_GENDER
+                + ", " + PetEntry.PET_WEIGHT + " ON " + PetEntry.TABLE_NAME + " WHEN " + changed
+                + " BEGIN UPDATE " + SyncEntry.TABLE_NAME + " SET "
+                + SyncEntry.DIRTY + " = " + SyncEntry.DIRTY + " + 1, "
+                + stampIfChanged(PetEntry.PET_NAME, SyncEntry.NAME_TIME) + ", "
+                + stampIfChanged(PetEntry.PET_BREED, SyncEntry.BREED_TIME) + ", "
+                + stampIfChanged(PetEntry.PET_GENDER, SyncEntry.GENDER_TIME) + ", "
+                + stampIfChanged(PetEntry.PET_WEIGHT, SyncEntry.WEIGHT_TIME)
+                + " WHERE " + SyncEntry.PET_ID + " = new." + PetEntry._ID + "; END;");
+
+        // The tombstone keeps the pet's _ID, which SQLite never hands out again.
+        db.execSQL("CREATE TRIGGER " + SyncEntry.TABLE_NAME + "_delete AFTER DELETE ON "
+                + PetEntry.TABLE_NAME + " BEGIN UPDATE " + SyncEntry.TABLE_NAME + " SET "
+                + SyncEntry.DIRTY + " = " + SyncEntry.DIRTY + " + 1, "
+                + SyncEntry.DELETED_TIME + " = " + NOW_MILLIS
+                + " WHERE " + SyncEntry.PET_ID + " = old." + PetEntry._ID + "; END;");
+    }
+
+    /**
+     * Returns the trigger SQL that sets the time column to now if the pet column changed.
+     */
+    private static String stampIfChanged(String column, String timeColumn){
+        return timeColumn + " = CASE WHEN old." + column + " IS NOT new." + column + " THEN "
+                + NOW_MILLIS + " ELSE " + timeColumn + " END";
+    }
+
+    /**
+     * Create the full-text search table along with the triggers that keep it in step with the
+     * pets table, so every way of writing a pet also updates the search index.
+     */
+    private static void createSearchTable(SQLiteDatabase db){
+        db.execSQL("CREATE VIRTUAL TABLE " + SEARCH_TABLE_NAME + " USING fts4("
+                + PetEntry.PET_NAME + ", " + PetEntry.PET_BREED + ");");
+
+        db.execSQL("CREATE TRIGGER " + SEARCH_TABLE_NAME + "_insert AFTER INSERT ON "
+                + PetEntry.TABLE_NAME + " BEGIN "
+                + "INSERT INTO " + SEARCH_TABLE_NAME + "(docid, " + PetEntry.PET_NAME + ", "
+                + PetEntry.PET_BREED + ") VALUES (new." + PetEntry._ID + ", new."
+                + PetEntry.PET_NAME + ", new." + PetEntry.PET_BREED + "); END;");
+
+        db.execSQL("CREATE TRIGGER " + SEARCH_TABLE_NAME + "_update AFTER UPDATE OF "
+                + PetEntry.PET_NAME + ", " + PetEntry.PET_BREED + " ON " + PetEntry.TABLE_NAME
+                + " BEGIN "
+                + "UPDATE " + SEARCH_TABLE_NAME + " SET " + PetEntry.PET_NAME + " = new."
+                + PetEntry.PET_NAME + ", " + PetEntry.PET_BREED + " = new." + PetEntry.PET_BREED
+                + " WHERE docid = old." + PetEntry._ID + "; END;");
+
+        db.execSQL("CREATE TRIGGER " + SEARCH_TABLE_NAME + "_delete AFTER DELETE ON "
+                + PetEntry.TABLE_NAME + " BEGIN "
+                + "DELETE FROM " + SEARCH_TABLE_NAME + " WHERE docid = old." + PetEntry._ID
+                + "; END;");
+    }
 }
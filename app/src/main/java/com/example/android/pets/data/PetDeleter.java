@@ -0,0 +1,95 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Deletes a large number of pets, such as every pet in the shelter, a chunk at a time. Each
+ * chunk is its own short transaction, so other writes get to the database in between chunks
+ * rather than waiting for a single huge DELETE to finish, and the space each chunk frees is given
+ * back as it goes. This takes a while, so run it on a background thread.
+ */
+public final class PetDeleter {
+
+    /**
+     * Number of pets deleted per transaction. Every pet deleted also updates the search index
+     * and the summary, so a chunk this size is still over quickly.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+
+    /**
+     * Told how a delete is going. Called on the thread running the delete.
+     */
+    public interface ProgressListener {
+        /**
+         * Called after each chunk. The total is counted before the delete starts, so pets added
+         * while it runs aren't in it.
+         */
+        void onProgress(int petsDeleted, int petsTotal);
+    }
+
+    private final ContentResolver resolver;
+
+    private final int chunkSize;
+
+    private volatile boolean cancelled = false;
+
+    public PetDeleter(ContentResolver resolver, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.resolver = resolver;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Stop once the chunk being deleted has been committed. The pets deleted so far stay deleted.
+     * Can be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Delete every pet matching the selection, or every pet if it's null.
+     *
+     * @param listener Told the progress after each chunk. May be null.
+     * @return the number of pets deleted.
+     */
+    public int deletePets(String selection, String[] selectionArgs, ProgressListener listener) {
+        int total = countPets(selection, selectionArgs);
+        Uri chunkUri = PetEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(PetEntry.QUERY_PARAM_LIMIT, String.valueOf(chunkSize))
+                .build();
+
+        int deleted = 0;
+        while (!cancelled) {
+            int count = resolver.delete(chunkUri, selection, selectionArgs);
+            deleted += count;
+            if (listener != null) {
+                listener.onProgress(deleted, Math.max(total, deleted));
+            }
+            if (count < chunkSize) {
+                // Nothing left matching the selection.
+                break;
+            }
+        }
+        return deleted;
+    }
+
+    private int countPets(String selection, String[] selectionArgs) {
+        Cursor cursor = resolver.query(PetEntry.CONTENT_URI, new String[] { "COUNT(*)" },
+                selection, selectionArgs, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.ExportEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes every pet into a pipe for {@link ExportEntry#CONTENT_URI}. The pets are read a chunk at
+ * a time, seeking past the last _ID of the previous chunk, and each chunk is written out before
+ * the next one is read. Only one chunk is held in memory however many pets there are, and the
+ * reader gets the first rows as soon as the first chunk has been read.
+ */
+final class PetExporter implements ContentProvider.PipeDataWriter<String> {
+
+    /** Number of pets read from the database at a time. */
+    static final int CHUNK_SIZE = 500;
+
+    private static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.PET_NAME,
+            PetEntry.PET_BREED,
+            PetEntry.PET_GENDER,
+            PetEntry.PET_WEIGHT };
+
+    private final PetDbHelper dbHelper;
+
+    PetExporter(PetDbHelper dbHelper) {
+        this.dbHelper = dbHelper;
+    }
+
+    /**
+     * Runs on a background thread from {@link ContentProvider#openPipeHelper}, which closes the
+     * pipe afterwards.
+     *
+     * @param format One of the {@link ExportEntry} FORMAT values.
+     */
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                                Bundle opts, String format) {
+        boolean csv = ExportEntry.FORMAT_CSV.equals(format);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(output.getFileDescriptor()), Charset.forName("UTF-8")));
+        int exported = 0;
+        try {
+            if (csv) {
+                writer.write("_id,name,breed,gender,weight\n");
+            }
+
+            SQLiteDatabase database = dbHelper.getReadableDatabase();
+            long lastId = 0;
+            int read;
+            do {
+                Cursor cursor = database.query(PetEntry.TABLE_NAME, COLUMNS,
+                        PetEntry._ID + " > ?", new String[] { String.valueOf(lastId) },
+                        null, null, PetEntry._ID + " ASC", String.valueOf(CHUNK_SIZE));
+                try {
+                    read = cursor.getCount();
+                    while (cursor.moveToNext()) {
+                        lastId = cursor.getLong(0);
+                        if (csv) {
+                            writeCsvRow(writer, cursor);
+                        }
+                        else {
+                            writeJsonRow(writer, cursor);
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+                exported += read;
+                // Let the reader have this chunk while the next one is read.
+                writer.flush();
+            } while (read == CHUNK_SIZE);
+        } catch (IOException e) {
+            // Most likely the reader closed its end of the pipe early.
+            Log.w(PetProvider.LOG_TAG, "Export stopped after " + exported + " pets", e);
+        } catch (RuntimeException e) {
+            // Thrown on the pipe's own thread, this would crash the app, so end the export here.
+            Log.e(PetProvider.LOG_TAG, "Export failed after " + exported + " pets", e);
+            closeWithError(output, e);
+        }
+    }
+
+    /**
+     * Close the pipe early so the reader stops waiting for more pets. From KitKat the error goes
+     * along with it, for readers on a pipe that can carry one. Other readers see the export end
+     * early. Closing it again in {@link ContentProvider#openPipeHelper} does nothing.
+     */
+    private static void closeWithError(ParcelFileDescriptor output, RuntimeException error) {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                output.closeWithError("Export failed: " + error);
+            }
+            else {
+                output.close();
+            }
+        } catch (IOException e) {
+            Log.w(PetProvider.LOG_TAG, "Failed to close the export pipe", e);
+        }
+    }
+
+    private static void writeCsvRow(Writer writer, Cursor cursor) throws IOException {
+        writer.write(String.valueOf(cursor.getLong(0)));
+        writer.write(',');
+        writeCsvField(writer, cursor.getString(1));
+        writer.write(',');
+        writeCsvField(writer, cursor.getString(2));
+        writer.write(',');
+        writer.write(String.valueOf(cursor.getInt(3)));
+        writer.write(',');
+        writer.write(String.valueOf(cursor.getInt(4)));
+        writer.write('\n');
+    }
+
+    /**
+     * Write a text field, quoting it if it has anything in it that CSV treats specially. A
+     * missing breed is written as an empty field.
+     */
+    private static void writeCsvField(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    private static void writeJsonRow(Writer writer, Cursor cursor) throws IOException {
+        writer.write("{\"_id\":");
+        writer.write(String.valueOf(cursor.getLong(0)));
+        writer.write(",\"name\":");
+        writeJsonString(writer, cursor.getString(1));
+        writer.write(",\"breed\":");
+        writeJsonString(writer, cursor.getString(2));
+        writer.write(",\"gender\":");
+        writer.write(String.valueOf(cursor.getInt(3)));
+        writer.write(",\"weight\":");
+        writer.write(String.valueOf(cursor.getInt(4)));
+        writer.write("}\n");
+    }
+
+    private static void writeJsonString(Writer writer, String value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        writer.write(c);
+                    }
+                    break;
+            }
+        }
+        writer.write('"');
+    }
+}
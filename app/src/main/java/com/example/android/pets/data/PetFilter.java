@@ -0,0 +1,268 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The filters, sort order and paging of a query on {@link PetEntry#CONTENT_URI}, read from its
+ * query parameters. A filter always compiles to the same SQL with ? in place of its values, and
+ * the filters are always added in the same order, so every query with the same combination of
+ * filters runs the same statement and SQLite can reuse it from its statement cache.
+ *
+ * Every filter is written so it can be answered from the index on its column. A name prefix
+ * becomes a range on the name rather than a LIKE, which couldn't use the index, and a weight
+ * range always has both ends, since SQLite would rather scan in sort order than use the index
+ * for a range with only one end. {@link #findFullScans} checks the plan of every combination.
+ */
+final class PetFilter {
+
+    /** Matches the query plan step of a scan over the whole pets table, or a whole index on it. */
+    private static final Pattern FULL_SCAN = Pattern.compile(
+            "^SCAN (TABLE )?" + PetEntry.TABLE_NAME + "\\b");
+
+    private Integer gender;
+    private String breed;
+    private Long minWeight;
+    private Long maxWeight;
+    private String namePrefix;
+    private String sort;
+    private Long afterId;
+    private String afterKey;
+
+    private PetFilter() {
+    }
+
+    /**
+     * Read the filters from the query parameters of the URI.
+     *
+     * @throws IllegalArgumentException if a parameter has a value that isn't allowed.
+     */
+    static PetFilter fromUri(Uri uri) {
+        PetFilter filter = new PetFilter();
+
+        String gender = uri.getQueryParameter(PetEntry.QUERY_PARAM_GENDER);
+        if (gender != null) {
+            long value = PetProvider.parseLongParameter(uri, PetEntry.QUERY_PARAM_GENDER, gender);
+            if (!PetEntry.isValidGender((int) value) || value != (int) value) {
+                throw new IllegalArgumentException("Invalid gender parameter " + uri);
+            }
+            filter.gender = (int) value;
+        }
+
+        filter.breed = uri.getQueryParameter(PetEntry.QUERY_PARAM_BREED);
+
+        String minWeight = uri.getQueryParameter(PetEntry.QUERY_PARAM_MIN_WEIGHT);
+        if (minWeight != null) {
+            filter.minWeight = PetProvider.parseLongParameter(uri,
+                    PetEntry.QUERY_PARAM_MIN_WEIGHT, minWeight);
+        }
+        String maxWeight = uri.getQueryParameter(PetEntry.QUERY_PARAM_MAX_WEIGHT);
+        if (maxWeight != null) {
+            filter.maxWeight = PetProvider.parseLongParameter(uri,
+                    PetEntry.QUERY_PARAM_MAX_WEIGHT, maxWeight);
+        }
+
+        String namePrefix = uri.getQueryParameter(PetEntry.QUERY_PARAM_NAME_PREFIX);
+        if (!TextUtils.isEmpty(namePrefix)) {
+            if (prefixUpperBound(namePrefix) == null) {
+                throw new IllegalArgumentException("Invalid name prefix parameter " + uri);
+            }
+            filter.namePrefix = namePrefix;
+        }
+
+        String sort = uri.getQueryParameter(PetEntry.QUERY_PARAM_SORT);
+        if (sort != null && !PetEntry.SORT_ID.equals(sort) && !PetEntry.SORT_NAME.equals(sort)
+                && !PetEntry.SORT_WEIGHT.equals(sort)) {
+            throw new IllegalArgumentException("Invalid sort parameter " + uri);
+        }
+        filter.sort = sort;
+
+        String afterId = uri.getQueryParameter(PetEntry.QUERY_PARAM_AFTER_ID);
+        if (afterId != null) {
+            filter.afterId = PetProvider.parseLongParameter(uri, PetEntry.QUERY_PARAM_AFTER_ID,
+                    afterId);
+            if (filter.sort == null) {
+                // Pages have always been sorted by _ID.
+                filter.sort = PetEntry.SORT_ID;
+            }
+            if (!PetEntry.SORT_ID.equals(filter.sort)) {
+                filter.afterKey = uri.getQueryParameter(PetEntry.QUERY_PARAM_AFTER_KEY);
+                if (filter.afterKey == null) {
+                    throw new IllegalArgumentException("Pages sorted by " + filter.sort
+                            + " need an " + PetEntry.QUERY_PARAM_AFTER_KEY + " parameter " + uri);
+                }
+                if (PetEntry.SORT_WEIGHT.equals(filter.sort)) {
+                    PetProvider.parseLongParameter(uri, PetEntry.QUERY_PARAM_AFTER_KEY,
+                            filter.afterKey);
+                }
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Returns whether or not the query has to be sorted by {@link #getSortOrder}, in which case
+     * the caller can't give a sort order of its own.
+     */
+    boolean isSorted() {
+        return sort != null;
+    }
+
+    /**
+     * Returns the WHERE clause for the filters, or null if there aren't any.
+     */
+    String getSelection() {
+        List<String> clauses = new ArrayList<>();
+        if (gender != null) {
+            clauses.add(PetEntry.PET_GENDER + " = ?");
+        }
+        if (breed != null) {
+            clauses.add(PetEntry.PET_BREED + " = ?");
+        }
+        if (minWeight != null || maxWeight != null) {
+            clauses.add(PetEntry.PET_WEIGHT + " >= ? AND " + PetEntry.PET_WEIGHT + " <= ?");
+        }
+        if (namePrefix != null) {
+            clauses.add(PetEntry.PET_NAME + " >= ? AND " + PetEntry.PET_NAME + " < ?");
+        }
+        if (afterId != null) {
+            if (PetEntry.SORT_ID.equals(sort)) {
+                clauses.add(PetEntry._ID + " > ?");
+            }
+            else {
+                // Seek past the last pet of the previous page. The first half lets SQLite start
+                // from that pet in the index, the second steps over the pets before it that
+                // share its sort key.
+                String key = PetEntry.SORT_NAME.equals(sort)
+                        ? PetEntry.PET_NAME
+                        : PetEntry.PET_WEIGHT;
+                clauses.add(key + " >= ? AND (" + key + " > ? OR " + PetEntry._ID + " > ?)");
+            }
+        }
+        return clauses.isEmpty() ? null : TextUtils.join(" AND ", clauses);
+    }
+
+    /**
+     * Returns the arguments for the ? in {@link #getSelection}, in order.
+     */
+    String[] getSelectionArgs() {
+        List<String> args = new ArrayList<>();
+        if (gender != null) {
+            args.add(String.valueOf(gender));
+        }
+        if (breed != null) {
+            args.add(breed);
+        }
+        if (minWeight != null || maxWeight != null) {
+            args.add(String.valueOf(minWeight == null ? Long.MIN_VALUE : minWeight));
+            args.add(String.valueOf(maxWeight == null ? Long.MAX_VALUE : maxWeight));
+        }
+        if (namePrefix != null) {
+            args.add(namePrefix);
+            args.add(prefixUpperBound(namePrefix));
+        }
+        if (afterId != null) {
+            if (!PetEntry.SORT_ID.equals(sort)) {
+                args.add(afterKey);
+                args.add(afterKey);
+            }
+            args.add(String.valueOf(afterId));
+        }
+        return args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * Returns the ORDER BY clause for {@link PetEntry#QUERY_PARAM_SORT}, or null if the query
+     * isn't sorted. Ties are broken by _ID, which every index already holds, so the index on the
+     * sort column gives the rows in order without sorting them.
+     */
+    String getSortOrder() {
+        if (sort == null) {
+            return null;
+        }
+        if (PetEntry.SORT_NAME.equals(sort)) {
+            return PetEntry.PET_NAME + " ASC, " + PetEntry._ID + " ASC";
+        }
+        if (PetEntry.SORT_WEIGHT.equals(sort)) {
+            return PetEntry.PET_WEIGHT + " ASC, " + PetEntry._ID + " ASC";
+        }
+        return PetEntry._ID + " ASC";
+    }
+
+    /**
+     * Returns the smallest string that is greater than every string starting with the prefix, or
+     * null if there isn't one that can be written.
+     */
+    private static String prefixUpperBound(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            end--;
+        }
+        if (end == 0) {
+            return null;
+        }
+        return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    }
+
+    /**
+     * Run EXPLAIN QUERY PLAN on every combination of filters, sort orders and paging, and
+     * return the SQL of every one that reads the whole pets table or a whole index on it
+     * instead of searching an index. An empty list means every filter uses an index.
+     */
+    static List<String> findFullScans(SQLiteDatabase database) {
+        List<String> fullScans = new ArrayList<>();
+        String[] sorts = { PetEntry.SORT_ID, PetEntry.SORT_NAME, PetEntry.SORT_WEIGHT };
+        for (int filters = 0; filters < 16; filters++) {
+            for (String sort : sorts) {
+                for (int paged = 0; paged < 2; paged++) {
+                    PetFilter filter = new PetFilter();
+                    filter.gender = (filters & 1) != 0 ? PetEntry.GENDER_MALE : null;
+                    filter.breed = (filters & 2) != 0 ? "Terrier" : null;
+                    filter.minWeight = (filters & 4) != 0 ? 5L : null;
+                    filter.namePrefix = (filters & 8) != 0 ? "To" : null;
+                    filter.sort = sort;
+                    if (paged != 0) {
+                        filter.afterId = 1L;
+                        filter.afterKey = PetEntry.SORT_NAME.equals(sort) ? "Toby" : "7";
+                    }
+
+                    String selection = filter.getSelection();
+                    if (selection == null) {
+                        // Not filtered at all, so reading every pet is the point.
+                        continue;
+                    }
+                    String sql = SQLiteQueryBuilder.buildQueryString(false, PetEntry.TABLE_NAME,
+                            null, selection, null, null, filter.getSortOrder(), null);
+                    if (isFullScan(database, sql, filter.getSelectionArgs())) {
+                        fullScans.add(sql);
+                    }
+                }
+            }
+        }
+        return fullScans;
+    }
+
+    private static boolean isFullScan(SQLiteDatabase database, String sql, String[] args) {
+        Cursor plan = database.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detail = plan.getColumnIndexOrThrow("detail");
+            while (plan.moveToNext()) {
+                if (FULL_SCAN.matcher(plan.getString(detail)).find()) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            plan.close();
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+
+import com.example.android.pets.data.PetContract.ImportEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Imports pets from a CSV or newline-delimited JSON file, like the ones
+ * {@link PetContract.ExportEntry} writes. The file is read one row at a time and the pets are
+ * inserted in chunks, each chunk in its own transaction along with how far through the file it
+ * got. If the import is interrupted, importing the same file again carries on after the last
+ * chunk that was committed.
+ *
+ * CSV files need a header row naming their columns. Only the name, breed, gender and weight
+ * columns are read, and the gender can be a number or male, female or unknown. Rows that aren't
+ * valid pets are skipped and reported, without stopping the import.
+ *
+ * Imports block for a long time, so they have to be run from a background thread.
+ */
+public class PetImporter {
+
+    /** Number of rows read per chunk, by default. */
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    /**
+     * Told how an import is going. Called on the thread running the import.
+     */
+    public interface ProgressListener {
+        /** Called after every chunk has been committed. */
+        void onProgress(int rowsRead, int rowsImported, int rowsFailed);
+
+        /** Called for every row that couldn't be imported. Rows are numbered from 1. */
+        void onRowFailed(int row, String message);
+    }
+
+    /**
+     * The totals for a whole file, including any chunks committed by earlier attempts.
+     */
+    public static class Result {
+        public final int rowsRead;
+        public final int rowsImported;
+        public final int rowsFailed;
+        /** Rows skipped because an earlier attempt had already committed them. */
+        public final int rowsResumed;
+
+        Result(int rowsRead, int rowsImported, int rowsFailed, int rowsResumed) {
+            this.rowsRead = rowsRead;
+            this.rowsImported = rowsImported;
+            this.rowsFailed = rowsFailed;
+            this.rowsResumed = rowsResumed;
+        }
+    }
+
+    /**
+     * Reads the rows of a file as pets. Returns null at the end of the file, or throws a
+     * {@link RowException} for a row that can't be read.
+     */
+    private interface RowReader {
+        ContentValues next() throws IOException, RowException;
+    }
+
+    /**
+     * A row of the file that couldn't be read as a pet. The rest of the file is still imported.
+     */
+    private static class RowException extends Exception {
+        RowException(String message) {
+            super(message);
+        }
+    }
+
+    private final ContentResolver resolver;
+    private final int chunkSize;
+
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param chunkSize Number of rows read per transaction.
+     */
+    public PetImporter(ContentResolver resolver, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive " + chunkSize);
+        }
+        this.resolver = resolver;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Stop the import after the chunk it's working on. Importing the file again resumes it.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Import every pet in the file at the given URI, carrying on from where an earlier import of
+     * the same URI stopped. Returns null if the import was cancelled.
+     *
+     * @throws IOException if the file can't be read, or isn't a CSV or JSON file.
+     */
+    public Result importPets(Uri source, ProgressListener listener)
+            throws IOException, RemoteException, OperationApplicationException {
+        Uri progressUri = ImportEntry.buildImportUri(source.toString());
+
+        // Pick up where an earlier attempt left off.
+        int resumed = 0;
+        int imported = 0;
+        int failed = 0;
+        Cursor cursor = resolver.query(progressUri, new String[] { ImportEntry.ROWS_READ,
+                ImportEntry.ROWS_IMPORTED, ImportEntry.ROWS_FAILED }, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    resumed = cursor.getInt(0);
+                    imported = cursor.getInt(1);
+                    failed = cursor.getInt(2);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        InputStream input = resolver.openInputStream(source);
+        if (input == null) {
+            throw new FileNotFoundException("Can't open " + source);
+        }
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(input, Charset.forName("UTF-8")));
+        try {
+            RowReader rows = openRows(reader);
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>(chunkSize + 1);
+            int row = 0;
+            while (true) {
+                ContentValues values = null;
+                String error = null;
+                try {
+                    values = rows.next();
+                    if (values == null) {
+                        break;
+                    }
+                } catch (RowException e) {
+                    error = e.getMessage();
+                }
+                // Every row counts once, whether or not it could be read.
+                row++;
+                if (row <= resumed) {
+                    // Already committed by an earlier attempt.
+                    continue;
+                }
+
+                if (error == null) {
+                    try {
+                        PetProvider.sanityCheck(values);
+                        operations.add(ContentProviderOperation.newInsert(PetEntry.CONTENT_URI)
+                                .withValues(values)
+                                .build());
+                    } catch (IllegalArgumentException e) {
+                        error = e.getMessage();
+                    }
+                }
+                if (error != null) {
+                    failed++;
+                    listener.onRowFailed(row, error);
+                }
+
+                if ((row - resumed) % chunkSize == 0) {
+                    imported += commit(operations, progressUri, row, imported, failed);
+                    listener.onProgress(row, imported, failed);
+                    if (cancelled) {
+                        return null;
+                    }
+                }
+            }
+
+            imported += commit(operations, progressUri, row, imported, failed);
+            listener.onProgress(row, imported, failed);
+
+            // The whole file is in, so importing it again starts from the top.
+            resolver.delete(progressUri, null, null);
+            return new Result(row, imported, failed, resumed);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Insert the pets of a chunk and save the progress through the file in one transaction.
+     * Returns how many pets were inserted.
+     */
+    private int commit(ArrayList<ContentProviderOperation> operations, Uri progressUri,
+                       int rowsRead, int rowsImported, int rowsFailed)
+            throws RemoteException, OperationApplicationException {
+        int pets = operations.size();
+
+        ContentValues progress = new ContentValues();
+        progress.put(ImportEntry.ROWS_READ, rowsRead);
+        progress.put(ImportEntry.ROWS_IMPORTED, rowsImported + pets);
+        progress.put(ImportEntry.ROWS_FAILED, rowsFailed);
+        operations.add(ContentProviderOperation.newInsert(progressUri)
+                .withValues(progress)
+                .build());
+
+        resolver.applyBatch(PetContract.CONTENT_AUTHORITY, operations);
+        operations.clear();
+        return pets;
+    }
+
+    /**
+     * Work out whether the file is CSV or JSON from its first character that isn't white space,
+     * and return a reader for its rows.
+     */
+    private static RowReader openRows(BufferedReader reader) throws IOException {
+        int first;
+        do {
+            reader.mark(1);
+            first = reader.read();
+        } while (first != -1 && Character.isWhitespace(first));
+        reader.reset();
+        if (first == '{') {
+            return jsonRows(reader);
+        }
+        return csvRows(reader);
+    }
+
+    private static RowReader jsonRows(final BufferedReader reader) {
+        return new RowReader() {
+            @Override
+            public ContentValues next() throws IOException, RowException {
+                String line;
+                do {
+                    line = reader.readLine();
+                    if (line == null) {
+                        return null;
+                    }
+                } while (line.trim().isEmpty());
+
+                try {
+                    JSONObject json = new JSONObject(line);
+                    return toPet(
+                            json.isNull(PetEntry.PET_NAME) ? null : json.optString(PetEntry.PET_NAME),
+                            json.isNull(PetEntry.PET_BREED) ? null : json.optString(PetEntry.PET_BREED),
+                            json.isNull(PetEntry.PET_GENDER) ? null : json.optString(PetEntry.PET_GENDER),
+                            json.isNull(PetEntry.PET_WEIGHT) ? null : json.optString(PetEntry.PET_WEIGHT));
+                } catch (JSONException e) {
+                    throw new RowException("Not a JSON object.");
+                }
+            }
+        };
+    }
+
+    private static RowReader csvRows(final BufferedReader reader) throws IOException {
+        List<String> header = readCsvRecord(reader);
+        if (header == null) {
+            throw new IOException("The file is empty.");
+        }
+        final Map<String, Integer> columns = new HashMap<>();
+        for (int i = 0; i < header.size(); i++) {
+            columns.put(header.get(i).trim().toLowerCase(Locale.ROOT), i);
+        }
+        if (!columns.containsKey(PetEntry.PET_NAME)) {
+            throw new IOException("The file has no " + PetEntry.PET_NAME + " column.");
+        }
+
+        return new RowReader() {
+            @Override
+            public ContentValues next() throws IOException, RowException {
+                List<String> record = readCsvRecord(reader);
+                if (record == null) {
+                    return null;
+                }
+                return toPet(field(record, PetEntry.PET_NAME), field(record, PetEntry.PET_BREED),
+                        field(record, PetEntry.PET_GENDER), field(record, PetEntry.PET_WEIGHT));
+            }
+
+            private String field(List<String> record, String column) {
+                Integer index = columns.get(column);
+                if (index == null || index >= record.size()) {
+                    return null;
+                }
+                return record.get(index);
+            }
+        };
+    }
+
+    /**
+     * Read one record of a CSV file, following quoted fields across line breaks. Blank lines are
+     * skipped. Returns null at the end of the file.
+     */
+    private static List<String> readCsvRecord(BufferedReader reader) throws IOException {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean empty = true;
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (quoted) {
+                if (c == '"') {
+                    reader.mark(1);
+                    if (reader.read() == '"') {
+                        // A doubled quote inside quotes is a quote.
+                        field.append('"');
+                    }
+                    else {
+                        reader.reset();
+                        quoted = false;
+                    }
+                }
+                else {
+                    field.append((char) c);
+                }
+                continue;
+            }
+
+            if (c == '\r') {
+                continue;
+            }
+            if (c == '\n') {
+                if (empty) {
+                    continue;
+                }
+                break;
+            }
+            empty = false;
+            if (c == '"') {
+                quoted = true;
+            }
+            else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+            else {
+                field.append((char) c);
+            }
+        }
+
+        if (empty) {
+            return null;
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * Turn the text of a row into the values of a pet. Returns values that still have to go
+     * through {@link PetProvider#sanityCheck}.
+     */
+    private static ContentValues toPet(String name, String breed, String gender, String weight)
+            throws RowException {
+        ContentValues values = new ContentValues();
+        if (name != null) {
+            values.put(PetEntry.PET_NAME, name.trim());
+        }
+        if (breed != null && !breed.trim().isEmpty()) {
+            values.put(PetEntry.PET_BREED, breed.trim());
+        }
+        if (gender != null && !gender.trim().isEmpty()) {
+            values.put(PetEntry.PET_GENDER, parseGender(gender.trim()));
+        }
+        if (weight != null && !weight.trim().isEmpty()) {
+            try {
+                values.put(PetEntry.PET_WEIGHT, Integer.parseInt(weight.trim()));
+            } catch (NumberFormatException e) {
+                throw new RowException("Pet weight is not a number.");
+            }
+        }
+        return values;
+    }
+
+    private static int parseGender(String gender) throws RowException {
+        switch (gender.toLowerCase(Locale.ROOT)) {
+            case "unknown":
+                return PetEntry.GENDER_UNKNOWN;
+            case "male":
+                return PetEntry.GENDER_MALE;
+            case "female":
+                return PetEntry.GENDER_FEMALE;
+            default:
+                try {
+                    return Integer.parseInt(gender);
+                } catch (NumberFormatException e) {
+                    throw new RowException("Pet gender is not one of the accepted values.");
+                }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.android.pets.data;
+
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract.Metrics;
+
+import java.util.Arrays;
+
+/**
+ * Counts the calls {@link PetProvider} handles, per operation and URI, along with how long they
+ * took, how many rows they touched and how many failed. Every combination of operation and URI
+ * has its own counters, allocated up front, so recording a call doesn't allocate anything and
+ * only locks the counters of that one combination.
+ */
+final class PetMetrics {
+
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int BULK_INSERT = 2;
+    static final int UPDATE = 3;
+    static final int DELETE = 4;
+
+    private static final String[] OPERATION_NAMES = {
+            "query", "insert", "bulk_insert", "update", "delete" };
+
+    /** Number of latency buckets. The last one also counts anything slower. */
+    static final int BUCKETS = 32;
+
+    /**
+     * The counters for one operation on one URI.
+     */
+    private static class Counters {
+        long count;
+        long errors;
+        long rows;
+        long totalMicros;
+        long maxMicros;
+        final long[] histogram = new long[BUCKETS];
+
+        synchronized void record(long micros, int rowCount, boolean error) {
+            count++;
+            if (error) {
+                errors++;
+            }
+            rows += rowCount;
+            totalMicros += micros;
+            maxMicros = Math.max(maxMicros, micros);
+            histogram[bucket(micros)]++;
+        }
+
+        synchronized void reset() {
+            count = 0;
+            errors = 0;
+            rows = 0;
+            totalMicros = 0;
+            maxMicros = 0;
+            Arrays.fill(histogram, 0);
+        }
+
+        /**
+         * Returns the counters, or null if the operation hasn't been called on the URI.
+         */
+        synchronized Bundle toBundle() {
+            if (count == 0) {
+                return null;
+            }
+            Bundle bundle = new Bundle();
+            bundle.putLong(Metrics.KEY_COUNT, count);
+            bundle.putLong(Metrics.KEY_ERRORS, errors);
+            bundle.putLong(Metrics.KEY_ROWS, rows);
+            bundle.putLong(Metrics.KEY_TOTAL_MICROS, totalMicros);
+            bundle.putLong(Metrics.KEY_MAX_MICROS, maxMicros);
+            bundle.putLongArray(Metrics.KEY_LATENCY_HISTOGRAM, histogram.clone());
+            return bundle;
+        }
+    }
+
+    private final String[] uriNames;
+
+    /** Indexed by operation, then by URI. */
+    private final Counters[][] counters;
+
+    private volatile long resetTime = System.currentTimeMillis();
+
+    /**
+     * @param uriNames What to call each URI in the snapshot, indexed the same way as the uri
+     *                 argument of {@link #record}.
+     */
+    PetMetrics(String[] uriNames) {
+        this.uriNames = uriNames;
+        counters = new Counters[OPERATION_NAMES.length][uriNames.length];
+        for (Counters[] operation : counters) {
+            for (int uri = 0; uri < operation.length; uri++) {
+                operation[uri] = new Counters();
+            }
+        }
+    }
+
+    /**
+     * Returns the bucket a call that took the given number of microseconds falls in.
+     */
+    static int bucket(long micros) {
+        if (micros <= 1) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * Record a call that succeeded.
+     *
+     * @param startNanos {@link System#nanoTime} when the call started.
+     * @param rows       Rows the call returned or changed.
+     */
+    void record(int operation, int uri, long startNanos, int rows) {
+        counters[operation][uri].record((System.nanoTime() - startNanos) / 1000, rows, false);
+    }
+
+    /**
+     * Record a call that threw an exception.
+     *
+     * @param startNanos {@link System#nanoTime} when the call started.
+     */
+    void recordError(int operation, int uri, long startNanos) {
+        counters[operation][uri].record((System.nanoTime() - startNanos) / 1000, 0, true);
+    }
+
+    /**
+     * Returns the counters of every operation that has been called since the last reset.
+     */
+    Bundle snapshot() {
+        Bundle operations = new Bundle();
+        for (int operation = 0; operation < counters.length; operation++) {
+            for (int uri = 0; uri < uriNames.length; uri++) {
+                Bundle bundle = counters[operation][uri].toBundle();
+                if (bundle != null) {
+                    operations.putBundle(OPERATION_NAMES[operation] + " " + uriNames[uri], bundle);
+                }
+            }
+        }
+
+        Bundle snapshot = new Bundle();
+        snapshot.putLong(Metrics.KEY_RESET_TIME, resetTime);
+        snapshot.putBundle(Metrics.KEY_OPERATIONS, operations);
+        return snapshot;
+    }
+
+    /**
+     * Set every counter back to zero.
+     */
+    void reset() {
+        for (Counters[] operation : counters) {
+            for (Counters uri : operation) {
+                uri.reset();
+            }
+        }
+        resetTime = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,230 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Sends the change notifications for {@link PetProvider}. Changes that arrive within a short
+ * window of each other are merged and sent together, so a burst of writes makes observers reload
+ * once instead of once per write. Changes made inside a transaction are held back until it has
+ * been committed, and are dropped if it is rolled back.
+ */
+final class PetNotifier {
+
+    /** How long changes are collected before they are sent, by default. */
+    static final long DEFAULT_WINDOW_MS = 100;
+
+    /** More single pets than this changing at once are sent as one change to the whole table. */
+    static final int MAX_PENDING_PETS = 32;
+
+    /**
+     * The pets that changed, or the whole table. A change to the whole table reaches the
+     * observers of every single pet too, so it replaces them.
+     */
+    private static class PendingChanges {
+        final LinkedHashSet<Uri> pets = new LinkedHashSet<>();
+        boolean everything = false;
+
+        void add(Uri uri) {
+            if (everything) {
+                return;
+            }
+            if (!isPetUri(uri) || pets.size() >= MAX_PENDING_PETS) {
+                everything = true;
+                pets.clear();
+                return;
+            }
+            pets.add(uri);
+        }
+
+        void addAll(PendingChanges other) {
+            if (other.everything) {
+                everything = true;
+                pets.clear();
+                return;
+            }
+            for (Uri uri : other.pets) {
+                add(uri);
+            }
+        }
+
+        boolean isEmpty() {
+            return !everything && pets.isEmpty();
+        }
+
+        /**
+         * Returns the URIs to notify and forgets them.
+         */
+        List<Uri> drain() {
+            List<Uri> uris;
+            if (everything) {
+                uris = Collections.singletonList(PetEntry.CONTENT_URI);
+            }
+            else {
+                uris = new ArrayList<>(pets);
+            }
+            everything = false;
+            pets.clear();
+            return uris;
+        }
+    }
+
+    private final ContentResolver resolver;
+    private final long windowMs;
+
+    /** Changes made inside a transaction on the current thread, or null outside of one. */
+    private final ThreadLocal<PendingChanges> transaction = new ThreadLocal<>();
+
+    /** Committed changes waiting for the window to close. */
+    private final PendingChanges pending = new PendingChanges();
+
+    /** Sends the notifications off the threads that write. Created on the first change. */
+    private Handler dispatchHandler;
+    private boolean dispatchScheduled = false;
+
+    private long requestedCount = 0;
+    private long dispatchedCount = 0;
+
+    private final Runnable dispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * @param resolver The resolver to send notifications through, or null to drop every change.
+     * @param windowMs How long to collect changes for before sending them.
+     */
+    PetNotifier(ContentResolver resolver, long windowMs) {
+        if (windowMs < 0) {
+            throw new IllegalArgumentException("Window can't be negative " + windowMs);
+        }
+        this.resolver = resolver;
+        this.windowMs = windowMs;
+    }
+
+    /**
+     * Returns whether or not the URI is for a single pet, like content://.../pets/3.
+     */
+    private static boolean isPetUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2 || !PetContract.PATH_PETS.equals(segments.get(0))) {
+            return false;
+        }
+        for (char c : segments.get(1).toCharArray()) {
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Send a change to the given URI once the window closes, along with any other changes that
+     * arrive before then. Inside a transaction it waits until the transaction has ended.
+     */
+    void notifyChange(Uri uri) {
+        if (resolver == null) {
+            return;
+        }
+        PendingChanges changes = transaction.get();
+        synchronized (this) {
+            requestedCount++;
+            if (changes == null) {
+                pending.add(uri);
+                scheduleDispatch();
+                return;
+            }
+        }
+        changes.add(uri);
+    }
+
+    /**
+     * Hold back the changes made on this thread until {@link #endTransaction} is called.
+     */
+    void beginTransaction() {
+        transaction.set(new PendingChanges());
+    }
+
+    /**
+     * Send the changes held back since {@link #beginTransaction}, or drop them if the
+     * transaction wasn't successful.
+     */
+    void endTransaction(boolean successful) {
+        PendingChanges changes = transaction.get();
+        transaction.remove();
+        if (!successful || changes == null || changes.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            pending.addAll(changes);
+            scheduleDispatch();
+        }
+    }
+
+    private void scheduleDispatch() {
+        if (dispatchScheduled) {
+            return;
+        }
+        if (dispatchHandler == null) {
+            HandlerThread thread = new HandlerThread(PetProvider.LOG_TAG + "Notifier",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            dispatchHandler = new Handler(thread.getLooper());
+        }
+        dispatchScheduled = true;
+        dispatchHandler.postDelayed(dispatch, windowMs);
+    }
+
+    private void dispatch() {
+        List<Uri> uris;
+        synchronized (this) {
+            dispatchScheduled = false;
+            uris = pending.drain();
+            dispatchedCount += uris.size();
+            if (Log.isLoggable(PetProvider.LOG_TAG, Log.VERBOSE)) {
+                Log.v(PetProvider.LOG_TAG, "Sending " + uris.size() + " notifications, "
+                        + getSuppressedCount() + " of " + requestedCount + " merged so far");
+            }
+        }
+        // Sending every URI in one call needs notifyChange(Collection<Uri>, ...), which only
+        // exists from API 30, so each merged URI still costs one call below that.
+        for (Uri uri : uris) {
+            resolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Returns how many changes have been asked for.
+     */
+    synchronized long getRequestedCount() {
+        return requestedCount;
+    }
+
+    /**
+     * Returns how many notifications have actually been sent.
+     */
+    synchronized long getDispatchedCount() {
+        return dispatchedCount;
+    }
+
+    /**
+     * Returns how many changes didn't need a notification of their own, because they were merged
+     * with another one or rolled back. Changes still waiting to be sent are counted too.
+     */
+    synchronized long getSuppressedCount() {
+        return requestedCount - dispatchedCount;
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Decodes pet photos at the size they are going to be shown at, rather than the size they were
+ * taken at. A photo from a camera can be 4000 pixels across and take 50MB once decoded, while
+ * the list only ever shows it a few hundred pixels wide.
+ */
+public final class PetPhotos {
+
+    /** Longest side, in pixels, of the photos stored for pets. */
+    public static final int MAX_PHOTO_SIZE = 1280;
+
+    /** Quality that photos and thumbnails are saved as JPEGs with. */
+    public static final int JPEG_QUALITY = 85;
+
+    private PetPhotos() {
+    }
+
+    /**
+     * Decode the image in the file, shrunk by the largest power of two that still leaves it at
+     * least width by height. Returns null if the file isn't an image. The file is read twice, the
+     * first time just for the size of the image, so it can't be a pipe.
+     */
+    public static Bitmap decodeSampled(FileDescriptor file, int width, int height,
+                                       Bitmap.Config config) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFileDescriptor(file, null, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight,
+                width, height);
+        options.inPreferredConfig = config;
+        return BitmapFactory.decodeFileDescriptor(file, null, options);
+    }
+
+    /**
+     * Returns the largest power of two that an image can be shrunk by and still be at least
+     * width by height. The decoder skips the pixels it shrinks away instead of reading them.
+     */
+    static int calculateSampleSize(int imageWidth, int imageHeight, int width, int height) {
+        int sampleSize = 1;
+        while (imageWidth / (sampleSize * 2) >= width && imageHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Shrink the image at the given URI to at most {@link #MAX_PHOTO_SIZE} on its longest side
+     * and save it as a JPEG in the given file, ready for {@link PetWriter#setPhoto}. This takes
+     * a while, so call it from a background thread.
+     *
+     * @throws IOException if the image can't be read, or the file can't be written.
+     */
+    public static void preparePhoto(ContentResolver resolver, Uri image, File destination)
+            throws IOException {
+        ParcelFileDescriptor file = resolver.openFileDescriptor(image, "r");
+        if (file == null) {
+            throw new FileNotFoundException("Couldn't open " + image);
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = decodeSampled(file.getFileDescriptor(), MAX_PHOTO_SIZE, MAX_PHOTO_SIZE,
+                    Bitmap.Config.ARGB_8888);
+        } finally {
+            file.close();
+        }
+        if (bitmap == null) {
+            throw new IOException("Not an image " + image);
+        }
+
+        // Sampling only shrinks by powers of two, so finish the job by scaling.
+        float scale = (float) MAX_PHOTO_SIZE / Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (scale < 1) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.round(bitmap.getWidth() * scale),
+                    Math.round(bitmap.getHeight() * scale), true);
+            bitmap.recycle();
+            bitmap = scaled;
+        }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(destination));
+        try {
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)) {
+                throw new IOException("Couldn't write " + destination);
+            }
+        } finally {
+            out.close();
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Copy a photo made by {@link #preparePhoto} into the provider as the photo of the pet, then
+     * update the pet's {@link PetEntry#PET_PHOTO} so that anything showing the old photo knows
+     * to reload it. Returns the number of pets updated, which is 0 if the pet is gone.
+     */
+    static int storePhoto(ContentResolver resolver, Uri petUri, File photo) throws IOException {
+        Uri photoUri = PetEntry.buildPhotoUri(ContentUris.parseId(petUri));
+        InputStream in = new FileInputStream(photo);
+        try {
+            OutputStream out;
+            try {
+                out = resolver.openOutputStream(photoUri);
+            } catch (FileNotFoundException e) {
+                // The pet was deleted before its photo could be stored.
+                return 0;
+            }
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.PET_PHOTO, System.currentTimeMillis());
+        return resolver.update(petUri, values, null, null);
+    }
+}
@@ -1,59 +1,285 @@
 package com.example.android.pets.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.support.v4.os.TraceCompat;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.example.android.pets.data.PetContract.Backup;
+import com.example.android.pets.data.PetContract.ChangeEntry;
+import com.example.android.pets.data.PetContract.DuplicateEntry;
+import com.example.android.pets.data.PetContract.ExportEntry;
+import com.example.android.pets.data.PetContract.ImportEntry;
+import com.example.android.pets.data.PetContract.Metrics;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
+import com.example.android.pets.data.PetContract.SyncEntry;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class PetProvider extends ContentProvider {
 
     private static final UriMatcher matcher = new UriMatcher(UriMatcher.NO_MATCH);
     private static final int PETS = 100;
     private static final int PET_ID = 101;
+    private static final int PET_SEARCH = 102;
+    private static final int PET_STATS = 103;
+    private static final int PET_EXPORT = 104;
+    private static final int PET_IMPORT = 105;
+    private static final int PET_PHOTO = 106;
+    private static final int PET_CHANGES = 107;
+    private static final int PET_SYNC = 108;
+    private static final int PET_DUPLICATES = 109;
     static {
         /*
          * The calls to addURI() go here for all of the content URI patterns that the provider should recognize.
          */
         matcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
         matcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+        matcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SEARCH + "/*", PET_SEARCH);
+        matcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_STATS, PET_STATS);
+        matcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_EXPORT, PET_EXPORT);
+        matcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_IMPORTS + "/*", PET_IMPORT);
+        matcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/#/" + PetContract.PATH_PHOTO, PET_PHOTO);
+        matcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_CHANGES, PET_CHANGES);
+        matcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SYNC, PET_SYNC);
+        matcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_DUPLICATES, PET_DUPLICATES);
 
     }
 
 
     public static final String LOG_TAG = PetProvider.class.getSimpleName();
+
+    /** The pet columns that are synced, in the same order as {@link #SYNC_TIMES}. */
+    private static final String[] SYNC_COLUMNS = {
+            PetEntry.PET_NAME, PetEntry.PET_BREED, PetEntry.PET_GENDER, PetEntry.PET_WEIGHT };
+
+    /** When each of {@link #SYNC_COLUMNS} last changed. */
+    private static final String[] SYNC_TIMES = {
+            SyncEntry.NAME_TIME, SyncEntry.BREED_TIME, SyncEntry.GENDER_TIME,
+            SyncEntry.WEIGHT_TIME };
+
+    /** The sync state of every pet, along with the pet if it hasn't been deleted. */
+    private static final String SYNC_JOIN = SyncEntry.TABLE_NAME + " LEFT JOIN "
+            + PetEntry.TABLE_NAME + " ON " + PetEntry.TABLE_NAME + "." + PetEntry._ID + " = "
+            + SyncEntry.TABLE_NAME + "." + SyncEntry.PET_ID;
+
+    /** Longest a restore waits for each thread that writes to the database to stop. */
+    private static final long RESTORE_PAUSE_TIMEOUT_MS = 5000;
+
+    /** Directory under the app's files that holds the photos, one directory per database. */
+    private static final String PHOTO_DIRECTORY = "photos";
+
     private PetDbHelper db;
+    private PetStatements statements;
+    private PetExporter exporter;
+
+    /** Where the photos of this database's pets are kept, named by the pet's _ID. */
+    private File photoDirectory;
+
+    /** Results of recent queries, thrown away whenever pets are written. */
+    private final PetQueryCache queryCache = new PetQueryCache();
+
+    /** Merges change notifications and sends them in the background. */
+    private PetNotifier notifier;
+
+    /** What each URI is called in the metrics, indexed by {@link #metricsUri}. */
+    private static final String[] METRICS_URI_NAMES = {
+            PetContract.PATH_PETS,
+            PetContract.PATH_PETS + "/#",
+            PetContract.PATH_PETS + "/" + PetContract.PATH_SEARCH + "/*",
+            PetContract.PATH_PETS + "/" + PetContract.PATH_STATS,
+            PetContract.PATH_PETS + "/" + PetContract.PATH_IMPORTS + "/*",
+            PetContract.PATH_PETS + "/#/" + PetContract.PATH_PHOTO,
+            PetContract.PATH_PETS + "/" + PetContract.PATH_CHANGES,
+            PetContract.PATH_PETS + "/" + PetContract.PATH_SYNC,
+            PetContract.PATH_PETS + "/" + PetContract.PATH_DUPLICATES,
+            "unknown" };
+
+    /** Latency, row and error counts for every call, read through {@link #call}. */
+    private final PetMetrics metrics = new PetMetrics(METRICS_URI_NAMES);
+
+    /** When the provider was created, for timing the first query of a cold start. */
+    private long createdTime;
+
+    /** Set by the first query, which is the one the app waits on when it starts cold. */
+    private final AtomicBoolean firstQueryStarted = new AtomicBoolean();
+
+    /** Name of the database file. Only differs from the app's own for benchmarks and tests. */
+    private final String databaseName;
+
+    public PetProvider() {
+        this(PetDbHelper.DATABASE_NAME);
+    }
+
+    /**
+     * Creates a provider backed by a scratch database instead of the app's own, for
+     * benchmarks and tests. Nothing observes the scratch database, so no changes are notified.
+     */
+    PetProvider(String databaseName) {
+        this.databaseName = databaseName;
+    }
 
     @Override
     public boolean onCreate(){
-        db = new PetDbHelper(getContext());
-        return true;
+        // Providers are created on the main thread before the first activity, so everything
+        // here is on the cold start path. Opening the database is left to the background.
+        TraceCompat.beginSection("PetProvider.onCreate");
+        try {
+            createdTime = SystemClock.elapsedRealtime();
+            db = new PetDbHelper(getContext(), databaseName,
+                    PetDbHelper.DEFAULT_SYNCHRONOUS_MODE);
+            statements = new PetStatements(db);
+            exporter = new PetExporter(db);
+            photoDirectory = new File(new File(getContext().getFilesDir(), PHOTO_DIRECTORY),
+                    databaseName);
+            ContentResolver resolver = null;
+            if (PetDbHelper.DATABASE_NAME.equals(databaseName)) {
+                resolver = getContext().getContentResolver();
+                db.prewarm();
+            }
+            notifier = new PetNotifier(resolver, PetNotifier.DEFAULT_WINDOW_MS);
+            return true;
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    /**
+     * Returns the index of the URI a match code is counted under in the metrics.
+     */
+    private static int metricsUri(int match) {
+        switch (match) {
+            case PETS:
+                return 0;
+            case PET_ID:
+                return 1;
+            case PET_SEARCH:
+                return 2;
+            case PET_STATS:
+                return 3;
+            case PET_IMPORT:
+                return 4;
+            case PET_PHOTO:
+                return 5;
+            case PET_CHANGES:
+                return 6;
+            case PET_SYNC:
+                return 7;
+            case PET_DUPLICATES:
+                return 8;
+            default:
+                return 9;
+        }
     }
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder){
+        long start = System.nanoTime();
+        // Figure out if the URI matcher can match the URI to a specific code
+        int match = matcher.match(uri);
+        boolean firstQuery = firstQueryStarted.compareAndSet(false, true);
+        if (firstQuery) {
+            TraceCompat.beginSection("PetProvider first query");
+        }
+        try {
+            Cursor cursor = query(match, uri, projection, selection, selectionArgs, sortOrder);
+            metrics.record(PetMetrics.QUERY, metricsUri(match), start, cursor.getCount());
+            return cursor;
+        } catch (RuntimeException e) {
+            metrics.recordError(PetMetrics.QUERY, metricsUri(match), start);
+            throw e;
+        } finally {
+            if (firstQuery) {
+                TraceCompat.endSection();
+                Log.i(LOG_TAG, "First query took " + (System.nanoTime() - start) / 1000000
+                        + " ms and finished " + (SystemClock.elapsedRealtime() - createdTime)
+                        + " ms after the provider was created");
+            }
+        }
+    }
+
+    private Cursor query(int match, Uri uri, String[] projection, String selection,
+                         String[] selectionArgs, String sortOrder){
+            // Search results, statistics, changes, sync state and duplicates depend on every
+            // pet, not just the ones they return.
+            Uri notificationUri = uri;
+            if (match == PET_SEARCH || match == PET_STATS || match == PET_CHANGES
+                    || match == PET_SYNC || match == PET_DUPLICATES) {
+                notificationUri = PetEntry.CONTENT_URI;
+            }
+            if ("false".equals(uri.getQueryParameter(PetEntry.QUERY_PARAM_NOTIFY))) {
+                // The caller is watching for changes itself.
+                notificationUri = null;
+            }
+
+            // Nothing has been written since this exact query last ran, so answer it from memory.
+            String cacheKey = PetQueryCache.buildKey(match, uri, projection, selection,
+                    selectionArgs, sortOrder);
+            Cursor cursor = queryCache.get(cacheKey);
+            if (cursor != null) {
+                if (notificationUri != null) {
+                    cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+                }
+                return cursor;
+            }
+            long generation = queryCache.getGeneration();
+
             // Get readable database
             SQLiteDatabase database = db.getReadableDatabase();
 
-            // This cursor will hold the result of the query
-            Cursor cursor = null;
-
-            // Figure out if the URI matcher can match the URI to a specific code
-            int match = matcher.match(uri);
             switch (match) {
                 case PETS:
                     // For the PETS code, query the pets table directly with the given
                     // projection, selection, selection arguments, and sort order. The cursor
                     // could contain multiple rows of the pets table.
-
+                    //
+                    // The filter, sort and paging parameters are added to the selection as
+                    // parameterized SQL. A page seeks past the last pet of the previous page
+                    // using an index instead of skipping rows with an OFFSET, so every page
+                    // costs the same no matter how deep into the table it is.
+                    PetFilter filter = PetFilter.fromUri(uri);
+                    if (filter.isSorted()) {
+                        if (sortOrder != null) {
+                            throw new IllegalArgumentException("Sorted and paged queries can't "
+                                    + "have a sort order " + uri);
+                        }
+                        sortOrder = filter.getSortOrder();
+                    }
+                    selection = DatabaseUtils.concatenateWhere(selection, filter.getSelection());
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                            filter.getSelectionArgs());
                     cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
-                            null, null, sortOrder);
+                            null, null, sortOrder, getLimitParameter(uri));
 
                     break;
                 case PET_ID:
@@ -69,9 +295,40 @@ public class PetProvider extends ContentProvider {
                     selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
 
                     // This will perform a query on the pets table where the _id equals 3 to return a
-                    // Cursor containing that row of the table.
-                    cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
-                            null, null, sortOrder);
+                    // Cursor containing that row of the table. Reusing the same SQL for the same
+                    // projection lets SQLite skip compiling the query again.
+                    if (sortOrder == null) {
+                        cursor = database.rawQuery(statements.selectByIdSql(projection), selectionArgs);
+                    }
+                    else {
+                        cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
+                                null, null, sortOrder);
+                    }
+                    break;
+                case PET_SEARCH:
+                    cursor = searchPets(database, uri, projection, selection, sortOrder);
+                    break;
+                case PET_STATS:
+                    cursor = queryStats(database, uri, projection, selection, selectionArgs,
+                            sortOrder);
+                    break;
+                case PET_CHANGES:
+                    cursor = queryChanges(database, uri, projection, selection, selectionArgs,
+                            sortOrder);
+                    break;
+                case PET_SYNC:
+                    cursor = database.query(SYNC_JOIN, projection, selection, selectionArgs,
+                            null, null, sortOrder, getLimitParameter(uri));
+                    break;
+                case PET_DUPLICATES:
+                    cursor = findDuplicates(uri, selection, sortOrder);
+                    break;
+                case PET_IMPORT:
+                    selection = DatabaseUtils.concatenateWhere(selection, ImportEntry.SOURCE + "=?");
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                            new String[] { uri.getLastPathSegment() });
+                    cursor = database.query(ImportEntry.TABLE_NAME, projection, selection,
+                            selectionArgs, null, null, sortOrder);
                     break;
                 default:
                     throw new IllegalArgumentException("Cannot query unknown URI " + uri);
@@ -79,59 +336,436 @@ public class PetProvider extends ContentProvider {
             // Set notification URI on the Cursor so we know
             // what content URI the Cursor was created for.
             // If the data at this URI changes, then we know we need to update the Cursor.
-            cursor.setNotificationUri(getContext().getContentResolver(), uri);
+            if (notificationUri != null) {
+                cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+            }
+
+            queryCache.put(cacheKey, generation, cursor);
 
 
             return cursor;
     }
 
+    /**
+     * Search the full-text index for the text in the last segment of the URI. Each word is
+     * matched as a prefix of a word in the pet's name or breed. Pets are ranked by how many times
+     * the words matched, unless the caller asked for a different sort order.
+     */
+    private Cursor searchPets(SQLiteDatabase database, Uri uri, String[] projection,
+                              String selection, String sortOrder) {
+        if (selection != null) {
+            throw new IllegalArgumentException("Selection is not supported for " + uri);
+        }
+
+        // Both tables have name and breed columns, so point every column at the pets table.
+        String[] columns;
+        if (projection == null) {
+            columns = new String[] { PetEntry.TABLE_NAME + ".*" };
+        }
+        else {
+            columns = new String[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                columns[i] = PetEntry.TABLE_NAME + "." + projection[i] + " AS " + projection[i];
+            }
+        }
+
+        String match = buildMatchExpression(uri.getLastPathSegment());
+        if (match == null) {
+            // Nothing that can be searched for, so nothing matches.
+            return database.query(PetEntry.TABLE_NAME, columns, "0", null, null, null, null);
+        }
+
+        if (sortOrder == null) {
+            // offsets() lists four numbers for every matching word, so counting the spaces in it
+            // ranks pets with more matches first.
+            String offsets = "offsets(" + PetDbHelper.SEARCH_TABLE_NAME + ")";
+            sortOrder = "length(" + offsets + ") - length(replace(" + offsets + ", ' ', '')) DESC, "
+                    + PetEntry.TABLE_NAME + "." + PetEntry._ID;
+        }
+
+        return database.query(PetEntry.TABLE_NAME + " JOIN " + PetDbHelper.SEARCH_TABLE_NAME
+                        + " ON " + PetEntry.TABLE_NAME + "." + PetEntry._ID + " = "
+                        + PetDbHelper.SEARCH_TABLE_NAME + ".docid",
+                columns, PetDbHelper.SEARCH_TABLE_NAME + " MATCH ?", new String[] { match },
+                null, null, sortOrder, getLimitParameter(uri));
+    }
+
+    /**
+     * Read the pet statistics from the summary table, grouped the way the URI asks for. The
+     * summary has one row per gender and breed, so this reads a handful of rows no matter how
+     * many pets there are.
+     */
+    private static Cursor queryStats(SQLiteDatabase database, Uri uri, String[] projection,
+                                     String selection, String[] selectionArgs, String sortOrder) {
+        String gender = StatsEntry.GENDER;
+        String breed = StatsEntry.BREED;
+        String groupBy = uri.getQueryParameter(StatsEntry.QUERY_PARAM_GROUP_BY);
+        if (groupBy == null || StatsEntry.GROUP_BY_GENDER_AND_BREED.equals(groupBy)) {
+            groupBy = gender + ", " + breed;
+        }
+        else if (StatsEntry.GROUP_BY_GENDER.equals(groupBy)) {
+            groupBy = gender;
+            breed = "NULL";
+        }
+        else if (StatsEntry.GROUP_BY_BREED.equals(groupBy)) {
+            groupBy = breed;
+            gender = "NULL";
+        }
+        else if (StatsEntry.GROUP_BY_NONE.equals(groupBy)) {
+            groupBy = null;
+            gender = "NULL";
+            breed = "NULL";
+        }
+        else {
+            throw new IllegalArgumentException("Invalid " + StatsEntry.QUERY_PARAM_GROUP_BY
+                    + " parameter " + uri);
+        }
+
+        String summary = SQLiteQueryBuilder.buildQueryString(false, PetDbHelper.STATS_TABLE_NAME,
+                new String[] {
+                        gender + " AS " + StatsEntry.GENDER,
+                        breed + " AS " + StatsEntry.BREED,
+                        "COALESCE(SUM(" + StatsEntry.PET_COUNT + "), 0) AS " + StatsEntry.PET_COUNT,
+                        "MIN(" + StatsEntry.WEIGHT_MIN + ") AS " + StatsEntry.WEIGHT_MIN,
+                        "SUM(" + PetDbHelper.STATS_WEIGHT_SUM + ") * 1.0 / SUM("
+                                + StatsEntry.PET_COUNT + ") AS " + StatsEntry.WEIGHT_AVG,
+                        "MAX(" + StatsEntry.WEIGHT_MAX + ") AS " + StatsEntry.WEIGHT_MAX },
+                null, groupBy, null, null, null);
+
+        if (sortOrder == null) {
+            sortOrder = StatsEntry.GENDER + ", " + StatsEntry.BREED;
+        }
+        // Select from the summary as if it were a table, so the caller's projection, selection
+        // and sort order work on the grouped rows.
+        return database.query("(" + summary + ")", projection, selection, selectionArgs,
+                null, null, sortOrder);
+    }
+
+    /**
+     * Read the pets changed since the sequence number in {@link ChangeEntry#QUERY_PARAM_SINCE},
+     * one row per pet with its last change. If the log no longer holds every change since then,
+     * or the caller didn't say, the only row is an {@link ChangeEntry#OPERATION_RESYNC} with the
+     * latest sequence number.
+     *
+     * It is all one statement so that the check and the changes read the same snapshot, even if
+     * the log is trimmed or written to in between.
+     */
+    private static Cursor queryChanges(SQLiteDatabase database, Uri uri, String[] projection,
+                                       String selection, String[] selectionArgs,
+                                       String sortOrder) {
+        long since = -1;
+        String sinceParameter = uri.getQueryParameter(ChangeEntry.QUERY_PARAM_SINCE);
+        if (sinceParameter != null) {
+            since = parseLongParameter(uri, ChangeEntry.QUERY_PARAM_SINCE, sinceParameter);
+        }
+
+        String table = ChangeEntry.TABLE_NAME;
+        String sequence = ChangeEntry.SEQUENCE;
+        // Arguments are bound as text, which SQLite ranks above every number.
+        String after = "CAST(?1 AS INTEGER)";
+        // SQLite keeps the last number AUTOINCREMENT handed out, even once its row is trimmed.
+        String last = "IFNULL((SELECT seq FROM sqlite_sequence WHERE name = '" + table + "'), 0)";
+        // Trimming only removes the oldest changes, so the log has every change since ?1 as long
+        // as ?1 is at least the number before its first change.
+        String covered = after + " <= " + last + " AND " + after + " >= IFNULL((SELECT MIN("
+                + sequence + ") FROM " + table + ") - 1, " + last + ")";
+        // With a single MAX, SQLite takes the other columns from the row holding the maximum.
+        String changes = "SELECT " + sequence + ", " + ChangeEntry.PET_ID + ", "
+                + ChangeEntry.OPERATION + " FROM (SELECT MAX(" + sequence + ") AS " + sequence
+                + ", " + ChangeEntry.PET_ID + ", " + ChangeEntry.OPERATION + " FROM " + table
+                + " WHERE " + sequence + " > " + after + " GROUP BY " + ChangeEntry.PET_ID
+                + ") WHERE " + covered
+                + " UNION ALL SELECT " + last + ", NULL, " + ChangeEntry.OPERATION_RESYNC
+                + " WHERE NOT (" + covered + ")";
+
+        if (sortOrder == null) {
+            sortOrder = sequence;
+        }
+        // The caller's ? come after ?1, so their arguments go after it.
+        selectionArgs = DatabaseUtils.appendSelectionArgs(
+                new String[] { String.valueOf(since) }, selectionArgs);
+        return database.query("(" + changes + ")", projection, selection, selectionArgs,
+                null, null, sortOrder);
+    }
+
+    /**
+     * Turn the text the user typed into a full-text query that matches every word as a prefix.
+     * Anything other than letters and digits is dropped, so the user can't write query syntax.
+     * Returns null if there is nothing left to search for.
+     */
+    private static String buildMatchExpression(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String word : query.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(word).append('*');
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
+    /**
+     * Find the pets that look like duplicates, once the trigram index has caught up with the
+     * latest changes. The index is usually up to date already, since it is also brought up to
+     * date in the background after writes.
+     */
+    private Cursor findDuplicates(Uri uri, String selection, String sortOrder) {
+        if (selection != null || sortOrder != null) {
+            throw new IllegalArgumentException("Duplicates can't be filtered or sorted " + uri);
+        }
+        double minSimilarity = DuplicateEntry.DEFAULT_MIN_SIMILARITY;
+        String parameter = uri.getQueryParameter(DuplicateEntry.QUERY_PARAM_MIN_SIMILARITY);
+        if (parameter != null) {
+            try {
+                minSimilarity = Double.parseDouble(parameter);
+            } catch (NumberFormatException e) {
+                minSimilarity = Double.NaN;
+            }
+            if (!(minSimilarity >= 0 && minSimilarity <= 1)) {
+                throw new IllegalArgumentException("Invalid "
+                        + DuplicateEntry.QUERY_PARAM_MIN_SIMILARITY + " parameter " + uri);
+            }
+        }
+        String limit = getLimitParameter(uri);
+        int maxGroups = limit == null ? 0 : (int) Math.min(Long.parseLong(limit),
+                Integer.MAX_VALUE);
+
+        PetTrigramIndex index = db.getTrigramIndex();
+        index.update();
+        return index.findDuplicates(minSimilarity, maxGroups);
+    }
+
+    /**
+     * Returns the {@link PetEntry#QUERY_PARAM_LIMIT} of the URI, or null if it doesn't have one.
+     */
+    private static String getLimitParameter(Uri uri) {
+        String limit = uri.getQueryParameter(PetEntry.QUERY_PARAM_LIMIT);
+        if (limit != null && parseLongParameter(uri, PetEntry.QUERY_PARAM_LIMIT, limit) <= 0) {
+            throw new IllegalArgumentException("Limit must be positive " + uri);
+        }
+        return limit;
+    }
+
+    /**
+     * Parse the value of a numeric query parameter, rejecting the URI if it isn't a number.
+     */
+    static long parseLongParameter(Uri uri, String name, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " parameter " + uri);
+        }
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        long start = System.nanoTime();
         final int match = matcher.match(uri);
+        try {
+            Uri petUri = insert(match, uri, contentValues);
+            metrics.record(PetMetrics.INSERT, metricsUri(match), start, petUri == null ? 0 : 1);
+            return petUri;
+        } catch (RuntimeException e) {
+            metrics.recordError(PetMetrics.INSERT, metricsUri(match), start);
+            throw e;
+        }
+    }
+
+    private Uri insert(int match, Uri uri, ContentValues contentValues) {
         switch (match) {
             case PETS:
                 sanityCheck(contentValues);
                 return insertPet(uri, contentValues);
+            case PET_IMPORT:
+                return saveImportProgress(uri, contentValues);
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
     }
 
+    /**
+     * Save how far the import of the file named in the URI has got, replacing whatever was saved
+     * before. Nothing observes import progress, so no one is notified.
+     */
+    private Uri saveImportProgress(Uri uri, ContentValues values) {
+        values = new ContentValues(values);
+        values.put(ImportEntry.SOURCE, uri.getLastPathSegment());
+
+        long id = db.getWritableDatabase().insertWithOnConflict(ImportEntry.TABLE_NAME, null,
+                values, SQLiteDatabase.CONFLICT_REPLACE);
+        queryCache.invalidate();
+
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to save import progress for " + uri);
+            return null;
+        }
+        return uri;
+    }
+
     /**
      * Insert a pet into the database with the given content values. Return the new content URI
      * for that specific row in the database.
      */
     private Uri insertPet(Uri uri, ContentValues values) {
 
-        SQLiteDatabase database = db.getWritableDatabase();
-
-        long id = database.insert(PetEntry.TABLE_NAME, null, values);
+        long id = insertRow(values);
 
         if (id == -1){
             Log.e(LOG_TAG, "Failed to insert row for " + uri);
             return null;
         }
 
-        // Notify all listeners that the data has changed for the pet content URI
-        getContext().getContentResolver().notifyChange(uri, null);
-
         // Once we know the ID of the new row in the table,
         // return the new URI with the ID appended to the end of it
-        return ContentUris.withAppendedId(uri, id);
+        Uri petUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+
+        // Only the new pet changed, so notify its URI. Listeners on the pet content URI still
+        // hear about it, along with the ID of the pet.
+        onPetsChanged(petUri);
+
+        return petUri;
+    }
+
+    /**
+     * Insert a single row, through the precompiled statement when the values allow it. Return
+     * the _ID of the new row, or -1 if it couldn't be inserted.
+     */
+    private long insertRow(ContentValues values) {
+        if (PetStatements.canInsert(values)) {
+            return statements.insert(values);
+        }
+        return db.getWritableDatabase().insert(PetEntry.TABLE_NAME, null, values);
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        long start = System.nanoTime();
+        final int match = matcher.match(uri);
+        try {
+            int rowsInserted = bulkInsert(match, uri, values);
+            metrics.record(PetMetrics.BULK_INSERT, metricsUri(match), start, rowsInserted);
+            return rowsInserted;
+        } catch (RuntimeException e) {
+            metrics.recordError(PetMetrics.BULK_INSERT, metricsUri(match), start);
+            throw e;
+        }
+    }
+
+    private int bulkInsert(int match, Uri uri, ContentValues[] values) {
+        switch (match) {
+            case PETS:
+                // Check every row before touching the database so one bad row can't leave
+                // half of an import behind.
+                for (ContentValues value : values) {
+                    sanityCheck(value);
+                }
+                return bulkInsertPets(uri, values);
+            default:
+                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+    }
+
+    /**
+     * Insert all of the given pets inside a single transaction. Listeners are only notified once,
+     * after the whole batch has been committed. Return the number of rows that were inserted.
+     */
+    private int bulkInsertPets(Uri uri, ContentValues[] values) {
+
+        SQLiteDatabase database = db.getWritableDatabase();
+
+        int rowsInserted = 0;
+        database.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                long id = insertRow(value);
+                if (id == -1) {
+                    Log.e(LOG_TAG, "Failed to insert row for " + uri);
+                }
+                else {
+                    rowsInserted++;
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsInserted > 0) {
+            // Notify all listeners that the data has changed for the pet content URI
+            onPetsChanged(uri);
+        }
+        return rowsInserted;
+    }
+
+    /**
+     * Apply all of the operations inside a single transaction. Each operation still goes through
+     * insert/update/delete, so the usual sanity checks run and any failure rolls back the whole
+     * batch. The notifications of the operations are held back and merged, then sent once the
+     * batch has been committed.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+
+        SQLiteDatabase database = db.getWritableDatabase();
+
+        ContentProviderResult[] results;
+        boolean successful = false;
+        notifier.beginTransaction();
+        database.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            database.endTransaction();
+            if (successful) {
+                // A query that read the old rows while the batch was running can't stay cached.
+                queryCache.invalidate();
+            }
+            notifier.endTransaction(successful);
+        }
+        return results;
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
         final int match = matcher.match(uri);
+        try {
+            int rowsDeleted = delete(match, uri, selection, selectionArgs);
+            metrics.record(PetMetrics.DELETE, metricsUri(match), start, rowsDeleted);
+            return rowsDeleted;
+        } catch (RuntimeException e) {
+            metrics.recordError(PetMetrics.DELETE, metricsUri(match), start);
+            throw e;
+        }
+    }
+
+    private int delete(int match, Uri uri, String selection, String[] selectionArgs) {
         switch (match) {
             case PETS:
+                String limit = getLimitParameter(uri);
+                if (limit != null) {
+                    // Delete one chunk of a mass delete
+                    return deletePetChunk(selection, selectionArgs, limit);
+                }
                 // Delete all rows that match the selection and selection args
                 return deletePet(uri, selection, selectionArgs);
             case PET_ID:
                 // Delete a single row given by the ID in the URI
-                selection = PetEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return deletePet(uri, selection, selectionArgs);
+                return deletePetById(ContentUris.parseId(uri));
+            case PET_IMPORT:
+                // Forget the progress of an import that has finished
+                int rowsDeleted = db.getWritableDatabase().delete(ImportEntry.TABLE_NAME,
+                        ImportEntry.SOURCE + "=?", new String[] { uri.getLastPathSegment() });
+                queryCache.invalidate();
+                return rowsDeleted;
+            case PET_PHOTO:
+                return deletePhoto(parsePhotoId(uri));
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
@@ -140,7 +774,20 @@ public class PetProvider extends ContentProvider {
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection,
                       String[] selectionArgs) {
+        long start = System.nanoTime();
         final int match = matcher.match(uri);
+        try {
+            int rowsUpdated = update(match, uri, contentValues, selection, selectionArgs);
+            metrics.record(PetMetrics.UPDATE, metricsUri(match), start, rowsUpdated);
+            return rowsUpdated;
+        } catch (RuntimeException e) {
+            metrics.recordError(PetMetrics.UPDATE, metricsUri(match), start);
+            throw e;
+        }
+    }
+
+    private int update(int match, Uri uri, ContentValues contentValues, String selection,
+                       String[] selectionArgs) {
         if(contentValues.size() == 0){
             // No reason to try to update if there's nothing to update.
             return 0;
@@ -150,11 +797,8 @@ public class PetProvider extends ContentProvider {
                 return updatePet(uri, contentValues, selection, selectionArgs);
             case PET_ID:
                 // For the PET_ID code, extract out the ID from the URI,
-                // so we know which row to update. Selection will be "_id=?" and selection
-                // arguments will be a String array containing the actual ID.
-                selection = PetEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updatePet(uri, contentValues, selection, selectionArgs);
+                // so we know which row to update.
+                return updatePetById(ContentUris.parseId(uri), contentValues);
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
@@ -175,7 +819,36 @@ public class PetProvider extends ContentProvider {
 
         if(rowsAltered > 0){
             // Notify all listeners that the data has changed for the pet content URI
-            getContext().getContentResolver().notifyChange(uri, null);
+            onPetsChanged(uri);
+        }
+        return rowsAltered;
+    }
+
+    /**
+     * Update the pet with the given ID. When every column is being set, the precompiled
+     * statement is used instead of building the UPDATE from the content values. Listeners are
+     * notified on the URI of that pet only.
+     */
+    private int updatePetById(long id, ContentValues values) {
+        Uri petUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+        if (!PetStatements.isFullRow(values)) {
+            if (values.getAsLong(PetEntry.PET_PHOTO) != null) {
+                // A new photo time says the photo changed, so that is when the new photo goes in.
+                updateSanityCheck(values);
+                replacePhoto(id);
+            }
+            // Selection will be "_id=?" and selection arguments will be a String array
+            // containing the actual ID.
+            return updatePet(petUri, values, PetEntry._ID + "=?", new String[] { String.valueOf(id) });
+        }
+
+        updateSanityCheck(values);
+
+        int rowsAltered = statements.updateById(id, values);
+
+        if(rowsAltered > 0){
+            // Notify all listeners that the data has changed for this pet
+            onPetsChanged(petUri);
         }
         return rowsAltered;
     }
@@ -189,15 +862,557 @@ public class PetProvider extends ContentProvider {
 
         SQLiteDatabase database = db.getWritableDatabase();
 
-        int rowsAltered = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+        // Which pets had photos can only be found out before they are deleted, so look them up
+        // in the same transaction as the delete.
+        List<Long> photoIds = new ArrayList<>();
+        int rowsAltered;
+        database.beginTransaction();
+        try {
+            Cursor photos = database.query(PetEntry.TABLE_NAME, new String[] { PetEntry._ID },
+                    DatabaseUtils.concatenateWhere(selection, PetEntry.PET_PHOTO + " IS NOT NULL"),
+                    selectionArgs, null, null, null);
+            try {
+                while (photos.moveToNext()) {
+                    photoIds.add(photos.getLong(0));
+                }
+            } finally {
+                photos.close();
+            }
+
+            rowsAltered = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // Files can't be rolled back, so if a batch this delete is part of fails, its pets stay
+        // but show no photo.
+        for (long id : photoIds) {
+            deletePhotoFiles(id);
+        }
 
         if(rowsAltered > 0){
             // Notify all listeners that the data has changed for the pet content URI
-            getContext().getContentResolver().notifyChange(uri, null);
+            onPetsChanged(uri);
         }
         return rowsAltered;
     }
 
+    /**
+     * Delete at most limit of the pets matching the selection, lowest _ID first, then give the
+     * pages they used back to the file system. The write lock is only held for one chunk, so
+     * other writers get in between the chunks of a mass delete. Listeners are notified on the
+     * pet content URI.
+     */
+    private int deletePetChunk(String selection, String[] selectionArgs, String limit) {
+        // The arguments of the selection are bound inside the subquery.
+        String chunk = SQLiteQueryBuilder.buildQueryString(false, PetEntry.TABLE_NAME,
+                new String[] { PetEntry._ID }, selection, null, null, PetEntry._ID, limit);
+        int rowsAltered = deletePet(PetEntry.CONTENT_URI, PetEntry._ID + " IN (" + chunk + ")",
+                selectionArgs);
+
+        db.reclaimFreePages(rowsAltered < Long.parseLong(limit));
+        return rowsAltered;
+    }
+
+    /**
+     * Delete the pet with the given ID using the precompiled statement. Listeners are notified on
+     * the URI of that pet only.
+     */
+    private int deletePetById(long id) {
+
+        int rowsAltered = statements.deleteById(id);
+
+        if(rowsAltered > 0){
+            deletePhotoFiles(id);
+            // Notify all listeners that the data has changed for this pet
+            onPetsChanged(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id));
+        }
+        return rowsAltered;
+    }
+
+    /**
+     * Remove the photo of the pet with the given ID. The pet stops saying it has a photo before
+     * the file goes, so nothing goes looking for it in between. Listeners are notified on the
+     * URI of that pet only.
+     */
+    private int deletePhoto(long id) {
+        ContentValues values = new ContentValues();
+        values.putNull(PetEntry.PET_PHOTO);
+        int rowsAltered = updatePetById(id, values);
+        deletePhotoFiles(id);
+        return rowsAltered;
+    }
+
+    /**
+     * Returns the _ID of the pet whose photo the URI is for.
+     */
+    private static long parsePhotoId(Uri uri) {
+        // The URI looks like pets/3/photo.
+        return Long.parseLong(uri.getPathSegments().get(1));
+    }
+
+    /**
+     * Returns the file holding the photo of the pet with the given ID, which may not exist.
+     */
+    private File getPhotoFile(long id) {
+        return new File(photoDirectory, id + ".jpg");
+    }
+
+    /**
+     * Returns the file a new photo of the pet with the given ID is written to, until it
+     * replaces the pet's photo.
+     */
+    private File getNewPhotoFile(long id) {
+        return new File(photoDirectory, id + ".jpg.new");
+    }
+
+    /**
+     * Move the new photo written for the pet over its photo, if one has been written since. A
+     * rename replaces the file in one step, so a reader opens either the old photo or the whole
+     * new one, never one that is still being written.
+     */
+    private void replacePhoto(long id) {
+        File newPhoto = getNewPhotoFile(id);
+        if (newPhoto.exists() && !newPhoto.renameTo(getPhotoFile(id))) {
+            throw new IllegalStateException("Couldn't replace the photo of pet " + id);
+        }
+    }
+
+    /**
+     * Delete the photo of the pet with the given ID, along with any new one being written.
+     */
+    private void deletePhotoFiles(long id) {
+        getPhotoFile(id).delete();
+        getNewPhotoFile(id).delete();
+    }
+
+
+    /**
+     * Called after pets have been written. Throw away cached query results, notify all listeners
+     * that the data at the given URI has changed and schedule a checkpoint. The URI is a single
+     * pet's URI when only that pet changed, and {@link PetEntry#CONTENT_URI} otherwise. The
+     * notifier merges it with other changes made around the same time.
+     */
+    private void onPetsChanged(Uri uri) {
+        queryCache.invalidate();
+        if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
+            Log.v(LOG_TAG, "Query cache hits " + queryCache.getHitCount()
+                    + ", misses " + queryCache.getMissCount());
+        }
+        db.scheduleCheckpoint();
+        notifier.notifyChange(uri);
+    }
+
+    /**
+     * Opens {@link ExportEntry#CONTENT_URI} for reading. The pets are written into a pipe from a
+     * background thread while the caller reads the other end.
+     *
+     * Also opens the photo of a pet, see {@link PetEntry#buildPhotoUri}.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        final int match = matcher.match(uri);
+        switch (match) {
+            case PET_EXPORT:
+                if (!"r".equals(mode)) {
+                    throw new FileNotFoundException("Exports can only be read " + uri);
+                }
+                return openPipeHelper(uri, getType(uri), null, getExportFormat(uri), exporter);
+            case PET_PHOTO:
+                return openPhoto(uri, mode);
+            default:
+                throw new FileNotFoundException("No file for " + uri);
+        }
+    }
+
+    /**
+     * Opens the photo file of the pet in the URI, for reading or for replacing it. Reading a pet
+     * without a photo fails, and so does writing a photo for a pet that doesn't exist, so no file
+     * is left behind without a pet. Images are only ever stored as files, because a BLOB column
+     * would be copied into every cursor window that reads the pet.
+     *
+     * A photo isn't written over in place, where a reader could open it half written or a failed
+     * write would ruin it. It is written to a new file instead, which takes the place of the old
+     * photo when the pet's {@link PetEntry#PET_PHOTO} is updated.
+     */
+    private ParcelFileDescriptor openPhoto(Uri uri, String mode) throws FileNotFoundException {
+        long id = parsePhotoId(uri);
+        if ("r".equals(mode)) {
+            return ParcelFileDescriptor.open(getPhotoFile(id),
+                    ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+        if (!"w".equals(mode) && !"wt".equals(mode)) {
+            throw new FileNotFoundException("Photos can only be read or replaced " + uri);
+        }
+
+        if (DatabaseUtils.queryNumEntries(db.getReadableDatabase(), PetEntry.TABLE_NAME,
+                PetEntry._ID + "=?", new String[] { String.valueOf(id) }) == 0) {
+            throw new FileNotFoundException("No pet for " + uri);
+        }
+        if (!photoDirectory.isDirectory() && !photoDirectory.mkdirs()) {
+            throw new FileNotFoundException("Couldn't create " + photoDirectory);
+        }
+        return ParcelFileDescriptor.open(getNewPhotoFile(id), ParcelFileDescriptor.MODE_WRITE_ONLY
+                | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE);
+    }
+
+    /**
+     * Returns the {@link ExportEntry#QUERY_PARAM_FORMAT} of the URI, or CSV if it doesn't have
+     * one.
+     */
+    private static String getExportFormat(Uri uri) {
+        String format = uri.getQueryParameter(ExportEntry.QUERY_PARAM_FORMAT);
+        if (format == null) {
+            return ExportEntry.FORMAT_CSV;
+        }
+        if (!ExportEntry.FORMAT_CSV.equals(format) && !ExportEntry.FORMAT_NDJSON.equals(format)) {
+            throw new IllegalArgumentException("Invalid " + ExportEntry.QUERY_PARAM_FORMAT
+                    + " parameter " + uri);
+        }
+        return format;
+    }
+
+    /**
+     * Handles the {@link Backup} methods that back up and restore the database, the
+     * {@link SyncEntry} methods {@link PetSync} uses to apply changes, mark pets as sent and get
+     * the watermark, and the {@link Metrics} methods that get and reset the metrics. Returns null
+     * for any other method.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (Backup.METHOD_BACKUP.equals(method) || Backup.METHOD_RESTORE.equals(method)) {
+            return callBackup(method, arg);
+        }
+        if (SyncEntry.METHOD_APPLY.equals(method)) {
+            return applySyncChanges(arg, extras);
+        }
+        if (SyncEntry.METHOD_MARK_SENT.equals(method)) {
+            return markSyncSent(extras);
+        }
+        if (SyncEntry.METHOD_GET_WATERMARK.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(SyncEntry.KEY_WATERMARK, DatabaseUtils.longForQuery(
+                    db.getReadableDatabase(), "SELECT IFNULL((SELECT " + SyncEntry.KEY_WATERMARK
+                            + " FROM " + PetDbHelper.SYNC_STATE_TABLE_NAME + " WHERE "
+                            + PetDbHelper.SYNC_STATE_SERVER + " = ?), 0)", new String[] { arg }));
+            return result;
+        }
+        if (!Metrics.METHOD_GET.equals(method) && !Metrics.METHOD_RESET.equals(method)) {
+            return null;
+        }
+
+        Bundle snapshot = metrics.snapshot();
+        snapshot.putLong(Metrics.KEY_QUERY_CACHE_HITS, queryCache.getHitCount());
+        snapshot.putLong(Metrics.KEY_QUERY_CACHE_MISSES, queryCache.getMissCount());
+        snapshot.putLong(Metrics.KEY_NOTIFICATIONS_REQUESTED, notifier.getRequestedCount());
+        snapshot.putLong(Metrics.KEY_NOTIFICATIONS_DISPATCHED, notifier.getDispatchedCount());
+        snapshot.putLong(Metrics.KEY_NOTIFICATIONS_SUPPRESSED, notifier.getSuppressedCount());
+        if (Metrics.METHOD_RESET.equals(method)) {
+            metrics.reset();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Apply a batch of changes from the sync server given by arg, then store its watermark, all
+     * in one transaction. Listeners hear about the pets that changed once it commits.
+     */
+    private Bundle applySyncChanges(String server, Bundle extras) {
+        if (TextUtils.isEmpty(server) || extras == null) {
+            throw new IllegalArgumentException("No server or changes given for sync");
+        }
+        List<ContentValues> changes = extras.getParcelableArrayList(SyncEntry.KEY_CHANGES);
+        if (changes == null) {
+            throw new IllegalArgumentException("No changes given for sync");
+        }
+
+        SQLiteDatabase database = db.getWritableDatabase();
+        int count = 0;
+        boolean successful = false;
+        notifier.beginTransaction();
+        database.beginTransaction();
+        try {
+            for (ContentValues change : changes) {
+                if (applySyncChange(database, change)) {
+                    count++;
+                }
+            }
+
+            ContentValues state = new ContentValues();
+            state.put(PetDbHelper.SYNC_STATE_SERVER, server);
+            state.put(SyncEntry.KEY_WATERMARK, extras.getLong(SyncEntry.KEY_WATERMARK));
+            database.insertWithOnConflict(PetDbHelper.SYNC_STATE_TABLE_NAME, null, state,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            database.endTransaction();
+            if (successful) {
+                // The sync state changed even if no pet did.
+                queryCache.invalidate();
+            }
+            notifier.endTransaction(successful);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(SyncEntry.KEY_COUNT, count);
+        return result;
+    }
+
+    /**
+     * Apply one pet's change from the sync server, keeping the value of each column that changed
+     * last. Returns whether or not the pet changed.
+     *
+     * The triggers treat the write as a local change, so afterwards the server's times are put
+     * back and the dirty count the write added is taken off again.
+     */
+    private boolean applySyncChange(SQLiteDatabase database, ContentValues change) {
+        String syncId = change.getAsString(SyncEntry.SYNC_ID);
+        if (TextUtils.isEmpty(syncId)) {
+            throw new IllegalArgumentException("Sync change without a " + SyncEntry.SYNC_ID);
+        }
+        String[] syncIdArgs = { syncId };
+        Long deletedTime = change.getAsLong(SyncEntry.DELETED_TIME);
+
+        String[] columns = new String[2 + 2 * SYNC_COLUMNS.length];
+        columns[0] = SyncEntry.PET_ID;
+        columns[1] = SyncEntry.DELETED_TIME;
+        System.arraycopy(SYNC_COLUMNS, 0, columns, 2, SYNC_COLUMNS.length);
+        System.arraycopy(SYNC_TIMES, 0, columns, 2 + SYNC_COLUMNS.length, SYNC_TIMES.length);
+        Cursor local = database.query(SYNC_JOIN, columns, SyncEntry.SYNC_ID + " = ?", syncIdArgs,
+                null, null, null);
+        try {
+            if (!local.moveToFirst()) {
+                return insertSyncedPet(database, change, deletedTime);
+            }
+            if (!local.isNull(1)) {
+                // Deletes win. The local delete is sent to the server on the next sync.
+                return false;
+            }
+
+            long id = local.getLong(0);
+            ContentValues sync = new ContentValues();
+            if (deletedTime != null) {
+                deletePetById(id);
+                sync.put(SyncEntry.DELETED_TIME, deletedTime);
+                sync.put(SyncEntry.DIRTY, 0);
+                database.update(SyncEntry.TABLE_NAME, sync, SyncEntry.SYNC_ID + " = ?",
+                        syncIdArgs);
+                return true;
+            }
+
+            ContentValues pet = new ContentValues();
+            for (int i = 0; i < SYNC_COLUMNS.length; i++) {
+                Long remoteTime = change.getAsLong(SYNC_TIMES[i]);
+                if (remoteTime == null) {
+                    continue;
+                }
+                long localTime = local.getLong(2 + SYNC_COLUMNS.length + i);
+                String remoteValue = change.getAsString(SYNC_COLUMNS[i]);
+                String localValue = local.getString(2 + i);
+                // Break ties on the value, so every device settles on the same one.
+                boolean remoteWins = remoteTime > localTime || (remoteTime == localTime
+                        && compareValues(remoteValue, localValue) > 0);
+                if (remoteWins) {
+                    sync.put(SYNC_TIMES[i], remoteTime);
+                    if (!TextUtils.equals(remoteValue, localValue)) {
+                        copyValue(change, pet, SYNC_COLUMNS[i]);
+                    }
+                }
+            }
+            if (sync.size() == 0) {
+                return false;
+            }
+
+            if (pet.size() > 0) {
+                try {
+                    updateSanityCheck(pet);
+                } catch (IllegalArgumentException e) {
+                    Log.w(LOG_TAG, "Skipped invalid sync change to " + syncId, e);
+                    return false;
+                }
+                database.update(PetEntry.TABLE_NAME, pet, PetEntry._ID + " = ?",
+                        new String[] { String.valueOf(id) });
+                database.execSQL("UPDATE " + SyncEntry.TABLE_NAME + " SET " + SyncEntry.DIRTY
+                        + " = " + SyncEntry.DIRTY + " - 1 WHERE " + SyncEntry.SYNC_ID + " = ?",
+                        syncIdArgs);
+                onPetsChanged(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id));
+            }
+            database.update(SyncEntry.TABLE_NAME, sync, SyncEntry.SYNC_ID + " = ?", syncIdArgs);
+            return pet.size() > 0;
+        } finally {
+            local.close();
+        }
+    }
+
+    /**
+     * Store a pet from the sync server that this device hasn't seen. A pet deleted elsewhere is
+     * kept as a tombstone, so an older change to it that turns up later is ignored.
+     */
+    private boolean insertSyncedPet(SQLiteDatabase database, ContentValues change,
+                                    Long deletedTime) {
+        ContentValues sync = new ContentValues();
+        sync.put(SyncEntry.SYNC_ID, change.getAsString(SyncEntry.SYNC_ID));
+        sync.put(SyncEntry.DIRTY, 0);
+        for (String time : SYNC_TIMES) {
+            Long value = change.getAsLong(time);
+            sync.put(time, value == null ? 0 : value);
+        }
+        if (deletedTime != null) {
+            sync.put(SyncEntry.DELETED_TIME, deletedTime);
+            database.insert(SyncEntry.TABLE_NAME, null, sync);
+            return false;
+        }
+
+        ContentValues pet = new ContentValues();
+        for (String column : SYNC_COLUMNS) {
+            copyValue(change, pet, column);
+        }
+        try {
+            sanityCheck(pet);
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Skipped invalid synced pet " + sync.getAsString(SyncEntry.SYNC_ID), e);
+            return false;
+        }
+        long id = insertRow(pet);
+        if (id == -1) {
+            return false;
+        }
+        // The trigger gave the pet a new sync ID of its own.
+        database.update(SyncEntry.TABLE_NAME, sync, SyncEntry.PET_ID + " = ?",
+                new String[] { String.valueOf(id) });
+        onPetsChanged(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id));
+        return true;
+    }
+
+    /**
+     * Compares two column values as text, with null first.
+     */
+    private static int compareValues(String a, String b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        return a.compareTo(b);
+    }
+
+    /**
+     * Copy one value between content values, keeping numbers as numbers. Does nothing if the
+     * value isn't there.
+     */
+    private static void copyValue(ContentValues from, ContentValues to, String key) {
+        if (!from.containsKey(key)) {
+            return;
+        }
+        Object value = from.get(key);
+        if (value == null) {
+            to.putNull(key);
+        }
+        else if (value instanceof Number) {
+            to.put(key, ((Number) value).longValue());
+        }
+        else {
+            to.put(key, value.toString());
+        }
+    }
+
+    /**
+     * Clear the dirty count of pets that have been sent to the sync server, unless they changed
+     * again after being read.
+     */
+    private Bundle markSyncSent(Bundle extras) {
+        String[] syncIds = extras == null ? null : extras.getStringArray(SyncEntry.KEY_SYNC_IDS);
+        long[] dirty = extras == null ? null : extras.getLongArray(SyncEntry.KEY_DIRTY);
+        if (syncIds == null || dirty == null || syncIds.length != dirty.length) {
+            throw new IllegalArgumentException("Sync IDs and dirty counts don't match");
+        }
+
+        SQLiteDatabase database = db.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(SyncEntry.DIRTY, 0);
+        int count = 0;
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < syncIds.length; i++) {
+                count += database.update(SyncEntry.TABLE_NAME, values, SyncEntry.SYNC_ID
+                        + " = ? AND " + SyncEntry.DIRTY + " = ?",
+                        new String[] { syncIds[i], String.valueOf(dirty[i]) });
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        queryCache.invalidate();
+
+        Bundle result = new Bundle();
+        result.putInt(SyncEntry.KEY_COUNT, count);
+        return result;
+    }
+
+    /**
+     * Back up the database into the file named by arg, or restore it from that file.
+     */
+    private Bundle callBackup(String method, String arg) {
+        if (TextUtils.isEmpty(arg)) {
+            throw new IllegalArgumentException("No backup file given for " + method);
+        }
+
+        PetBackup backup = new PetBackup(db);
+        try {
+            if (Backup.METHOD_BACKUP.equals(method)) {
+                return backup.backup(new File(arg));
+            }
+
+            return restore(backup, new File(arg));
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't " + method + " " + arg, e);
+        }
+    }
+
+    /**
+     * Restore the database from the backup with the threads that keep hold of it stopped. The
+     * app's {@link PetWriter} is paused, so its queued writes are made to the restored database
+     * afterwards, and the checkpoint thread is stopped until the next write. An export still
+     * reading the old database fails, and its pipe is closed with an error.
+     */
+    private Bundle restore(PetBackup backup, File source) throws IOException {
+        PetWriter writer = null;
+        if (PetDbHelper.DATABASE_NAME.equals(databaseName)) {
+            writer = PetWriter.peekInstance();
+        }
+        try {
+            if (writer != null && !writer.pause(RESTORE_PAUSE_TIMEOUT_MS)) {
+                throw new IOException("Pet writes didn't stop for the restore");
+            }
+            if (!db.stopCheckpoints(RESTORE_PAUSE_TIMEOUT_MS)) {
+                throw new IOException("The checkpoint didn't stop for the restore");
+            }
+
+            // The statements belong to the database that is about to be closed.
+            statements.close();
+            Bundle result = backup.restore(source);
+            // Any pet may have changed.
+            onPetsChanged(PetEntry.CONTENT_URI);
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted before the restore", e);
+        } finally {
+            if (writer != null) {
+                writer.resume();
+            }
+        }
+    }
+
+    /**
+     * Close the database. The system never shuts a provider down, so this is only used for the
+     * scratch providers made by benchmarks and tests.
+     */
+    @Override
+    public void shutdown() {
+        statements.close();
+        db.close();
+    }
 
     @Override
     public String getType(Uri uri) {
@@ -207,12 +1422,35 @@ public class PetProvider extends ContentProvider {
                 return PetEntry.CONTENT_LIST_TYPE;
             case PET_ID:
                 return PetEntry.CONTENT_ITEM_TYPE;
+            case PET_SEARCH:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case PET_STATS:
+                return StatsEntry.CONTENT_TYPE;
+            case PET_EXPORT:
+                if (ExportEntry.FORMAT_NDJSON.equals(getExportFormat(uri))) {
+                    return ExportEntry.NDJSON_TYPE;
+                }
+                return ExportEntry.CSV_TYPE;
+            case PET_IMPORT:
+                return ImportEntry.CONTENT_ITEM_TYPE;
+            case PET_PHOTO:
+                return PetEntry.PHOTO_TYPE;
+            case PET_CHANGES:
+                return ChangeEntry.CONTENT_TYPE;
+            case PET_SYNC:
+                return SyncEntry.CONTENT_TYPE;
+            case PET_DUPLICATES:
+                return DuplicateEntry.CONTENT_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
     }
 
-    public boolean sanityCheck(ContentValues values){
+    /**
+     * Throws an IllegalArgumentException if the values don't make a valid new pet. Static so that
+     * {@link PetImporter} can check rows with the same rules before sending them.
+     */
+    public static boolean sanityCheck(ContentValues values){
 
         if(TextUtils.isEmpty(values.getAsString(PetEntry.PET_NAME))){
             throw new IllegalArgumentException("Pet requires a name.");
@@ -0,0 +1,188 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the results of recent {@link PetProvider} queries so that asking the same question again
+ * before anything has been written doesn't have to go back to SQLite.
+ *
+ * Every write bumps the generation, which makes everything cached before it stale. A result is
+ * stored with the generation that was current when its query started, so a query that raced
+ * with a write is never served afterwards. Writes inside a transaction must bump the generation
+ * again once the transaction has been committed.
+ */
+final class PetQueryCache {
+
+    /** Most query results that are kept at once. The least recently used one is dropped first. */
+    static final int MAX_ENTRIES = 64;
+
+    /** Results with more rows than this aren't cached, so the cache can't hold a whole table. */
+    static final int MAX_ROWS_PER_ENTRY = 500;
+
+    /** Separates the parts of a key. Can't appear in a URI or in SQL that SQLite accepts. */
+    private static final char SEPARATOR = '\u0000';
+
+    /** Stands in for a null part of a key, so that null and "null" are different keys. */
+    private static final char NULL = '\u0001';
+
+    /**
+     * The rows of one query result, copied out of its cursor.
+     */
+    private static class CachedResult {
+        final long generation;
+        final String[] columns;
+        final Object[][] rows;
+
+        CachedResult(long generation, String[] columns, Object[][] rows) {
+            this.generation = generation;
+            this.columns = columns;
+            this.rows = rows;
+        }
+    }
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LinkedHashMap<String, CachedResult> entries =
+            new LinkedHashMap<String, CachedResult>(16, 0.75f, true /* access order */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    /**
+     * Returns the key for a query. Two queries with the same key return the same rows as long as
+     * nothing has been written in between.
+     */
+    static String buildKey(int match, Uri uri, String[] projection, String selection,
+                           String[] selectionArgs, String sortOrder) {
+        StringBuilder key = new StringBuilder();
+        key.append(match).append(SEPARATOR).append(uri).append(SEPARATOR);
+        appendAll(key, projection);
+        append(key, selection);
+        appendAll(key, selectionArgs);
+        append(key, sortOrder);
+        return key.toString();
+    }
+
+    private static void append(StringBuilder key, String part) {
+        if (part == null) {
+            key.append(NULL);
+        }
+        else {
+            key.append(part);
+        }
+        key.append(SEPARATOR);
+    }
+
+    private static void appendAll(StringBuilder key, String[] parts) {
+        if (parts == null) {
+            key.append(NULL).append(SEPARATOR);
+            return;
+        }
+        key.append(parts.length).append(SEPARATOR);
+        for (String part : parts) {
+            append(key, part);
+        }
+    }
+
+    /**
+     * Returns the current generation. Read it before running a query and pass it to
+     * {@link #put} along with the result.
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Mark every cached result as stale. Called after every write.
+     */
+    void invalidate() {
+        generation.incrementAndGet();
+        synchronized (this) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Returns a new cursor over the cached result for the key, or null if there isn't an up to
+     * date one.
+     */
+    Cursor get(String key) {
+        CachedResult entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null || entry.generation != generation.get()) {
+                missCount++;
+                return null;
+            }
+            hitCount++;
+        }
+
+        MatrixCursor cursor = new MatrixCursor(entry.columns, entry.rows.length);
+        for (Object[] row : entry.rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Cache the result of a query that started at the given generation. The cursor is read from
+     * start to finish and left before its first row, ready for the caller.
+     */
+    void put(String key, long queryGeneration, Cursor cursor) {
+        int count = cursor.getCount();
+        if (count > MAX_ROWS_PER_ENTRY || queryGeneration != generation.get()) {
+            return;
+        }
+
+        String[] columns = cursor.getColumnNames();
+        Object[][] rows = new Object[count][];
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            Object[] row = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = cursor.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[i] = cursor.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        row[i] = cursor.getString(i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row[i] = cursor.getBlob(i);
+                        break;
+                    default:
+                        row[i] = null;
+                        break;
+                }
+            }
+            rows[cursor.getPosition()] = row;
+        }
+        cursor.moveToPosition(-1);
+
+        synchronized (this) {
+            entries.put(key, new CachedResult(queryGeneration, columns, rows));
+        }
+    }
+
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized long getMissCount() {
+        return missCount;
+    }
+}
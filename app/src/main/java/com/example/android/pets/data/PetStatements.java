@@ -0,0 +1,197 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precompiled statements for the writes {@link PetProvider} makes most often. The
+ * {@link SQLiteDatabase} helper methods build a new SQL string and statement from the
+ * {@link ContentValues} on every call, while these are compiled once and only have their
+ * arguments bound each time.
+ */
+final class PetStatements {
+
+    private static final String LOG_TAG = PetStatements.class.getSimpleName();
+
+    private static final String INSERT_SQL = "INSERT INTO " + PetEntry.TABLE_NAME + " ("
+            + PetEntry.PET_NAME + ", " + PetEntry.PET_BREED + ", " + PetEntry.PET_GENDER + ", "
+            + PetEntry.PET_WEIGHT + ") VALUES (?, ?, ?, ?)";
+
+    private static final String UPDATE_BY_ID_SQL = "UPDATE " + PetEntry.TABLE_NAME + " SET "
+            + PetEntry.PET_NAME + " = ?, " + PetEntry.PET_BREED + " = ?, "
+            + PetEntry.PET_GENDER + " = ?, " + PetEntry.PET_WEIGHT + " = ? WHERE "
+            + PetEntry._ID + " = ?";
+
+    private static final String DELETE_BY_ID_SQL = "DELETE FROM " + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry._ID + " = ?";
+
+    /** Most distinct projections whose select-by-id SQL is kept. */
+    private static final int MAX_SELECT_SHAPES = 16;
+
+    private final PetDbHelper dbHelper;
+
+    /** The database the statements below were compiled against. */
+    private SQLiteDatabase database;
+
+    private SQLiteStatement insert;
+    private SQLiteStatement updateById;
+    private SQLiteStatement deleteById;
+
+    /**
+     * Select-by-id SQL for each projection seen so far. Queries can't be run through a
+     * {@link SQLiteStatement}, but reusing the exact same SQL string lets each connection find
+     * the query in its own prepared statement cache instead of compiling it again.
+     */
+    private final Map<String, String> selectByIdSql = new ConcurrentHashMap<>();
+
+    PetStatements(PetDbHelper dbHelper) {
+        this.dbHelper = dbHelper;
+    }
+
+    /**
+     * Returns whether or not the values only hold pet columns, so they can be inserted with
+     * {@link #insert}. Values that passed {@link PetProvider#sanityCheck} always have a name and
+     * gender.
+     */
+    static boolean canInsert(ContentValues values) {
+        for (String key : values.keySet()) {
+            if (!PetEntry.PET_NAME.equals(key) && !PetEntry.PET_BREED.equals(key)
+                    && !PetEntry.PET_GENDER.equals(key) && !PetEntry.PET_WEIGHT.equals(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether or not the values set every pet column, so they can be written with
+     * {@link #updateById}.
+     */
+    static boolean isFullRow(ContentValues values) {
+        return values.size() == 4 && values.containsKey(PetEntry.PET_NAME)
+                && values.containsKey(PetEntry.PET_BREED)
+                && values.containsKey(PetEntry.PET_GENDER)
+                && values.containsKey(PetEntry.PET_WEIGHT);
+    }
+
+    /**
+     * Insert a pet. Returns the _ID of the new row, or -1 if it couldn't be inserted, like
+     * {@link SQLiteDatabase#insert}.
+     */
+    synchronized long insert(ContentValues values) {
+        prepare();
+        bindPet(insert, values);
+        try {
+            return insert.executeInsert();
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error inserting " + values, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Overwrite every column of the pet with the given _ID. Returns the number of rows changed.
+     */
+    synchronized int updateById(long id, ContentValues values) {
+        prepare();
+        bindPet(updateById, values);
+        updateById.bindLong(5, id);
+        return updateById.executeUpdateDelete();
+    }
+
+    /**
+     * Delete the pet with the given _ID. Returns the number of rows deleted.
+     */
+    synchronized int deleteById(long id) {
+        prepare();
+        deleteById.bindLong(1, id);
+        return deleteById.executeUpdateDelete();
+    }
+
+    /**
+     * Returns the SQL that selects the given columns of one pet, taking its _ID as the only
+     * argument.
+     */
+    String selectByIdSql(String[] projection) {
+        String key = projection == null ? "*" : TextUtils.join(",", projection);
+        String sql = selectByIdSql.get(key);
+        if (sql == null) {
+            sql = SQLiteQueryBuilder.buildQueryString(false, PetEntry.TABLE_NAME, projection,
+                    PetEntry._ID + " = ?", null, null, null, null);
+            if (selectByIdSql.size() < MAX_SELECT_SHAPES) {
+                selectByIdSql.put(key, sql);
+            }
+        }
+        return sql;
+    }
+
+    /**
+     * Close the compiled statements. They are compiled again the next time they are needed.
+     */
+    synchronized void close() {
+        if (database == null) {
+            return;
+        }
+        insert.close();
+        updateById.close();
+        deleteById.close();
+        database = null;
+    }
+
+    /**
+     * Compile the statements, or compile them again if the database has been reopened since.
+     */
+    private void prepare() {
+        SQLiteDatabase current = dbHelper.getWritableDatabase();
+        if (current == database) {
+            return;
+        }
+        close();
+        insert = current.compileStatement(INSERT_SQL);
+        updateById = current.compileStatement(UPDATE_BY_ID_SQL);
+        deleteById = current.compileStatement(DELETE_BY_ID_SQL);
+        database = current;
+    }
+
+    /**
+     * Bind the pet columns of the values to the first four arguments of the statement. A
+     * missing breed is stored as null and a missing weight as 0, like the table defaults. A weight
+     * that is there but null is bound as null, so the table rejects it just as it would from
+     * {@link SQLiteDatabase#insert} or {@link SQLiteDatabase#update}.
+     */
+    private static void bindPet(SQLiteStatement statement, ContentValues values) {
+        statement.bindString(1, values.getAsString(PetEntry.PET_NAME));
+
+        String breed = values.getAsString(PetEntry.PET_BREED);
+        if (breed == null) {
+            statement.bindNull(2);
+        }
+        else {
+            statement.bindString(2, breed);
+        }
+
+        statement.bindLong(3, values.getAsInteger(PetEntry.PET_GENDER));
+
+        if (!values.containsKey(PetEntry.PET_WEIGHT)) {
+            statement.bindLong(4, 0);
+            return;
+        }
+        Integer weight = values.getAsInteger(PetEntry.PET_WEIGHT);
+        if (weight == null) {
+            statement.bindNull(4);
+        }
+        else {
+            statement.bindLong(4, weight);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.SyncEntry;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Syncs the pets with the shelter's server, so that every device at the shelter ends up with
+ * the same pets. Only the pets changed since the last sync are exchanged, in batches.
+ *
+ * The server is reached over HTTP at {server}/changes, with the changes as JSON:
+ *
+ * POST sends a batch of local changes, gzipped: {"changes": [...]}. Any 2xx response means the
+ * server has them.
+ *
+ * GET ?since=W&limit=N returns the changes the server has had since its watermark W:
+ * {"watermark": W, "more": true, "changes": [...]}. The watermark is stored along with the
+ * changes, so the next sync carries on from there.
+ *
+ * Each change is an object keyed by the {@link SyncEntry} and {@link PetEntry} columns, holding
+ * the pet's sync ID, its name, breed, gender and weight, when each of them last changed, and
+ * when the pet was deleted if it was. Conflicts are settled the way {@link SyncEntry} describes,
+ * and the server should settle them the same way. Photos aren't synced.
+ *
+ * Syncing blocks on the network, so it has to be run from a background thread.
+ */
+public class PetSync {
+
+    public static final String LOG_TAG = PetSync.class.getSimpleName();
+
+    /** Number of pets sent or received per request, by default. */
+    public static final int DEFAULT_BATCH_SIZE = 200;
+
+    /** How long to wait for the server to connect or answer. */
+    private static final int TIMEOUT_MS = 30 * 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Columns sent for every dirty pet. */
+    private static final String[] SEND_COLUMNS = {
+            SyncEntry.SYNC_ID,
+            SyncEntry.DELETED_TIME,
+            PetEntry.PET_NAME,
+            SyncEntry.NAME_TIME,
+            PetEntry.PET_BREED,
+            SyncEntry.BREED_TIME,
+            PetEntry.PET_GENDER,
+            SyncEntry.GENDER_TIME,
+            PetEntry.PET_WEIGHT,
+            SyncEntry.WEIGHT_TIME,
+            SyncEntry.DIRTY };
+
+    /**
+     * The totals for one sync.
+     */
+    public static class Result {
+        /** Pets whose changes were sent to the server. */
+        public final int petsSent;
+        /** Pet changes received from the server. */
+        public final int petsReceived;
+        /** Pets that changed here because of the changes received. */
+        public final int petsChanged;
+
+        Result(int petsSent, int petsReceived, int petsChanged) {
+            this.petsSent = petsSent;
+            this.petsReceived = petsReceived;
+            this.petsChanged = petsChanged;
+        }
+    }
+
+    private final ContentResolver resolver;
+
+    /** The server's URL, without a trailing slash. */
+    private final String server;
+
+    private final int batchSize;
+
+    public PetSync(ContentResolver resolver, String server, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.resolver = resolver;
+        this.server = server.endsWith("/") ? server.substring(0, server.length() - 1) : server;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Send the local changes to the server, then apply the server's changes. A sync that fails
+     * part way keeps every batch that got through, and the next sync carries on from there.
+     *
+     * @throws IOException if the server can't be reached or answers with an error.
+     */
+    public Result sync() throws IOException {
+        int sent = send();
+        int[] received = receive();
+        Log.i(LOG_TAG, "Sent " + sent + " pets and received " + received[0] + " from " + server);
+        return new Result(sent, received[0], received[1]);
+    }
+
+    /**
+     * Send every dirty pet to the server, a batch at a time in order of sync ID. Returns the
+     * number of pets sent.
+     */
+    private int send() throws IOException {
+        Uri dirtyUri = SyncEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(PetEntry.QUERY_PARAM_LIMIT, String.valueOf(batchSize))
+                .appendQueryParameter(PetEntry.QUERY_PARAM_NOTIFY, "false")
+                .build();
+        int sent = 0;
+        String lastSyncId = "";
+        while (true) {
+            Cursor cursor = resolver.query(dirtyUri, SEND_COLUMNS, SyncEntry.DIRTY + " > 0 AND "
+                    + SyncEntry.SYNC_ID + " > ?", new String[] { lastSyncId }, SyncEntry.SYNC_ID);
+            if (cursor == null) {
+                return sent;
+            }
+
+            int count = cursor.getCount();
+            String[] syncIds = new String[count];
+            long[] dirty = new long[count];
+            byte[] body;
+            try {
+                body = writeChanges(cursor, syncIds, dirty);
+            } finally {
+                cursor.close();
+            }
+            if (count == 0) {
+                return sent;
+            }
+
+            HttpURLConnection connection = open(server + "/changes");
+            try {
+                connection.setDoOutput(true);
+                connection.setRequestMethod("POST");
+                connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                connection.setFixedLengthStreamingMode(body.length);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+                checkResponse(connection);
+            } finally {
+                connection.disconnect();
+            }
+
+            // A pet changed again while it was being sent stays dirty for the next sync.
+            Bundle extras = new Bundle();
+            extras.putStringArray(SyncEntry.KEY_SYNC_IDS, syncIds);
+            extras.putLongArray(SyncEntry.KEY_DIRTY, dirty);
+            resolver.call(PetContract.BASE_CONTENT_URI, SyncEntry.METHOD_MARK_SENT, null, extras);
+
+            sent += count;
+            lastSyncId = syncIds[count - 1];
+            if (count < batchSize) {
+                return sent;
+            }
+        }
+    }
+
+    /**
+     * Write the pets in the cursor as a gzipped batch of changes, filling in the sync ID and
+     * dirty count of each one.
+     */
+    private static byte[] writeChanges(Cursor cursor, String[] syncIds, long[] dirty)
+            throws IOException {
+        int syncIdColumn = cursor.getColumnIndexOrThrow(SyncEntry.SYNC_ID);
+        int dirtyColumn = cursor.getColumnIndexOrThrow(SyncEntry.DIRTY);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(
+                new GZIPOutputStream(bytes), UTF_8));
+        try {
+            writer.beginObject();
+            writer.name(SyncEntry.KEY_CHANGES);
+            writer.beginArray();
+            for (int row = 0; cursor.moveToNext(); row++) {
+                syncIds[row] = cursor.getString(syncIdColumn);
+                dirty[row] = cursor.getLong(dirtyColumn);
+
+                writer.beginObject();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    if (i == dirtyColumn) {
+                        continue;
+                    }
+                    writer.name(cursor.getColumnName(i));
+                    if (cursor.isNull(i)) {
+                        writer.nullValue();
+                    }
+                    else if (cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
+                        writer.value(cursor.getLong(i));
+                    }
+                    else {
+                        writer.value(cursor.getString(i));
+                    }
+                }
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        } finally {
+            writer.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Fetch the server's changes since the stored watermark a batch at a time, applying each
+     * batch in its own transaction. Returns the number of changes received and the number of
+     * pets they changed.
+     */
+    private int[] receive() throws IOException {
+        Bundle state = resolver.call(PetContract.BASE_CONTENT_URI,
+                SyncEntry.METHOD_GET_WATERMARK, server, null);
+        long watermark = state == null ? 0 : state.getLong(SyncEntry.KEY_WATERMARK);
+
+        int received = 0;
+        int changed = 0;
+        while (true) {
+            HttpURLConnection connection = open(server + "/changes?since=" + watermark
+                    + "&limit=" + batchSize);
+            ArrayList<ContentValues> changes = new ArrayList<>();
+            boolean more;
+            try {
+                // HttpURLConnection asks for gzip and unzips the response itself.
+                checkResponse(connection);
+                InputStream in = new BufferedInputStream(connection.getInputStream());
+                JsonReader reader = new JsonReader(new InputStreamReader(in, UTF_8));
+                try {
+                    more = false;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if (SyncEntry.KEY_WATERMARK.equals(name)) {
+                            watermark = reader.nextLong();
+                        }
+                        else if ("more".equals(name)) {
+                            more = reader.nextBoolean();
+                        }
+                        else if (SyncEntry.KEY_CHANGES.equals(name)) {
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                changes.add(readChange(reader));
+                            }
+                            reader.endArray();
+                        }
+                        else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } finally {
+                    reader.close();
+                }
+            } finally {
+                connection.disconnect();
+            }
+
+            Bundle extras = new Bundle();
+            extras.putParcelableArrayList(SyncEntry.KEY_CHANGES, changes);
+            extras.putLong(SyncEntry.KEY_WATERMARK, watermark);
+            Bundle result = resolver.call(PetContract.BASE_CONTENT_URI, SyncEntry.METHOD_APPLY,
+                    server, extras);
+            received += changes.size();
+            if (result != null) {
+                changed += result.getInt(SyncEntry.KEY_COUNT);
+            }
+
+            if (!more || changes.isEmpty()) {
+                return new int[] { received, changed };
+            }
+        }
+    }
+
+    /**
+     * Read one change from the server as content values, keeping numbers as numbers.
+     */
+    private static ContentValues readChange(JsonReader reader) throws IOException {
+        ContentValues change = new ContentValues();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+            if (token == JsonToken.NULL) {
+                reader.nextNull();
+                change.putNull(name);
+            }
+            else if (token == JsonToken.NUMBER) {
+                change.put(name, reader.nextLong());
+            }
+            else if (token == JsonToken.STRING) {
+                change.put(name, reader.nextString());
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return change;
+    }
+
+    private static HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        return connection;
+    }
+
+    /**
+     * Throws if the server answered with anything but success.
+     */
+    private static void checkResponse(HttpURLConnection connection) throws IOException {
+        int code = connection.getResponseCode();
+        if (code < 200 || code >= 300) {
+            throw new IOException("Server answered " + code + " " + connection.getResponseMessage()
+                    + " for " + connection.getURL());
+        }
+    }
+}
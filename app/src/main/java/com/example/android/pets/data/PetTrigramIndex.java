@@ -0,0 +1,545 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.ChangeEntry;
+import com.example.android.pets.data.PetContract.DuplicateEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index of the trigrams in the name and breed of every pet, used to find pets that look like
+ * duplicates without comparing every pet with every other. A trigram is three letters in a row
+ * of a word, with the word padded by two spaces in front and one behind, so "Rex" has "  r",
+ * " re", "rex" and "ex ". Names that differ by a typo still share most of their trigrams.
+ *
+ * The index follows the {@link ChangeEntry} log rather than every write path, reindexing each
+ * pet that changed since the last change it saw. It is brought up to date in the background
+ * before the log is trimmed, and before duplicates are looked up. If it falls further behind
+ * than the log goes back, it is rebuilt.
+ */
+final class PetTrigramIndex {
+
+    public static final String LOG_TAG = PetTrigramIndex.class.getSimpleName();
+
+    /** Table of (trigram, pet) pairs. */
+    static final String TABLE_NAME = "pet_trigrams";
+
+    /** Column of {@link #TABLE_NAME} holding the trigram with its field prefix. */
+    static final String TRIGRAM = "trigram";
+
+    /** Column of {@link #TABLE_NAME} holding the {@link PetEntry#_ID}. */
+    static final String PET_ID = "pet_id";
+
+    /** One row table holding the last {@link ChangeEntry#SEQUENCE} indexed, or -1 to rebuild. */
+    static final String STATE_TABLE_NAME = "pet_trigram_state";
+
+    /** Column of {@link #STATE_TABLE_NAME}. */
+    static final String STATE_SEQUENCE = "seq";
+
+    /** Put in front of the trigrams of names, and of breeds, to keep them apart in the index. */
+    private static final String NAME_PREFIX = "n";
+    private static final String BREED_PREFIX = "b";
+
+    /** Number of changes, or pets for a rebuild, indexed per transaction. */
+    private static final int CHUNK_SIZE = 500;
+
+    /**
+     * Name trigrams shared by more pets than this aren't used to find pets to compare, since
+     * every pair of those pets would have to be compared.
+     */
+    static final int MAX_PETS_PER_TRIGRAM = 1000;
+
+    /** Pets need at least this many name trigrams in common to be compared. */
+    private static final int MIN_SHARED_TRIGRAMS = 2;
+
+    /** Most arguments bound to one statement, well under SQLite's limit of 999. */
+    private static final int MAX_ARGS = 500;
+
+    private static final String[] COLUMNS = {
+            DuplicateEntry.GROUP_ID,
+            DuplicateEntry.PET_ID,
+            PetEntry.PET_NAME,
+            PetEntry.PET_BREED,
+            DuplicateEntry.SIMILARITY };
+
+    private final PetDbHelper dbHelper;
+
+    PetTrigramIndex(PetDbHelper dbHelper) {
+        this.dbHelper = dbHelper;
+    }
+
+    /**
+     * Create the index tables, with the index marked to be built in the background. Building it
+     * here would slow down opening the database.
+     */
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_NAME + "("
+                + TRIGRAM + " TEXT NOT NULL, "
+                + PET_ID + " INTEGER NOT NULL);");
+        db.execSQL("CREATE INDEX " + TABLE_NAME + "_" + TRIGRAM + "_index ON " + TABLE_NAME + "("
+                + TRIGRAM + ", " + PET_ID + ");");
+        db.execSQL("CREATE INDEX " + TABLE_NAME + "_" + PET_ID + "_index ON " + TABLE_NAME + "("
+                + PET_ID + ");");
+
+        db.execSQL("CREATE TABLE " + STATE_TABLE_NAME + "(" + STATE_SEQUENCE
+                + " INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO " + STATE_TABLE_NAME + " VALUES (-1);");
+    }
+
+    /**
+     * Returns the trigrams of the words in the text, ignoring case and anything other than
+     * letters and digits.
+     */
+    static Set<String> trigrams(String text) {
+        Set<String> trigrams = new HashSet<>();
+        if (text == null) {
+            return trigrams;
+        }
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            String padded = "  " + word + " ";
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                trigrams.add(padded.substring(i, i + 3));
+            }
+        }
+        return trigrams;
+    }
+
+    /**
+     * Reindex every pet changed since the index was last brought up to date, a chunk of changes
+     * per transaction. Safe to call from several threads, which take turns.
+     */
+    synchronized void update() {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long start = SystemClock.elapsedRealtime();
+        int changes = 0;
+        while (true) {
+            int count = -1;
+            db.beginTransactionNonExclusive();
+            try {
+                long indexed = DatabaseUtils.longForQuery(db, "SELECT " + STATE_SEQUENCE
+                        + " FROM " + STATE_TABLE_NAME, null);
+                if (isCoveredByLog(db, indexed)) {
+                    count = indexChanges(db, indexed);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            if (count < 0) {
+                rebuild(db);
+                return;
+            }
+            changes += count;
+            if (count < CHUNK_SIZE) {
+                break;
+            }
+        }
+        if (changes > 0) {
+            Log.d(LOG_TAG, "Indexed " + changes + " changes in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+    }
+
+    /**
+     * Returns whether or not the change log still holds every change after the given sequence
+     * number, the same test the provider makes for {@link ChangeEntry#QUERY_PARAM_SINCE}.
+     */
+    private static boolean isCoveredByLog(SQLiteDatabase db, long sequence) {
+        long last = lastSequence(db);
+        long first = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MIN(" + ChangeEntry.SEQUENCE
+                + "), ?) FROM " + ChangeEntry.TABLE_NAME,
+                new String[] { String.valueOf(last + 1) });
+        return sequence >= first - 1 && sequence <= last;
+    }
+
+    /**
+     * Returns the sequence number of the latest change, which SQLite keeps even once the change
+     * has been trimmed from the log.
+     */
+    private static long lastSequence(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT IFNULL((SELECT seq FROM sqlite_sequence"
+                + " WHERE name = ?), 0)", new String[] { ChangeEntry.TABLE_NAME });
+    }
+
+    /**
+     * Reindex the pets in the next chunk of changes after the given sequence number, and move the
+     * index on past them. Returns the number of changes read.
+     */
+    private int indexChanges(SQLiteDatabase db, long indexed) {
+        Set<Long> petIds = new LinkedHashSet<>();
+        long sequence = indexed;
+        int count = 0;
+        Cursor changes = db.query(ChangeEntry.TABLE_NAME,
+                new String[] { ChangeEntry.SEQUENCE, ChangeEntry.PET_ID },
+                ChangeEntry.SEQUENCE + " > ?", new String[] { String.valueOf(indexed) },
+                null, null, ChangeEntry.SEQUENCE, String.valueOf(CHUNK_SIZE));
+        try {
+            while (changes.moveToNext()) {
+                sequence = changes.getLong(0);
+                petIds.add(changes.getLong(1));
+                count++;
+            }
+        } finally {
+            changes.close();
+        }
+
+        SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE "
+                + PET_ID + " = ?");
+        SQLiteStatement insert = compileInsert(db);
+        try {
+            for (long id : petIds) {
+                delete.bindLong(1, id);
+                delete.executeUpdateDelete();
+            }
+            // Deleted pets just aren't found.
+            for (List<Long> ids : chunks(new ArrayList<>(petIds))) {
+                Cursor pets = db.query(PetEntry.TABLE_NAME, new String[] {
+                        PetEntry._ID, PetEntry.PET_NAME, PetEntry.PET_BREED },
+                        inClause(PetEntry._ID, ids.size()), toArgs(ids), null, null, null);
+                try {
+                    indexPets(insert, pets);
+                } finally {
+                    pets.close();
+                }
+            }
+        } finally {
+            delete.close();
+            insert.close();
+        }
+        setIndexedSequence(db, sequence);
+        return count;
+    }
+
+    /**
+     * Index every pet from scratch, a chunk of pets per transaction. The index is marked as up
+     * to date with the change log as it was when the rebuild started, so pets that change during
+     * the rebuild are indexed again afterwards.
+     */
+    private void rebuild(SQLiteDatabase db) {
+        long start = SystemClock.elapsedRealtime();
+        long sequence;
+        db.beginTransactionNonExclusive();
+        try {
+            sequence = lastSequence(db);
+            db.delete(TABLE_NAME, null, null);
+            setIndexedSequence(db, -1);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        long lastId = 0;
+        int count = 0;
+        while (true) {
+            int chunk = 0;
+            db.beginTransactionNonExclusive();
+            SQLiteStatement insert = compileInsert(db);
+            try {
+                Cursor pets = db.query(PetEntry.TABLE_NAME, new String[] {
+                        PetEntry._ID, PetEntry.PET_NAME, PetEntry.PET_BREED },
+                        PetEntry._ID + " > ?", new String[] { String.valueOf(lastId) },
+                        null, null, PetEntry._ID, String.valueOf(CHUNK_SIZE));
+                try {
+                    chunk = pets.getCount();
+                    if (pets.moveToLast()) {
+                        lastId = pets.getLong(0);
+                    }
+                    pets.moveToPosition(-1);
+                    indexPets(insert, pets);
+                } finally {
+                    pets.close();
+                }
+                if (chunk < CHUNK_SIZE) {
+                    setIndexedSequence(db, sequence);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                insert.close();
+                db.endTransaction();
+            }
+            count += chunk;
+            if (chunk < CHUNK_SIZE) {
+                break;
+            }
+        }
+        Log.i(LOG_TAG, "Rebuilt the index of " + count + " pets in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    private static SQLiteStatement compileInsert(SQLiteDatabase db) {
+        return db.compileStatement("INSERT INTO " + TABLE_NAME + " (" + TRIGRAM + ", " + PET_ID
+                + ") VALUES (?, ?)");
+    }
+
+    /**
+     * Insert the trigrams of every pet in the cursor, which holds the _ID, name and breed.
+     */
+    private static void indexPets(SQLiteStatement insert, Cursor pets) {
+        while (pets.moveToNext()) {
+            long id = pets.getLong(0);
+            insert.bindLong(2, id);
+            for (String trigram : trigrams(pets.getString(1))) {
+                insert.bindString(1, NAME_PREFIX + trigram);
+                insert.executeInsert();
+            }
+            for (String trigram : trigrams(pets.getString(2))) {
+                insert.bindString(1, BREED_PREFIX + trigram);
+                insert.executeInsert();
+            }
+        }
+    }
+
+    private static void setIndexedSequence(SQLiteDatabase db, long sequence) {
+        db.execSQL("UPDATE " + STATE_TABLE_NAME + " SET " + STATE_SEQUENCE + " = ?",
+                new Object[] { sequence });
+    }
+
+    /**
+     * Find the groups of pets at least minSimilarity alike, as rows of the
+     * {@link DuplicateEntry} columns. Call {@link #update} first for the latest pets.
+     *
+     * @param maxGroups Most groups returned, or 0 for all of them.
+     */
+    Cursor findDuplicates(double minSimilarity, int maxGroups) {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+
+        // Pairs of pets whose names have enough trigrams in common, using only the trigrams
+        // that few enough pets share.
+        Cursor pairs = db.rawQuery("SELECT a." + PET_ID + ", b." + PET_ID + " FROM "
+                + TABLE_NAME + " a JOIN " + TABLE_NAME + " b ON b." + TRIGRAM + " = a." + TRIGRAM
+                + " AND b." + PET_ID + " > a." + PET_ID + " WHERE " + isNameTrigram("a." + TRIGRAM)
+                + " AND a." + TRIGRAM + " IN (SELECT " + TRIGRAM + " FROM " + TABLE_NAME
+                + " WHERE " + isNameTrigram(TRIGRAM) + " GROUP BY " + TRIGRAM
+                + " HAVING COUNT(*) <= " + MAX_PETS_PER_TRIGRAM
+                + ") GROUP BY a." + PET_ID + ", b." + PET_ID + " HAVING COUNT(*) >= "
+                + MIN_SHARED_TRIGRAMS, null);
+        List<long[]> candidates = new ArrayList<>();
+        Set<Long> petIds = new HashSet<>();
+        try {
+            while (pairs.moveToNext()) {
+                candidates.add(new long[] { pairs.getLong(0), pairs.getLong(1) });
+                petIds.add(pairs.getLong(0));
+                petIds.add(pairs.getLong(1));
+            }
+        } finally {
+            pairs.close();
+        }
+
+        // Score every candidate pair, and join the pairs alike enough into groups.
+        Map<Long, Set<String>[]> trigrams = readTrigrams(db, petIds);
+        Map<Long, Long> parents = new HashMap<>();
+        final Map<Long, Double> best = new HashMap<>();
+        for (long[] pair : candidates) {
+            double similarity = similarity(trigrams.get(pair[0]), trigrams.get(pair[1]));
+            if (similarity < minSimilarity) {
+                continue;
+            }
+            for (long id : pair) {
+                Double score = best.get(id);
+                if (score == null || similarity > score) {
+                    best.put(id, similarity);
+                }
+            }
+            long first = findRoot(parents, pair[0]);
+            long second = findRoot(parents, pair[1]);
+            if (first != second) {
+                parents.put(Math.max(first, second), Math.min(first, second));
+            }
+        }
+
+        Map<Long, List<Long>> groupsByRoot = new HashMap<>();
+        for (long id : best.keySet()) {
+            long root = findRoot(parents, id);
+            List<Long> group = groupsByRoot.get(root);
+            if (group == null) {
+                group = new ArrayList<>();
+                groupsByRoot.put(root, group);
+            }
+            group.add(id);
+        }
+        Comparator<Long> mostAlikeFirst = new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                int order = Double.compare(best.get(b), best.get(a));
+                return order != 0 ? order : a.compareTo(b);
+            }
+        };
+        List<List<Long>> groups = new ArrayList<>(groupsByRoot.values());
+        for (List<Long> group : groups) {
+            Collections.sort(group, mostAlikeFirst);
+        }
+        final Comparator<Long> byFirstMember = mostAlikeFirst;
+        Collections.sort(groups, new Comparator<List<Long>>() {
+            @Override
+            public int compare(List<Long> a, List<Long> b) {
+                return byFirstMember.compare(a.get(0), b.get(0));
+            }
+        });
+        if (maxGroups > 0 && groups.size() > maxGroups) {
+            groups = groups.subList(0, maxGroups);
+        }
+
+        List<Long> shown = new ArrayList<>();
+        for (List<Long> group : groups) {
+            shown.addAll(group);
+        }
+        Map<Long, String[]> pets = readPets(db, shown);
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, shown.size());
+        for (int i = 0; i < groups.size(); i++) {
+            for (long id : groups.get(i)) {
+                String[] pet = pets.get(id);
+                if (pet == null) {
+                    // Deleted since the index was updated.
+                    continue;
+                }
+                cursor.addRow(new Object[] { i + 1, id, pet[0], pet[1], best.get(id) });
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns SQL that is true if the trigram in the column is from a name, as a range that the
+     * index on the trigrams can be searched by.
+     */
+    private static String isNameTrigram(String column) {
+        return column + " >= '" + NAME_PREFIX + "' AND " + column + " < '"
+                + (char) (NAME_PREFIX.charAt(0) + 1) + "'";
+    }
+
+    /**
+     * Returns how alike two pets are from their name and breed trigrams, from 0 to 1.
+     */
+    static double similarity(Set<String>[] a, Set<String>[] b) {
+        if (a == null || b == null) {
+            return 0;
+        }
+        double name = jaccard(a[0], b[0]);
+        if (a[1].isEmpty() || b[1].isEmpty()) {
+            return name;
+        }
+        return (2 * name + jaccard(a[1], b[1])) / 3;
+    }
+
+    /**
+     * Returns the number of trigrams the two sets have in common over the number in either.
+     */
+    private static double jaccard(Set<String> a, Set<String> b) {
+        if (a.isEmpty() && b.isEmpty()) {
+            return 1;
+        }
+        int shared = 0;
+        for (String trigram : a) {
+            if (b.contains(trigram)) {
+                shared++;
+            }
+        }
+        return (double) shared / (a.size() + b.size() - shared);
+    }
+
+    /**
+     * Returns the representative of the pet's group, halving the path to it on the way.
+     */
+    private static long findRoot(Map<Long, Long> parents, long id) {
+        Long parent = parents.get(id);
+        while (parent != null) {
+            Long grandparent = parents.get(parent);
+            if (grandparent != null) {
+                parents.put(id, grandparent);
+            }
+            id = parent;
+            parent = parents.get(id);
+        }
+        return id;
+    }
+
+    /**
+     * Read the name and breed trigrams of the pets from the index.
+     */
+    private static Map<Long, Set<String>[]> readTrigrams(SQLiteDatabase db, Set<Long> petIds) {
+        Map<Long, Set<String>[]> trigrams = new HashMap<>();
+        for (List<Long> ids : chunks(new ArrayList<>(petIds))) {
+            Cursor cursor = db.query(TABLE_NAME, new String[] { PET_ID, TRIGRAM },
+                    inClause(PET_ID, ids.size()), toArgs(ids), null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    Set<String>[] sets = trigrams.get(id);
+                    if (sets == null) {
+                        @SuppressWarnings("unchecked")
+                        Set<String>[] created = new Set[] { new HashSet<>(), new HashSet<>() };
+                        sets = created;
+                        trigrams.put(id, sets);
+                    }
+                    String trigram = cursor.getString(1);
+                    sets[trigram.startsWith(NAME_PREFIX) ? 0 : 1].add(trigram.substring(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return trigrams;
+    }
+
+    /**
+     * Read the name and breed of the pets, keyed by _ID.
+     */
+    private static Map<Long, String[]> readPets(SQLiteDatabase db, List<Long> petIds) {
+        Map<Long, String[]> pets = new HashMap<>();
+        for (List<Long> ids : chunks(petIds)) {
+            Cursor cursor = db.query(PetEntry.TABLE_NAME, new String[] {
+                    PetEntry._ID, PetEntry.PET_NAME, PetEntry.PET_BREED },
+                    inClause(PetEntry._ID, ids.size()), toArgs(ids), null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    pets.put(cursor.getLong(0),
+                            new String[] { cursor.getString(1), cursor.getString(2) });
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return pets;
+    }
+
+    private static List<List<Long>> chunks(List<Long> ids) {
+        List<List<Long>> chunks = new ArrayList<>();
+        for (int start = 0; start < ids.size(); start += MAX_ARGS) {
+            chunks.add(ids.subList(start, Math.min(start + MAX_ARGS, ids.size())));
+        }
+        return chunks;
+    }
+
+    private static String inClause(String column, int count) {
+        return column + " IN (" + TextUtils.join(", ", Collections.nCopies(count, "?")) + ")";
+    }
+
+    private static String[] toArgs(List<Long> ids) {
+        String[] args = new String[ids.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = String.valueOf(ids.get(i));
+        }
+        return args;
+    }
+}
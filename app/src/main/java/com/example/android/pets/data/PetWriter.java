@@ -0,0 +1,292 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes pets through {@link PetProvider} on a background thread, so the screens asking for the
+ * writes never wait on the database. Writes are made one at a time in the order they were
+ * asked for, and how each one went is reported on the main thread.
+ *
+ * An update to a pet that is still waiting its turn takes in any later updates to the same pet,
+ * so saving a pet again and again before the first save has been made only writes it once.
+ */
+public final class PetWriter {
+
+    private static final String LOG_TAG = PetWriter.class.getSimpleName();
+
+    /**
+     * Told how a write went. Called on the main thread.
+     */
+    public interface Callback<T> {
+        /**
+         * Called with what the provider returned: the new pet's URI for an insert, or the number
+         * of rows changed for an update or delete.
+         */
+        void onWriteFinished(T result);
+
+        /** Called if the provider threw, for example because the values weren't a valid pet. */
+        void onWriteFailed(RuntimeException e);
+    }
+
+    private static PetWriter instance;
+
+    /**
+     * Returns the writer shared by the whole app, so every screen's writes go through the same
+     * queue.
+     */
+    public static synchronized PetWriter getInstance(Context context) {
+        if (instance == null) {
+            instance = new PetWriter(context.getApplicationContext().getContentResolver());
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the writer shared by the whole app, or null if nothing has asked for it yet.
+     */
+    static synchronized PetWriter peekInstance() {
+        return instance;
+    }
+
+    /**
+     * A write waiting in the queue, along with everyone waiting to hear how it went.
+     */
+    private abstract class Write<T> implements Runnable {
+        /** Guarded by {@link #pendingUpdates}, since merging adds to it from other threads. */
+        final List<Callback<T>> callbacks = new ArrayList<>();
+
+        Write(Callback<T> callback) {
+            callbacks.add(callback);
+        }
+
+        /**
+         * Called with {@link #pendingUpdates} locked just before the write is made. After this
+         * nothing more can be merged into it.
+         */
+        void start() {
+        }
+
+        abstract T write();
+
+        @Override
+        public final void run() {
+            final List<Callback<T>> waiting;
+            synchronized (pendingUpdates) {
+                start();
+                waiting = new ArrayList<>(callbacks);
+            }
+
+            T result = null;
+            RuntimeException error = null;
+            try {
+                result = write();
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Write failed", e);
+                error = e;
+            }
+
+            final T finalResult = result;
+            final RuntimeException finalError = error;
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback<T> callback : waiting) {
+                        if (callback == null) {
+                            continue;
+                        }
+                        if (finalError != null) {
+                            callback.onWriteFailed(finalError);
+                        }
+                        else {
+                            callback.onWriteFinished(finalResult);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * An update of a single pet, which later updates of the same pet are merged into until it
+     * starts.
+     */
+    private final class Update extends Write<Integer> {
+        final Uri uri;
+        final ContentValues values;
+
+        Update(Uri uri, ContentValues values, Callback<Integer> callback) {
+            super(callback);
+            this.uri = uri;
+            this.values = new ContentValues(values);
+        }
+
+        @Override
+        void start() {
+            pendingUpdates.remove(uri);
+        }
+
+        @Override
+        Integer write() {
+            return resolver.update(uri, values, null, null);
+        }
+    }
+
+    private final ContentResolver resolver;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /** Makes the writes, one at a time and in order. */
+    private final Handler writeHandler;
+
+    /** Updates in the queue that haven't started yet, by the URI of their pet. */
+    private final Map<Uri, Update> pendingUpdates = new HashMap<>();
+
+    /** Counted down by {@link #resume} to let the writes go on. Null unless paused. */
+    private CountDownLatch resumed;
+
+    private PetWriter(ContentResolver resolver) {
+        this.resolver = resolver;
+
+        HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        writeHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Insert a pet into the given URI.
+     *
+     * @param callback Told the URI of the new pet, or null if it couldn't be inserted. May be
+     *                 null.
+     */
+    public void insert(final Uri uri, ContentValues values, Callback<Uri> callback) {
+        final ContentValues copy = new ContentValues(values);
+        writeHandler.post(new Write<Uri>(callback) {
+            @Override
+            Uri write() {
+                return resolver.insert(uri, copy);
+            }
+        });
+    }
+
+    /**
+     * Update the single pet with the given URI. If an update of the same pet is still waiting,
+     * the values are merged into it instead, with these values winning, and both callbacks are
+     * told how the merged write went.
+     *
+     * @param callback Told the number of rows updated. May be null.
+     */
+    public void update(Uri uri, ContentValues values, Callback<Integer> callback) {
+        Update update;
+        synchronized (pendingUpdates) {
+            Update pending = pendingUpdates.get(uri);
+            if (pending != null) {
+                pending.values.putAll(values);
+                pending.callbacks.add(callback);
+                return;
+            }
+
+            update = new Update(uri, values, callback);
+            pendingUpdates.put(uri, update);
+        }
+        writeHandler.post(update);
+    }
+
+    /**
+     * Make the photo in the given file, made by {@link PetPhotos#preparePhoto}, the photo of the
+     * pet with the given URI. The file is deleted once it has been stored, whether or not that
+     * worked.
+     *
+     * @param callback Told the number of pets updated, which is 0 if the pet is gone. May be
+     *                 null.
+     */
+    public void setPhoto(final Uri petUri, final File photo, Callback<Integer> callback) {
+        writeHandler.post(new Write<Integer>(callback) {
+            @Override
+            Integer write() {
+                try {
+                    return PetPhotos.storePhoto(resolver, petUri, photo);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Couldn't store the photo of " + petUri, e);
+                } finally {
+                    photo.delete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Hold up the writes that haven't started yet and wait up to the given time for the one in
+     * progress to finish, so {@link PetProvider} can swap the database while nothing writes.
+     * Writes asked for in the meantime wait in the queue until {@link #resume} is called, which
+     * has to happen whether or not this returns true. Returns whether or not the write thread
+     * is paused.
+     */
+    boolean pause(long timeoutMs) throws InterruptedException {
+        if (Looper.myLooper() == writeHandler.getLooper()) {
+            // Called from a write, so nothing else can be writing.
+            return true;
+        }
+        final CountDownLatch paused = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        synchronized (this) {
+            if (resumed != null) {
+                throw new IllegalStateException("Already paused");
+            }
+            resumed = latch;
+        }
+        writeHandler.postAtFrontOfQueue(new Runnable() {
+            @Override
+            public void run() {
+                paused.countDown();
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        return paused.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Let the writes held up by {@link #pause} go on.
+     */
+    synchronized void resume() {
+        if (resumed != null) {
+            resumed.countDown();
+            resumed = null;
+        }
+    }
+
+    /**
+     * Delete the pets at the given URI matching the selection.
+     *
+     * @param callback Told the number of rows deleted. May be null.
+     */
+    public void delete(final Uri uri, final String selection, final String[] selectionArgs,
+                       Callback<Integer> callback) {
+        writeHandler.post(new Write<Integer>(callback) {
+            @Override
+            Integer write() {
+                return resolver.delete(uri, selection, selectionArgs);
+            }
+        });
+    }
+}
@@ -0,0 +1,510 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.Backup;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures how fast {@link PetProvider} inserts, queries, updates and deletes pets, and backs up
+ * and restores the database, at different table sizes. It also measures how long reads take
+ * while another thread writes, with write-ahead logging and with the rollback journal. Every
+ * round gets a fresh scratch database, so the app's own pets are never touched. Inserts, updates
+ * and deletes by id are also timed straight against the database, both through
+ * {@link PetStatements} and through the {@link SQLiteDatabase} helpers it replaced, so the two
+ * can be compared. {@link PetBenchmarkTest} runs it and compares the results to the baselines
+ * checked in with the tests. Any filter of {@link PetFilter} whose query plan reads the whole
+ * pets table is reported as a regression too.
+ */
+final class PetBenchmark {
+
+    private static final String LOG_TAG = PetBenchmark.class.getSimpleName();
+
+    /** Scratch database the benchmark runs against. Deleted after every table size. */
+    static final String DATABASE_NAME = "pets_benchmark.db";
+
+    /** Number of pets per bulk insert when filling the table. */
+    private static final int BULK_INSERT_SIZE = 1000;
+
+    /** Added to the name of results timed straight through {@link PetStatements}. */
+    private static final String STATEMENTS = ", statements";
+
+    /** Added to the name of results timed straight through the {@link SQLiteDatabase} helpers. */
+    private static final String HELPERS = ", helpers";
+
+    private static final String SELECT_BY_ID_SQL = "SELECT " + PetEntry._ID + ", "
+            + PetEntry.PET_NAME + ", " + PetEntry.PET_BREED + " FROM " + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry._ID + " = ?";
+
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.PET_NAME,
+            PetEntry.PET_BREED };
+
+    private final Context context;
+
+    /** Number of pets in the table for each round. */
+    private final int[] tableSizes;
+
+    /** Number of single-row inserts, queries, updates and deletes timed at each table size. */
+    private final int operations;
+
+    /** Number of pets in the table while timing reads under writes. */
+    private final int latencyTableSize;
+
+    /** Number of reads timed one at a time while another thread writes. */
+    private final int latencyReads;
+
+    /** Operations per second of the last run, keyed by operation and table size. */
+    private final Map<String, Double> results = new LinkedHashMap<>();
+
+    /** Latencies in microseconds of the last run, keyed the same way. Lower is better. */
+    private final Map<String, Double> latencies = new LinkedHashMap<>();
+
+    /** SQL of the filtered queries of the last run that didn't use an index. */
+    private List<String> fullScans = Collections.emptyList();
+
+    /** Seeded so that every run picks the same pets. */
+    private final Random random = new Random(42);
+
+    /** Regressions found by the last {@link #buildReport}. */
+    private int regressionCount = 0;
+
+    /** Results the last {@link #buildReport} found no baseline for. */
+    private int missingBaselineCount = 0;
+
+    /**
+     * Table sizes must be multiples of {@link #BULK_INSERT_SIZE}.
+     */
+    PetBenchmark(Context context, int[] tableSizes, int operations, int latencyTableSize,
+            int latencyReads) {
+        this.context = context.getApplicationContext();
+        this.tableSizes = tableSizes.clone();
+        this.operations = operations;
+        this.latencyTableSize = latencyTableSize;
+        this.latencyReads = latencyReads;
+    }
+
+    /**
+     * Run the benchmark at every table size without comparing the results to anything.
+     */
+    void measure() {
+        results.clear();
+        latencies.clear();
+        random.setSeed(42);
+        fullScans = checkQueryPlans();
+        for (int size : tableSizes) {
+            runTableSize(size);
+        }
+        // How the app used to run, then how it runs now.
+        runReadsUnderWrites(false);
+        runReadsUnderWrites(true);
+    }
+
+    /**
+     * Returns the operations per second of the last run, keyed by operation and table size.
+     */
+    Map<String, Double> getResults() {
+        return Collections.unmodifiableMap(results);
+    }
+
+    /**
+     * Returns the latencies in microseconds of the last run, keyed by operation and table size.
+     */
+    Map<String, Double> getLatencies() {
+        return Collections.unmodifiableMap(latencies);
+    }
+
+    /**
+     * Returns how many regressions the last report found.
+     */
+    int getRegressionCount() {
+        return regressionCount;
+    }
+
+    /**
+     * Returns how many results the last report found no baseline for.
+     */
+    int getMissingBaselineCount() {
+        return missingBaselineCount;
+    }
+
+    /**
+     * Returns the SQL of every filtered query whose plan on this device's SQLite reads the whole
+     * pets table instead of searching an index.
+     */
+    private List<String> checkQueryPlans() {
+        context.deleteDatabase(DATABASE_NAME);
+        PetDbHelper helper = new PetDbHelper(context, DATABASE_NAME,
+                PetDbHelper.DEFAULT_SYNCHRONOUS_MODE);
+        try {
+            List<String> scans = PetFilter.findFullScans(helper.getReadableDatabase());
+            for (String sql : scans) {
+                Log.w(LOG_TAG, "Full table scan: " + sql);
+            }
+            return scans;
+        } finally {
+            helper.close();
+            context.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    private void runTableSize(int size) {
+        context.deleteDatabase(DATABASE_NAME);
+        try {
+            timeProvider(size);
+            compareWritePaths(size);
+        } finally {
+            context.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    /**
+     * Fill the table through the provider, then time everything else the provider does.
+     */
+    private void timeProvider(int size) {
+        PetProvider provider = new PetProvider(DATABASE_NAME);
+        provider.attachInfo(context, null);
+        try {
+            long start = System.nanoTime();
+            ContentValues[] chunk = new ContentValues[BULK_INSERT_SIZE];
+            for (int inserted = 0; inserted < size; inserted += BULK_INSERT_SIZE) {
+                for (int i = 0; i < BULK_INSERT_SIZE; i++) {
+                    chunk[i] = newPet(inserted + i);
+                }
+                provider.bulkInsert(PetEntry.CONTENT_URI, chunk);
+            }
+            record("bulk insert", size, size, start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                provider.insert(PetEntry.CONTENT_URI, newPet(i));
+            }
+            record("insert", size, operations, start);
+
+            // A fresh table numbers its pets from 1.
+            int rows = size + operations;
+
+            // These go through the provider's query cache like any other caller's would, so a
+            // pet picked twice is only read from the database once.
+            start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                Cursor cursor = provider.query(petUri(1 + random.nextInt(rows)), PROJECTION,
+                        null, null, null);
+                cursor.moveToFirst();
+                cursor.close();
+            }
+            record("query by id", size, operations, start);
+
+            start = System.nanoTime();
+            Cursor cursor = provider.query(PetEntry.CONTENT_URI, PROJECTION, null, null, null);
+            int scanned = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    cursor.getLong(0);
+                    cursor.getString(1);
+                    cursor.getString(2);
+                    scanned++;
+                }
+            } finally {
+                cursor.close();
+            }
+            record("catalog scan (rows)", size, scanned, start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                provider.update(petUri(1 + random.nextInt(rows)), newPet(i), null, null);
+            }
+            record("update by id", size, operations, start);
+
+            File backupFile = new File(context.getCacheDir(), DATABASE_NAME + ".backup");
+            try {
+                start = System.nanoTime();
+                Bundle backup = provider.call(Backup.METHOD_BACKUP, backupFile.getPath(), null);
+                record("backup (rows)", size, rows, start);
+                Log.i(LOG_TAG, String.format(Locale.US,
+                        "backup @ %d: %d bytes compressed to %d, snapshot held for %d ms", size,
+                        backup.getLong(Backup.KEY_DATABASE_BYTES),
+                        backup.getLong(Backup.KEY_BACKUP_BYTES),
+                        backup.getLong(Backup.KEY_PAUSE_MILLIS)));
+
+                start = System.nanoTime();
+                Bundle restore = provider.call(Backup.METHOD_RESTORE, backupFile.getPath(), null);
+                record("restore (rows)", size, rows, start);
+                Log.i(LOG_TAG, String.format(Locale.US,
+                        "restore @ %d: database closed for %d ms", size,
+                        restore.getLong(Backup.KEY_PAUSE_MILLIS)));
+            } finally {
+                backupFile.delete();
+            }
+
+            // Spread the deletes over the whole table.
+            int stride = rows / operations;
+            start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                provider.delete(petUri(1 + i * stride), null, null);
+            }
+            record("delete by id", size, operations, start);
+        } finally {
+            provider.shutdown();
+        }
+    }
+
+    /**
+     * Time single-row inserts, updates and deletes by id through {@link PetStatements} and
+     * through the {@link SQLiteDatabase} helpers, straight against the table the provider left.
+     * Nothing else differs between the two, so their results can be compared directly.
+     */
+    private void compareWritePaths(int size) {
+        PetDbHelper helper = new PetDbHelper(context, DATABASE_NAME,
+                PetDbHelper.DEFAULT_SYNCHRONOUS_MODE);
+        PetStatements statements = new PetStatements(helper);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            int rows = (int) DatabaseUtils.longForQuery(db,
+                    "SELECT MAX(" + PetEntry._ID + ") FROM " + PetEntry.TABLE_NAME, null);
+
+            // Each way deletes the pets it inserted.
+            long[] statementIds = new long[operations];
+            long[] helperIds = new long[operations];
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                statementIds[i] = statements.insert(newPet(i));
+            }
+            record("insert" + STATEMENTS, size, operations, start);
+            start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                helperIds[i] = db.insert(PetEntry.TABLE_NAME, null, newPet(i));
+            }
+            record("insert" + HELPERS, size, operations, start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                statements.updateById(1 + random.nextInt(rows), newPet(i));
+            }
+            record("update by id" + STATEMENTS, size, operations, start);
+            start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                db.update(PetEntry.TABLE_NAME, newPet(i), PetEntry._ID + " = ?",
+                        new String[] { String.valueOf(1 + random.nextInt(rows)) });
+            }
+            record("update by id" + HELPERS, size, operations, start);
+
+            start = System.nanoTime();
+            for (long id : statementIds) {
+                statements.deleteById(id);
+            }
+            record("delete by id" + STATEMENTS, size, operations, start);
+            start = System.nanoTime();
+            for (long id : helperIds) {
+                db.delete(PetEntry.TABLE_NAME, PetEntry._ID + " = ?",
+                        new String[] { String.valueOf(id) });
+            }
+            record("delete by id" + HELPERS, size, operations, start);
+        } finally {
+            statements.close();
+            helper.close();
+        }
+    }
+
+    /**
+     * Time queries by id one at a time on this thread while another thread keeps updating pets,
+     * and record the median and 99th percentile. With write-ahead logging the reads have their
+     * own connection. With the rollback journal, as the app used to run, every read waits for
+     * the write in progress, and each commit is synced in full.
+     */
+    private void runReadsUnderWrites(boolean writeAheadLogging) {
+        context.deleteDatabase(DATABASE_NAME);
+        final PetDbHelper helper = new PetDbHelper(context, DATABASE_NAME,
+                writeAheadLogging ? PetDbHelper.DEFAULT_SYNCHRONOUS_MODE : "FULL",
+                writeAheadLogging);
+        String mode = writeAheadLogging ? "WAL" : "rollback journal";
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < latencyTableSize; i++) {
+                    db.insert(PetEntry.TABLE_NAME, null, newPet(i));
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            final AtomicBoolean stop = new AtomicBoolean();
+            final AtomicInteger writes = new AtomicInteger();
+            final AtomicReference<RuntimeException> writeError = new AtomicReference<>();
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    SQLiteDatabase db = helper.getWritableDatabase();
+                    Random writeRandom = new Random(7);
+                    try {
+                        while (!stop.get()) {
+                            db.update(PetEntry.TABLE_NAME, newPet(writes.get()),
+                                    PetEntry._ID + " = ?", new String[] { String.valueOf(
+                                            1 + writeRandom.nextInt(latencyTableSize)) });
+                            writes.incrementAndGet();
+                        }
+                    } catch (RuntimeException e) {
+                        writeError.set(e);
+                    }
+                }
+            }, LOG_TAG + "Writer");
+
+            SQLiteDatabase reader = helper.getReadableDatabase();
+            long[] nanos = new long[latencyReads];
+            long start = System.nanoTime();
+            writer.start();
+            try {
+                for (int i = 0; i < latencyReads; i++) {
+                    long readStart = System.nanoTime();
+                    Cursor cursor = reader.rawQuery(SELECT_BY_ID_SQL, new String[] {
+                            String.valueOf(1 + random.nextInt(latencyTableSize)) });
+                    try {
+                        cursor.moveToFirst();
+                    } finally {
+                        cursor.close();
+                    }
+                    nanos[i] = System.nanoTime() - readStart;
+                }
+            } finally {
+                stop.set(true);
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (writeError.get() != null) {
+                throw writeError.get();
+            }
+
+            record("update under reads, " + mode, latencyTableSize, writes.get(), start);
+            Arrays.sort(nanos);
+            recordLatency("query by id p50 under writes, " + mode, latencyTableSize,
+                    nanos[latencyReads / 2]);
+            recordLatency("query by id p99 under writes, " + mode, latencyTableSize,
+                    nanos[latencyReads * 99 / 100]);
+        } finally {
+            helper.close();
+            context.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    private static ContentValues newPet(int i) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.PET_NAME, "Pet " + i);
+        values.put(PetEntry.PET_BREED, "Breed " + (i % 100));
+        values.put(PetEntry.PET_GENDER, i % 3);
+        values.put(PetEntry.PET_WEIGHT, i % 50);
+        return values;
+    }
+
+    private static Uri petUri(long id) {
+        return ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+    }
+
+    /**
+     * Save how many operations per second were done since the start time.
+     */
+    private void record(String operation, int size, int count, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double perSecond = count / seconds;
+        String name = operation + " @ " + size;
+        results.put(name, perSecond);
+        Log.i(LOG_TAG, String.format(Locale.US, "%s: %.0f/s over %d", name, perSecond, count));
+    }
+
+    /**
+     * Save a latency, given in nanoseconds, in microseconds.
+     */
+    private void recordLatency(String operation, int size, long nanos) {
+        String name = operation + " @ " + size;
+        latencies.put(name, nanos / 1e3);
+        Log.i(LOG_TAG, String.format(Locale.US, "%s: %.0f us", name, nanos / 1e3));
+    }
+
+    /**
+     * Returns a report of the last run, comparing each result to the baseline of the same name.
+     * A result is a regression if it does less than the threshold times its baseline per second,
+     * or takes more than its baseline divided by the threshold.
+     *
+     * @param baselines Operations per second or latencies in microseconds, as numbers, keyed by
+     *                  result name. Results without a baseline are marked and counted by
+     *                  {@link #getMissingBaselineCount}.
+     */
+    String buildReport(Map<String, ?> baselines, double threshold) {
+        StringBuilder report = new StringBuilder();
+        int regressions = 0;
+        int missing = 0;
+        for (Map.Entry<String, Double> result : results.entrySet()) {
+            double perSecond = result.getValue();
+            report.append(String.format(Locale.US, "%s: %.0f/s", result.getKey(), perSecond));
+            if (baselines.get(result.getKey()) instanceof Number) {
+                double baseline = ((Number) baselines.get(result.getKey())).doubleValue();
+                report.append(String.format(Locale.US, " (baseline %.0f/s, %+.0f%%)",
+                        baseline, (perSecond / baseline - 1) * 100));
+                if (perSecond < baseline * threshold) {
+                    report.append(" REGRESSION");
+                    regressions++;
+                }
+            }
+            else {
+                report.append(" NO BASELINE");
+                missing++;
+            }
+            report.append('\n');
+        }
+        for (Map.Entry<String, Double> latency : latencies.entrySet()) {
+            double micros = latency.getValue();
+            report.append(String.format(Locale.US, "%s: %.0f us", latency.getKey(), micros));
+            if (baselines.get(latency.getKey()) instanceof Number) {
+                double baseline = ((Number) baselines.get(latency.getKey())).doubleValue();
+                report.append(String.format(Locale.US, " (baseline %.0f us, %+.0f%%)",
+                        baseline, (micros / baseline - 1) * 100));
+                if (micros * threshold > baseline) {
+                    report.append(" REGRESSION");
+                    regressions++;
+                }
+            }
+            else {
+                report.append(" NO BASELINE");
+                missing++;
+            }
+            report.append('\n');
+        }
+        for (String sql : fullScans) {
+            report.append("FULL SCAN: ").append(sql).append('\n');
+            regressions++;
+        }
+        report.append(regressions).append(" regressions, ").append(missing)
+                .append(" results without a baseline");
+        regressionCount = regressions;
+        missingBaselineCount = missing;
+
+        Log.i(LOG_TAG, report.toString());
+        return report.toString();
+    }
+}
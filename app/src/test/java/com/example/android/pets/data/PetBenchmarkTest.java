@@ -0,0 +1,123 @@
+package com.example.android.pets.data;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs {@link PetBenchmark} on the JVM and fails if anything got much slower than the baselines
+ * in benchmark_baselines.properties, or if a result has no baseline to compare to.
+ *
+ * Every build runs the small sizes. The large sizes, up to a million pets, take minutes, so they
+ * only run when the unit tests are run with -PlargeBenchmark. To record new baselines, run the
+ * unit tests with -PrecordBenchmark, and with -PlargeBenchmark too, on the machine that runs them
+ * for every build, and check the updated file in.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetBenchmarkTest {
+
+    private static final String BASELINES = "benchmark_baselines.properties";
+
+    /** Set by the build to the path of {@link #BASELINES} when recording new baselines. */
+    private static final String RECORD_PROPERTY = "pets.benchmark.record";
+
+    /** Set to true by the build to run the large sizes as well. */
+    private static final String LARGE_PROPERTY = "pets.benchmark.large";
+
+    /**
+     * Timings on the JVM vary more between runs than on a device, so only a result that halved
+     * counts as a regression.
+     */
+    private static final double REGRESSION_THRESHOLD = 0.5;
+
+    @Test
+    public void noRegressions() throws IOException {
+        check(new PetBenchmark(RuntimeEnvironment.application,
+                new int[] { 1000, 10000 }, 200, 10000, 500));
+    }
+
+    @Test
+    public void noRegressionsAtLargeSizes() throws IOException {
+        assumeTrue(Boolean.getBoolean(LARGE_PROPERTY));
+        check(new PetBenchmark(RuntimeEnvironment.application,
+                new int[] { 100000, 1000000 }, 1000, 100000, 2000));
+    }
+
+    /**
+     * Run the benchmark and compare it to the baselines, or record it as the new baselines if
+     * the build asked for that.
+     */
+    private void check(PetBenchmark benchmark) throws IOException {
+        benchmark.measure();
+
+        String recordPath = System.getProperty(RECORD_PROPERTY);
+        if (recordPath != null) {
+            record(benchmark, recordPath);
+            return;
+        }
+
+        String report = benchmark.buildReport(loadBaselines(), REGRESSION_THRESHOLD);
+        assertEquals(report, 0, benchmark.getMissingBaselineCount());
+        assertEquals(report, 0, benchmark.getRegressionCount());
+    }
+
+    private Map<String, Double> loadBaselines() throws IOException {
+        Properties properties = new Properties();
+        InputStream in = getClass().getResourceAsStream(BASELINES);
+        if (in != null) {
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        Map<String, Double> baselines = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            baselines.put(name, Double.valueOf(properties.getProperty(name)));
+        }
+        return baselines;
+    }
+
+    /**
+     * Save the results in the baselines file, keeping the baselines of results this run didn't
+     * measure, such as those of the other sizes.
+     */
+    private static void record(PetBenchmark benchmark, String path) throws IOException {
+        Properties properties = new Properties();
+        if (new File(path).exists()) {
+            InputStream in = new FileInputStream(path);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        for (Map.Entry<String, Double> result : benchmark.getResults().entrySet()) {
+            properties.setProperty(result.getKey(), String.valueOf(result.getValue()));
+        }
+        for (Map.Entry<String, Double> latency : benchmark.getLatencies().entrySet()) {
+            properties.setProperty(latency.getKey(), String.valueOf(latency.getValue()));
+        }
+        OutputStream out = new FileOutputStream(path);
+        try {
+            properties.store(out, "PetBenchmarkTest baselines, in operations per second, or in "
+                    + "microseconds for latencies. Recorded with -PrecordBenchmark.");
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.ChangeEntry;
+import com.example.android.pets.data.PetContract.ImportEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
+import com.example.android.pets.data.PetContract.SyncEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Upgrades a version 1 shelter.db full of pets through every migration step, both one step at a
+ * time and all at once the way the app does.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetDbHelperMigrationTest {
+
+    /** Enough pets that the backfills take more than one chunk, with the last one partial. */
+    private static final int PET_COUNT = 2 * PetDbHelper.MIGRATION_CHUNK_SIZE + 17;
+
+    /** Every this many pets is deleted before the upgrade, leaving gaps in the _IDs. */
+    private static final int DELETE_EVERY = 7;
+
+    private static final Pattern UPGRADED = Pattern.compile("^Upgraded to version (\\d+) ");
+
+    private Context context;
+    private PetDbHelper helper;
+
+    /** Opened without a helper, for running single steps. */
+    private SQLiteDatabase db;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        context.deleteDatabase(PetDbHelper.DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (helper != null) {
+            helper.close();
+        }
+        if (db != null) {
+            db.close();
+        }
+        context.deleteDatabase(PetDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void upgradeRunsEveryStepInOrder() {
+        int pets = createVersion1Database();
+        helper = new PetDbHelper(context);
+        SQLiteDatabase db = helper.getWritableDatabase();
+
+        assertEquals(PetDbHelper.DATABASE_VERSION, db.getVersion());
+        List<Integer> versions = new ArrayList<>();
+        for (ShadowLog.LogItem item : ShadowLog.getLogsForTag(PetDbHelper.LOG_TAG)) {
+            Matcher matcher = UPGRADED.matcher(item.msg);
+            if (matcher.find()) {
+                versions.add(Integer.valueOf(matcher.group(1)));
+            }
+        }
+        List<Integer> expected = new ArrayList<>();
+        for (int version = 2; version <= PetDbHelper.DATABASE_VERSION; version++) {
+            expected.add(version);
+        }
+        assertEquals(expected, versions);
+        assertEquals(pets, count(db, "SELECT COUNT(*) FROM " + PetEntry.TABLE_NAME));
+    }
+
+    @Test
+    public void upgradeIndexesNameBreedAndGender() {
+        createVersion1Database();
+        helper = new PetDbHelper(context);
+        SQLiteDatabase db = helper.getWritableDatabase();
+
+        Set<String> indexes = new HashSet<>();
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND "
+                + "tbl_name = ?", new String[] { PetEntry.TABLE_NAME });
+        try {
+            while (cursor.moveToNext()) {
+                indexes.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        for (String column : new String[] {
+                PetEntry.PET_NAME, PetEntry.PET_BREED, PetEntry.PET_GENDER }) {
+            String index = PetEntry.TABLE_NAME + "_" + column + "_index";
+            assertTrue("Missing " + index + " in " + indexes, indexes.contains(index));
+        }
+    }
+
+    @Test
+    public void upgradeLeavesBackfillsUntilAfterOpening() {
+        int pets = createVersion1Database();
+        helper = new PetDbHelper(context);
+        SQLiteDatabase db = helper.getWritableDatabase();
+
+        assertTrue(PetDbHelper.hasBackfills(db));
+        assertEquals(0, count(db, "SELECT COUNT(*) FROM " + PetDbHelper.SEARCH_TABLE_NAME));
+        assertEquals(0, count(db, "SELECT COUNT(*) FROM " + SyncEntry.TABLE_NAME));
+
+        // Pets written before the backfill gets to them are kept up to date by the triggers.
+        db.execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.PET_NAME
+                + " = 'Renamed' WHERE " + PetEntry._ID + " = 1");
+        db.execSQL("INSERT INTO " + PetEntry.TABLE_NAME + " (" + PetEntry.PET_NAME + ", "
+                + PetEntry.PET_GENDER + ") VALUES ('Newcomer', 0)");
+        helper.runBackfills();
+
+        assertFalse(PetDbHelper.hasBackfills(db));
+        assertEveryPetBackfilled(db, pets + 1);
+        assertEquals(1, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                + PetDbHelper.SEARCH_TABLE_NAME + " WHERE " + PetDbHelper.SEARCH_TABLE_NAME
+                + " MATCH 'Renamed'", null));
+    }
+
+    @Test
+    public void stoppedBackfillCarriesOnWhereItLeftOff() {
+        int pets = createVersion1Database();
+        helper = new PetDbHelper(context);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        assertTrue(helper.runBackfillChunk());
+        assertEquals(count(db, "SELECT COUNT(*) FROM " + PetEntry.TABLE_NAME + " WHERE "
+                + PetEntry._ID + " <= " + PetDbHelper.MIGRATION_CHUNK_SIZE),
+                count(db, "SELECT COUNT(*) FROM " + PetDbHelper.SEARCH_TABLE_NAME));
+
+        // As if the app were killed, and started again.
+        helper.close();
+        helper = new PetDbHelper(context);
+        db = helper.getWritableDatabase();
+        assertEquals(PetDbHelper.MIGRATION_CHUNK_SIZE, count(db, "SELECT "
+                + PetDbHelper.BACKFILL_LAST_ID + " FROM " + PetDbHelper.BACKFILL_TABLE_NAME
+                + " WHERE " + PetDbHelper.BACKFILL_VERSION + " = 2"));
+        helper.runBackfills();
+
+        assertFalse(PetDbHelper.hasBackfills(db));
+        assertEveryPetBackfilled(db, pets);
+    }
+
+    @Test
+    public void newDatabaseHasNothingToBackfill() {
+        helper = new PetDbHelper(context);
+
+        assertFalse(PetDbHelper.hasBackfills(helper.getWritableDatabase()));
+    }
+
+    @Test
+    public void step2AddsSearch() {
+        createVersion1Database();
+        Set<String> added = runStep(2);
+
+        assertTrue(added.contains("table " + PetDbHelper.SEARCH_TABLE_NAME));
+        assertTriggers(added, PetDbHelper.SEARCH_TABLE_NAME);
+        assertTrue(added.contains("table " + PetDbHelper.BACKFILL_TABLE_NAME));
+        // The step itself indexes nothing, and leaves a backfill over every pet.
+        assertEquals(0, count(db, "SELECT COUNT(*) FROM " + PetDbHelper.SEARCH_TABLE_NAME));
+        assertBackfillLeft(2);
+    }
+
+    @Test
+    public void step3IndexesNameBreedAndGender() {
+        createVersion1Database();
+        Set<String> added = runStep(3);
+
+        assertIndexes(added, PetEntry.PET_NAME, PetEntry.PET_BREED, PetEntry.PET_GENDER);
+    }
+
+    @Test
+    public void step4SummarizesPets() {
+        int pets = createVersion1Database();
+        Set<String> added = runStep(4);
+
+        assertTrue(added.contains("table " + PetDbHelper.STATS_TABLE_NAME));
+        assertTriggers(added, PetDbHelper.STATS_TABLE_NAME);
+        assertEquals(pets, count(db, "SELECT SUM(" + StatsEntry.PET_COUNT + ") FROM "
+                + PetDbHelper.STATS_TABLE_NAME));
+    }
+
+    @Test
+    public void step5TracksImports() {
+        createVersion1Database();
+        Set<String> added = runStep(5);
+
+        assertTrue(added.contains("table " + ImportEntry.TABLE_NAME));
+    }
+
+    @Test
+    public void step6IndexesWeight() {
+        createVersion1Database();
+        Set<String> added = runStep(6);
+
+        assertIndexes(added, PetEntry.PET_WEIGHT);
+    }
+
+    @Test
+    public void step7AddsPhotos() {
+        int pets = createVersion1Database();
+        runStep(7);
+
+        assertEquals(pets, count(db, "SELECT COUNT(*) FROM " + PetEntry.TABLE_NAME + " WHERE "
+                + PetEntry.PET_PHOTO + " IS NULL"));
+    }
+
+    @Test
+    public void step8LogsChanges() {
+        createVersion1Database();
+        Set<String> added = runStep(8);
+
+        assertTrue(added.contains("table " + ChangeEntry.TABLE_NAME));
+        assertTriggers(added, ChangeEntry.TABLE_NAME);
+        assertEquals(0, count(db, "SELECT COUNT(*) FROM " + ChangeEntry.TABLE_NAME));
+    }
+
+    @Test
+    public void step9TracksSync() {
+        createVersion1Database();
+        Set<String> added = runStep(9);
+
+        assertTrue(added.contains("table " + SyncEntry.TABLE_NAME));
+        assertTrue(added.contains("table " + PetDbHelper.SYNC_STATE_TABLE_NAME));
+        assertTriggers(added, SyncEntry.TABLE_NAME);
+        assertEquals(0, count(db, "SELECT COUNT(*) FROM " + SyncEntry.TABLE_NAME));
+        assertBackfillLeft(9);
+    }
+
+    @Test
+    public void step10IndexesTrigrams() {
+        createVersion1Database();
+        Set<String> added = runStep(10);
+
+        assertTrue(added.contains("table " + PetTrigramIndex.TABLE_NAME));
+        assertTrue(added.contains("table " + PetTrigramIndex.STATE_TABLE_NAME));
+    }
+
+    /**
+     * Check that the search index and the sync state hold every pet exactly once.
+     */
+    private static void assertEveryPetBackfilled(SQLiteDatabase db, int pets) {
+        assertEquals(pets, count(db, "SELECT COUNT(*) FROM " + PetDbHelper.SEARCH_TABLE_NAME));
+        assertEquals(0, count(db, "SELECT COUNT(*) FROM " + PetEntry.TABLE_NAME + " WHERE "
+                + PetEntry._ID + " NOT IN (SELECT docid FROM " + PetDbHelper.SEARCH_TABLE_NAME
+                + ")"));
+        String lastName = DatabaseUtils.stringForQuery(db, "SELECT " + PetEntry.PET_NAME
+                + " FROM " + PetEntry.TABLE_NAME + " ORDER BY " + PetEntry._ID + " DESC LIMIT 1",
+                null);
+        assertEquals(1, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                + PetDbHelper.SEARCH_TABLE_NAME + " WHERE " + PetDbHelper.SEARCH_TABLE_NAME
+                + " MATCH ?", new String[] { lastName }));
+
+        assertEquals(pets, count(db, "SELECT COUNT(*) FROM " + SyncEntry.TABLE_NAME + " WHERE "
+                + SyncEntry.DIRTY + " = 1 AND " + SyncEntry.PET_ID + " IN (SELECT "
+                + PetEntry._ID + " FROM " + PetEntry.TABLE_NAME + ")"));
+        assertEquals(pets, count(db, "SELECT COUNT(DISTINCT " + SyncEntry.SYNC_ID + ") FROM "
+                + SyncEntry.TABLE_NAME));
+        assertEquals(pets, count(db, "SELECT SUM(" + StatsEntry.PET_COUNT + ") FROM "
+                + PetDbHelper.STATS_TABLE_NAME));
+    }
+
+    /**
+     * Open the version 1 database without a helper, upgrade it to just before the given version,
+     * then run that one step. Returns the tables, indexes and triggers the step added.
+     */
+    private Set<String> runStep(int version) {
+        db = SQLiteDatabase.openDatabase(
+                context.getDatabasePath(PetDbHelper.DATABASE_NAME).getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        PetDbHelper.migrate(db, 1, version - 1);
+        Set<String> added = schema(db);
+        Set<String> before = new HashSet<>(added);
+        PetDbHelper.migrate(db, version - 1, version);
+        added = schema(db);
+        added.removeAll(before);
+        return added;
+    }
+
+    private void assertBackfillLeft(int version) {
+        long maxId = count(db, "SELECT MAX(" + PetEntry._ID + ") FROM " + PetEntry.TABLE_NAME);
+        Cursor cursor = db.query(PetDbHelper.BACKFILL_TABLE_NAME, new String[] {
+                PetDbHelper.BACKFILL_LAST_ID, PetDbHelper.BACKFILL_MAX_ID },
+                PetDbHelper.BACKFILL_VERSION + " = ?", new String[] { String.valueOf(version) },
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(0, cursor.getLong(0));
+            assertEquals(maxId, cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void assertTriggers(Set<String> added, String table) {
+        for (String event : new String[] { "insert", "update", "delete" }) {
+            String trigger = "trigger " + table + "_" + event;
+            assertTrue("Missing " + trigger + " in " + added, added.contains(trigger));
+        }
+    }
+
+    private static void assertIndexes(Set<String> added, String... columns) {
+        for (String column : columns) {
+            String index = "index " + PetEntry.TABLE_NAME + "_" + column + "_index";
+            assertTrue("Missing " + index + " in " + added, added.contains(index));
+        }
+    }
+
+    @Test
+    public void upgradedSchemaMatchesNewSchema() {
+        createVersion1Database();
+        helper = new PetDbHelper(context);
+        helper.runBackfills();
+        Set<String> upgraded = schema(helper.getWritableDatabase());
+
+        PetDbHelper fresh = new PetDbHelper(context, "fresh.db",
+                PetDbHelper.DEFAULT_SYNCHRONOUS_MODE);
+        try {
+            assertEquals(schema(fresh.getWritableDatabase()), upgraded);
+        } finally {
+            fresh.close();
+            context.deleteDatabase("fresh.db");
+        }
+    }
+
+    /**
+     * Create shelter.db the way version 1 of the app did, with {@link #PET_COUNT} pets less the
+     * ones deleted to leave gaps. Returns the number of pets left.
+     */
+    private int createVersion1Database() {
+        File file = context.getDatabasePath(PetDbHelper.DATABASE_NAME);
+        file.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            db.execSQL("CREATE TABLE " + PetEntry.TABLE_NAME + "("
+                    + PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + PetEntry.PET_NAME + " TEXT NOT NULL, "
+                    + PetEntry.PET_BREED + " TEXT, "
+                    + PetEntry.PET_GENDER + " INTEGER NOT NULL, "
+                    + PetEntry.PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);");
+            db.beginTransaction();
+            try {
+                SQLiteStatement insert = db.compileStatement("INSERT INTO " + PetEntry.TABLE_NAME
+                        + " (" + PetEntry.PET_NAME + ", " + PetEntry.PET_BREED + ", "
+                        + PetEntry.PET_GENDER + ", " + PetEntry.PET_WEIGHT
+                        + ") VALUES (?, ?, ?, ?)");
+                for (int i = 0; i < PET_COUNT; i++) {
+                    insert.bindString(1, "Pet" + i);
+                    if (i % 5 == 0) {
+                        insert.bindNull(2);
+                    }
+                    else {
+                        insert.bindString(2, "Breed " + (i % 40));
+                    }
+                    insert.bindLong(3, i % 3);
+                    insert.bindLong(4, i % 60);
+                    insert.executeInsert();
+                }
+                insert.close();
+                db.execSQL("DELETE FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID
+                        + " % " + DELETE_EVERY + " = 0");
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            db.setVersion(1);
+            return (int) count(db, "SELECT COUNT(*) FROM " + PetEntry.TABLE_NAME);
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Returns the type and name of every table, index and trigger the app made.
+     */
+    private static Set<String> schema(SQLiteDatabase db) {
+        Set<String> schema = new HashSet<>();
+        Cursor cursor = db.rawQuery("SELECT type, name FROM sqlite_master WHERE name NOT LIKE "
+                + "'sqlite_%' AND name != 'android_metadata'", null);
+        try {
+            while (cursor.moveToNext()) {
+                schema.add(cursor.getString(0) + " " + cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return schema;
+    }
+
+    private static long count(SQLiteDatabase db, String sql) {
+        return DatabaseUtils.longForQuery(db, sql, null);
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that every combination of {@link PetFilter} filters searches an index.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetFilterTest {
+
+    private static final String DATABASE_NAME = "filter_test.db";
+
+    private Context context;
+    private PetDbHelper helper;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        context.deleteDatabase(DATABASE_NAME);
+        helper = new PetDbHelper(context, DATABASE_NAME, PetDbHelper.DEFAULT_SYNCHRONOUS_MODE);
+    }
+
+    @After
+    public void tearDown() {
+        helper.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void noFilterScansTheWholeTable() {
+        assertEquals(Collections.<String>emptyList(),
+                PetFilter.findFullScans(helper.getReadableDatabase()));
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Imports pets through a {@link PetProvider} on a scratch database.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetImporterTest {
+
+    private static final String DATABASE_NAME = "importer_test.db";
+
+    private static final Uri SOURCE = Uri.parse("content://test/pets.csv");
+
+    /**
+     * Rows 2 and 5 fail the provider's checks, and row 4 can't be read at all. The rest are
+     * valid.
+     */
+    private static final String CSV = "name,breed,gender,weight\n"
+            + "Ace,Boxer,male,1\n"
+            + ",Boxer,male,2\n"
+            + "Cleo,,female,3\n"
+            + "Duke,Pug,male,heavy\n"
+            + "Echo,Pug,7,5\n"
+            + "Fig,,unknown,6\n"
+            + "Gus,Lab,1,7\n"
+            + "Hope,Lab,2,8\n";
+
+    private Context context;
+    private PetProvider provider;
+    private ContentResolver resolver;
+
+    /** Rows reported as failed, across every attempt. */
+    private final List<Integer> failedRows = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        provider = ScratchProvider.create(context, DATABASE_NAME);
+        resolver = context.getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        ScratchProvider.destroy(context, provider, DATABASE_NAME);
+    }
+
+    @Test
+    public void importCountsEveryRowOnce() throws Exception {
+        PetImporter.Result result = importCsv(new PetImporter(resolver, 3), false);
+
+        assertEquals(8, result.rowsRead);
+        assertEquals(5, result.rowsImported);
+        assertEquals(3, result.rowsFailed);
+        assertEquals(Arrays.asList(2, 4, 5), failedRows);
+        assertEquals(Arrays.asList("Ace", "Cleo", "Fig", "Gus", "Hope"), petNames());
+    }
+
+    @Test
+    public void resumedImportLosesAndRepeatsNothing() throws Exception {
+        // Stops after the first chunk, which holds an invalid row.
+        assertNull(importCsv(new PetImporter(resolver, 3), true));
+        assertEquals(Arrays.asList("Ace", "Cleo"), petNames());
+        assertEquals(Arrays.asList(2), failedRows);
+
+        PetImporter.Result result = importCsv(new PetImporter(resolver, 3), false);
+
+        assertEquals(3, result.rowsResumed);
+        assertEquals(8, result.rowsRead);
+        assertEquals(5, result.rowsImported);
+        assertEquals(3, result.rowsFailed);
+        assertEquals(Arrays.asList(2, 4, 5), failedRows);
+        assertEquals(Arrays.asList("Ace", "Cleo", "Fig", "Gus", "Hope"), petNames());
+    }
+
+    /**
+     * Import {@link #CSV}, cancelling after the first chunk if asked to.
+     */
+    private PetImporter.Result importCsv(final PetImporter importer, final boolean cancel)
+            throws Exception {
+        shadowOf(resolver).registerInputStream(SOURCE,
+                new ByteArrayInputStream(CSV.getBytes(Charset.forName("UTF-8"))));
+        return importer.importPets(SOURCE, new PetImporter.ProgressListener() {
+            @Override
+            public void onProgress(int rowsRead, int rowsImported, int rowsFailed) {
+                if (cancel) {
+                    importer.cancel();
+                }
+            }
+
+            @Override
+            public void onRowFailed(int row, String message) {
+                failedRows.add(row);
+            }
+        });
+    }
+
+    private List<String> petNames() {
+        List<String> names = new ArrayList<>();
+        Cursor cursor = resolver.query(PetEntry.CONTENT_URI, new String[] { PetEntry.PET_NAME },
+                null, null, PetEntry._ID);
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Stores pet photos through a {@link PetProvider} on a scratch database.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetProviderTest {
+
+    private static final String DATABASE_NAME = "provider_test.db";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Context context;
+    private PetProvider provider;
+    private ContentResolver resolver;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        provider = ScratchProvider.create(context, DATABASE_NAME);
+        resolver = context.getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        ScratchProvider.destroy(context, provider, DATABASE_NAME);
+    }
+
+    @Test
+    public void newPhotoOnlyReplacesTheOldOneWhenItsTimeIsSet() throws IOException {
+        Uri petUri = insertPet();
+        Uri photoUri = PetEntry.buildPhotoUri(ContentUris.parseId(petUri));
+        writePhoto(photoUri, "old").close();
+        setPhotoTime(petUri, 1000);
+
+        // Readers get the whole old photo while the new one is written, and after.
+        OutputStream out = writePhoto(photoUri, "new");
+        assertEquals("old", readPhoto(photoUri));
+        out.close();
+        assertEquals("old", readPhoto(photoUri));
+
+        setPhotoTime(petUri, 2000);
+        assertEquals("new", readPhoto(photoUri));
+    }
+
+    @Test
+    public void deletedPhotoTakesTheNewOneWithIt() throws IOException {
+        Uri petUri = insertPet();
+        Uri photoUri = PetEntry.buildPhotoUri(ContentUris.parseId(petUri));
+        writePhoto(photoUri, "old").close();
+        setPhotoTime(petUri, 1000);
+        writePhoto(photoUri, "new").close();
+
+        resolver.delete(photoUri, null, null);
+        setPhotoTime(petUri, 2000);
+
+        try {
+            readPhoto(photoUri);
+            fail("The photo should be gone");
+        } catch (FileNotFoundException expected) {
+            // Neither photo is left.
+        }
+    }
+
+    private Uri insertPet() {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.PET_NAME, "Rex");
+        values.put(PetEntry.PET_GENDER, PetEntry.GENDER_MALE);
+        values.put(PetEntry.PET_WEIGHT, 10);
+        return resolver.insert(PetEntry.CONTENT_URI, values);
+    }
+
+    private void setPhotoTime(Uri petUri, long time) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.PET_PHOTO, time);
+        assertEquals(1, resolver.update(petUri, values, null, null));
+    }
+
+    /**
+     * Open the photo for writing and write the text to it, leaving it open.
+     */
+    private OutputStream writePhoto(Uri photoUri, String text) throws IOException {
+        OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(
+                provider.openFile(photoUri, "w"));
+        out.write(text.getBytes(UTF_8));
+        out.flush();
+        return out;
+    }
+
+    private String readPhoto(Uri photoUri) throws IOException {
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(
+                provider.openFile(photoUri, "r"));
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
+            }
+            return new String(bytes.toByteArray(), UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.SyncEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Syncs the pets of a {@link PetProvider} on a scratch database with a stand-in for the
+ * shelter's server.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetSyncTest {
+
+    private static final String DATABASE_NAME = "sync_test.db";
+
+    private static final int BATCH_SIZE = 2;
+
+    private Context context;
+    private PetProvider provider;
+    private ContentResolver resolver;
+    private MockWebServer server;
+
+    /** The server's URL as the app would be given it. */
+    private String serverUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        context = RuntimeEnvironment.application;
+        provider = ScratchProvider.create(context, DATABASE_NAME);
+        resolver = context.getContentResolver();
+
+        server = new MockWebServer();
+        server.start();
+        serverUrl = server.url("/shelter").toString();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+        ScratchProvider.destroy(context, provider, DATABASE_NAME);
+    }
+
+    @Test
+    public void sendsDirtyPetsInBatches() throws Exception {
+        insertPets(5);
+        server.enqueue(new MockResponse());
+        server.enqueue(new MockResponse());
+        server.enqueue(new MockResponse());
+        server.enqueue(changesResponse(0, false));
+
+        PetSync.Result result = new PetSync(resolver, serverUrl, BATCH_SIZE).sync();
+
+        assertEquals(5, result.petsSent);
+        assertEquals(0, result.petsReceived);
+        List<String> syncIds = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (int batch : new int[] { 2, 2, 1 }) {
+            List<JSONObject> changes = takeSentChanges();
+            assertEquals(batch, changes.size());
+            for (JSONObject change : changes) {
+                syncIds.add(change.getString(SyncEntry.SYNC_ID));
+                names.add(change.getString(PetEntry.PET_NAME));
+            }
+        }
+        // Every pet once, in order of sync ID.
+        List<String> sorted = new ArrayList<>(syncIds);
+        Collections.sort(sorted);
+        assertEquals(sorted, syncIds);
+        assertEquals(5, new HashSet<>(syncIds).size());
+        assertEquals(5, names.size());
+
+        assertEquals("/shelter/changes?since=0&limit=2", server.takeRequest().getPath());
+        assertEquals(0, countDirtyPets());
+    }
+
+    @Test
+    public void receiveResumesFromStoredWatermark() throws Exception {
+        server.enqueue(changesResponse(5, true, remotePet("a", "Rex"), remotePet("b", "Fido")));
+        server.enqueue(changesResponse(7, false, remotePet("c", "Tom")));
+
+        PetSync.Result result = new PetSync(resolver, serverUrl, BATCH_SIZE).sync();
+
+        assertEquals(0, result.petsSent);
+        assertEquals(3, result.petsReceived);
+        assertEquals(3, result.petsChanged);
+        assertEquals("/shelter/changes?since=0&limit=2", server.takeRequest().getPath());
+        assertEquals("/shelter/changes?since=5&limit=2", server.takeRequest().getPath());
+        assertEquals(3, countPets(null, null));
+        assertEquals(1, countPets(PetEntry.PET_NAME + " = ?", new String[] { "Tom" }));
+        // Pets from the server aren't sent back to it.
+        assertEquals(0, countDirtyPets());
+
+        // A new sync, as after the app restarts, picks up from the stored watermark.
+        server.enqueue(changesResponse(7, false));
+        result = new PetSync(resolver, serverUrl, BATCH_SIZE).sync();
+
+        assertEquals(0, result.petsReceived);
+        assertEquals("/shelter/changes?since=7&limit=2", server.takeRequest().getPath());
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void conflictIsSettledPerColumn() throws Exception {
+        insertPet("Rex", "Labrador", 10);
+        String syncId;
+        long nameTime;
+        long breedTime;
+        Cursor cursor = resolver.query(SyncEntry.CONTENT_URI, new String[] {
+                SyncEntry.SYNC_ID, SyncEntry.NAME_TIME, SyncEntry.BREED_TIME }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            syncId = cursor.getString(0);
+            nameTime = cursor.getLong(1);
+            breedTime = cursor.getLong(2);
+        } finally {
+            cursor.close();
+        }
+
+        // The server renamed the pet after it was made here, but its breed is older.
+        JSONObject change = new JSONObject();
+        change.put(SyncEntry.SYNC_ID, syncId);
+        change.put(PetEntry.PET_NAME, "Max");
+        change.put(SyncEntry.NAME_TIME, nameTime + 1000);
+        change.put(PetEntry.PET_BREED, "Poodle");
+        change.put(SyncEntry.BREED_TIME, breedTime - 1000);
+        server.enqueue(new MockResponse());
+        server.enqueue(changesResponse(1, false, change));
+
+        PetSync.Result result = new PetSync(resolver, serverUrl, BATCH_SIZE).sync();
+
+        assertEquals(1, result.petsSent);
+        assertEquals(1, result.petsChanged);
+        cursor = resolver.query(PetEntry.CONTENT_URI, new String[] {
+                PetEntry.PET_NAME, PetEntry.PET_BREED, PetEntry.PET_WEIGHT }, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Max", cursor.getString(0));
+            assertEquals("Labrador", cursor.getString(1));
+            assertEquals(10, cursor.getInt(2));
+        } finally {
+            cursor.close();
+        }
+        cursor = resolver.query(SyncEntry.CONTENT_URI, new String[] {
+                SyncEntry.NAME_TIME, SyncEntry.BREED_TIME }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(nameTime + 1000, cursor.getLong(0));
+            assertEquals(breedTime, cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void failedSyncKeepsTheBatchesThatGotThrough() throws Exception {
+        insertPets(5);
+        server.enqueue(new MockResponse());
+        server.enqueue(new MockResponse().setResponseCode(500));
+
+        try {
+            new PetSync(resolver, serverUrl, BATCH_SIZE).sync();
+            fail("Sync should fail when the server does");
+        } catch (IOException expected) {
+            // The second batch was refused.
+        }
+
+        Set<String> firstBatch = new HashSet<>();
+        for (JSONObject change : takeSentChanges()) {
+            firstBatch.add(change.getString(SyncEntry.SYNC_ID));
+        }
+        takeSentChanges();
+        assertEquals(2, firstBatch.size());
+        assertEquals(3, countDirtyPets());
+
+        // The next sync only sends the pets the server hasn't got.
+        server.enqueue(new MockResponse());
+        server.enqueue(new MockResponse());
+        server.enqueue(changesResponse(0, false));
+        PetSync.Result result = new PetSync(resolver, serverUrl, BATCH_SIZE).sync();
+
+        assertEquals(3, result.petsSent);
+        Set<String> resent = new HashSet<>();
+        for (int i = 0; i < 2; i++) {
+            for (JSONObject change : takeSentChanges()) {
+                resent.add(change.getString(SyncEntry.SYNC_ID));
+            }
+        }
+        assertEquals(3, resent.size());
+        for (String syncId : firstBatch) {
+            assertFalse(syncId + " was sent twice", resent.contains(syncId));
+        }
+        assertEquals(0, countDirtyPets());
+    }
+
+    private void insertPets(int count) {
+        for (int i = 0; i < count; i++) {
+            insertPet("Pet " + i, "Breed " + i, i);
+        }
+    }
+
+    private void insertPet(String name, String breed, int weight) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.PET_NAME, name);
+        values.put(PetEntry.PET_BREED, breed);
+        values.put(PetEntry.PET_GENDER, PetEntry.GENDER_UNKNOWN);
+        values.put(PetEntry.PET_WEIGHT, weight);
+        resolver.insert(PetEntry.CONTENT_URI, values);
+    }
+
+    private long countPets(String selection, String[] selectionArgs) {
+        Cursor cursor = resolver.query(PetEntry.CONTENT_URI, new String[] { PetEntry._ID },
+                selection, selectionArgs, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long countDirtyPets() {
+        Cursor cursor = resolver.query(SyncEntry.CONTENT_URI, new String[] { SyncEntry.SYNC_ID },
+                SyncEntry.DIRTY + " > 0", null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns a pet as the server sends it, changed at a fixed time well in the past.
+     */
+    private static JSONObject remotePet(String syncId, String name) throws JSONException {
+        JSONObject pet = new JSONObject();
+        pet.put(SyncEntry.SYNC_ID, syncId);
+        pet.put(PetEntry.PET_NAME, name);
+        pet.put(SyncEntry.NAME_TIME, 1000L);
+        pet.put(PetEntry.PET_BREED, JSONObject.NULL);
+        pet.put(SyncEntry.BREED_TIME, 1000L);
+        pet.put(PetEntry.PET_GENDER, PetEntry.GENDER_FEMALE);
+        pet.put(SyncEntry.GENDER_TIME, 1000L);
+        pet.put(PetEntry.PET_WEIGHT, 4);
+        pet.put(SyncEntry.WEIGHT_TIME, 1000L);
+        return pet;
+    }
+
+    private static MockResponse changesResponse(long watermark, boolean more,
+                                                JSONObject... changes) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (JSONObject change : changes) {
+            array.put(change);
+        }
+        JSONObject body = new JSONObject();
+        body.put(SyncEntry.KEY_WATERMARK, watermark);
+        body.put("more", more);
+        body.put(SyncEntry.KEY_CHANGES, array);
+        return new MockResponse().setHeader("Content-Type", "application/json")
+                .setBody(body.toString());
+    }
+
+    /**
+     * Takes the next request, which must be a batch of changes sent to the server, and returns
+     * the changes in it.
+     */
+    private List<JSONObject> takeSentChanges() throws Exception {
+        RecordedRequest request = server.takeRequest();
+        assertEquals("POST", request.getMethod());
+        assertEquals("/shelter/changes", request.getPath());
+        assertEquals("gzip", request.getHeader("Content-Encoding"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream in = new GZIPInputStream(request.getBody().inputStream());
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        JSONArray array = new JSONObject(bytes.toString("UTF-8"))
+                .getJSONArray(SyncEntry.KEY_CHANGES);
+        List<JSONObject> changes = new ArrayList<>();
+        for (int i = 0; i < array.length(); i++) {
+            changes.add(array.getJSONObject(i));
+        }
+        return changes;
+    }
+}
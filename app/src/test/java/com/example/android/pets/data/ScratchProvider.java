@@ -0,0 +1,32 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+
+import org.robolectric.shadows.ShadowContentResolver;
+
+/**
+ * Sets up a {@link PetProvider} on a scratch database for a test, under the app's authority so
+ * the test's content resolver reaches it. Unlike the app's own database, a scratch one isn't
+ * prewarmed on a background thread that could still be using it when the test deletes it.
+ */
+final class ScratchProvider {
+
+    private ScratchProvider() {
+    }
+
+    static PetProvider create(Context context, String databaseName) {
+        context.deleteDatabase(databaseName);
+        PetProvider provider = new PetProvider(databaseName);
+        ProviderInfo info = new ProviderInfo();
+        info.authority = PetContract.CONTENT_AUTHORITY;
+        provider.attachInfo(context, info);
+        ShadowContentResolver.registerProviderInternal(PetContract.CONTENT_AUTHORITY, provider);
+        return provider;
+    }
+
+    static void destroy(Context context, PetProvider provider, String databaseName) {
+        provider.shutdown();
+        context.deleteDatabase(databaseName);
+    }
+}